@@ -0,0 +1,104 @@
+/*
+    Open Manager, an open source file manager for the Android system
+    Copyright (C) 2009, 2010  Joe Berria <nexesdevelopment@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.nexes.manager;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.Locale;
+
+/**
+ * Counts the bytes allocated by building list rows, and compares the
+ * size formatting with the String.format it replaced. It runs on a
+ * desktop JVM, which can count what each thread allocates:
+ * <pre>
+ * javac -d /tmp/bench src/com/nexes/manager/RowFormat.java \
+ *       bench/com/nexes/manager/RowFormatBench.java
+ * java -cp /tmp/bench com.nexes.manager.RowFormatBench [directory]
+ * </pre>
+ * The allocation counter is found by reflection, as the Android build
+ * compiles this file too and has no java.lang.management.
+ */
+public class RowFormatBench {
+	private static final int WARMUP = 20000;
+	private static final int ROUNDS = 200000;
+
+	private static Object threads;
+	private static Method allocated;
+
+	public static void main(String[] args) throws Exception {
+		File dir = new File(args.length > 0 ? args[0] : ".");
+		String[] names = dir.list();
+		File[] files;
+		RowFormat format = new RowFormat(Locale.getDefault());
+		StringBuilder out = new StringBuilder(64);
+		long[] sizes = {0, 999, 4096, 1536 * 1024, 3L * 1024 * 1024 * 1024};
+
+		threads = Class.forName("java.lang.management.ManagementFactory")
+					   .getMethod("getThreadMXBean").invoke(null);
+		allocated = Class.forName("com.sun.management.ThreadMXBean")
+						 .getMethod("getThreadAllocatedBytes", long.class);
+
+		if(names == null || names.length == 0) {
+			System.out.println(dir + " has nothing to list");
+			return;
+		}
+		files = new File[names.length];
+		for(int i = 0; i < names.length; i++)
+			files[i] = new File(dir, names[i]);
+
+		for(int i = 0; i < WARMUP; i++) {
+			out.setLength(0);
+			format.appendSize(out, sizes[i % sizes.length]);
+			String.format("%.2f Kb ", (double)sizes[i % sizes.length] / 1024);
+			format.detail(files[i % files.length]);
+		}
+
+		long before = allocated();
+		for(int i = 0; i < ROUNDS; i++) {
+			out.setLength(0);
+			format.appendSize(out, sizes[i % sizes.length]);
+		}
+		report("appendSize", allocated() - before, ROUNDS);
+
+		before = allocated();
+		for(int i = 0; i < ROUNDS; i++)
+			String.format("%.2f Kb ", (double)sizes[i % sizes.length] / 1024);
+		report("String.format", allocated() - before, ROUNDS);
+
+		int rows = Math.max(files.length, ROUNDS / 10);
+		before = allocated();
+		for(int i = 0; i < rows; i++)
+			format.detail(files[i % files.length]);
+		report("row detail", allocated() - before, rows);
+
+		for(long size : sizes) {
+			out.setLength(0);
+			format.appendSize(out, size);
+			System.out.println(size + " -> \"" + out + "\"");
+		}
+	}
+
+	private static long allocated() throws Exception {
+		return (Long)allocated.invoke(threads, Thread.currentThread().getId());
+	}
+
+	private static void report(String what, long bytes, int count) {
+		System.out.println(what + ": " + (bytes / count) + " bytes per call");
+	}
+}
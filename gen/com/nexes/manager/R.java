@@ -65,6 +65,8 @@ public final class R {
         public static final int back_button=0x7f060017;
         public static final int backup_button=0x7f060004;
         public static final int backup_label=0x7f060003;
+        public static final int backup_prune_box=0x7f060033;
+        public static final int backup_versions_box=0x7f060034;
         public static final int bottom_view=0x7f06002f;
         public static final int detail_label=0x7f060023;
         public static final int dirs_label=0x7f06000e;
@@ -104,6 +106,10 @@ public final class R {
         public static final int second_title=0x7f06000f;
         public static final int setting_color_button=0x7f06002a;
         public static final int setting_hidden_box=0x7f06002b;
+        public static final int setting_prefetch_button=0x7f060031;
+        public static final int setting_rate_button=0x7f060032;
+        public static final int setting_trash_box=0x7f060030;
+        public static final int setting_verify_box=0x7f060035;
         public static final int third_title=0x7f060011;
         public static final int time_stamp=0x7f060012;
         public static final int top_view=0x7f06002e;
@@ -0,0 +1,240 @@
+/*
+    Open Manager, an open source file manager for the Android system
+    Copyright (C) 2009, 2010  Joe Berria <nexesdevelopment@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.nexes.manager;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import android.graphics.Bitmap;
+
+/**
+ * Thumbnails for mp3 files, taken from the album art in their ID3v2 tag.
+ * Only the tag at the start of the file is read, never the audio, and the
+ * cover picture is preferred over any other picture in the tag.
+ * Versions 2.2, 2.3 and 2.4 of the tag are understood.
+ */
+public class AlbumArtExtractor implements ThumbnailExtractor {
+	private static final int MAX_TAG_SIZE = 2 * 1024 * 1024;
+	private static final int HEADER_SIZE = 10;
+	private static final int FRONT_COVER = 3;
+
+	public boolean accepts(String extension) {
+		return extension.equals("mp3");
+	}
+
+	public Bitmap extract(File file, int width, int height, BitmapPool pool) {
+		byte[] tag;
+
+		try {
+			tag = read_tag(file);
+		} catch (IOException e) {
+			return null;
+		}
+
+		if(tag == null)
+			return null;
+
+		int[] picture = findPicture(tag);
+		if(picture == null)
+			return null;
+
+		return BitmapDecoder.decodeByteArray(tag, picture[0], picture[1], width, height, pool);
+	}
+
+	/*
+	 * reads the tag header and returns the tag with the header stripped
+	 * and its major version stored in the first byte, or null if the
+	 * file does not start with a tag.
+	 */
+	private static byte[] read_tag(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+
+		try {
+			byte[] header = new byte[HEADER_SIZE];
+			in.readFully(header);
+
+			if(header[0] != 'I' || header[1] != 'D' || header[2] != '3')
+				return null;
+
+			int version = header[3];
+			int flags = header[5] & 0xff;
+			int size = synchsafe(header, 6);
+
+			if(version < 2 || version > 4 || size <= 0 || size > MAX_TAG_SIZE)
+				return null;
+
+			byte[] tag = new byte[size + 2];
+			in.readFully(tag, 2, size);
+			tag[0] = (byte)version;
+			tag[1] = (byte)flags;
+
+			return tag;
+
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Finds the picture in a tag returned by read_tag.
+	 *
+	 * @return the offset and length of the image data within tag, or null
+	 * 		   if the tag has no picture
+	 */
+	static int[] findPicture(byte[] tag) {
+		int version = tag[0];
+		int flags = tag[1] & 0xff;
+		int end = tag.length;
+
+		/* 2.3 and older unsynchronise the whole tag at once */
+		if((flags & 0x80) != 0 && version < 4)
+			end = resynchronise(tag, 2, end);
+
+		int pos = 2;
+		if((flags & 0x40) != 0 && version > 2) {
+			if(pos + 4 > end)
+				return null;
+
+			/* 2.3 does not count the size field itself, 2.4 does */
+			pos += version == 3 ? 4 + int_at(tag, pos) : synchsafe(tag, pos);
+		}
+
+		int id_len = version == 2 ? 3 : 4;
+		int header_len = version == 2 ? 6 : 10;
+		int[] first = null;
+
+		while(pos + header_len <= end && tag[pos] != 0) {
+			int size;
+			boolean unsync = false;
+
+			if(version == 2)
+				size = (tag[pos + 3] & 0xff) << 16 | (tag[pos + 4] & 0xff) << 8 | (tag[pos + 5] & 0xff);
+			else if(version == 3)
+				size = int_at(tag, pos + 4);
+			else {
+				size = synchsafe(tag, pos + 4);
+				unsync = (tag[pos + 9] & 0x02) != 0;
+			}
+
+			int data = pos + header_len;
+			if(size <= 0 || data + size > end || data + size < data)
+				return null;
+
+			if(is_picture(tag, pos, id_len)) {
+				int frame_end = data + size;
+
+				if(unsync)
+					frame_end = resynchronise(tag, data, frame_end);
+
+				int[] picture = parse_picture(tag, data, frame_end, version);
+				if(picture != null) {
+					if(picture[2] == FRONT_COVER)
+						return picture;
+					if(first == null)
+						first = picture;
+				}
+			}
+
+			pos = data + size;
+		}
+
+		return first;
+	}
+
+	private static boolean is_picture(byte[] tag, int pos, int id_len) {
+		if(id_len == 3)
+			return tag[pos] == 'P' && tag[pos + 1] == 'I' && tag[pos + 2] == 'C';
+
+		return tag[pos] == 'A' && tag[pos + 1] == 'P' && tag[pos + 2] == 'I' && tag[pos + 3] == 'C';
+	}
+
+	/*
+	 * APIC is encoding, null terminated mime type, picture type, description
+	 * in the given encoding and then the image. 2.2's PIC has a three letter
+	 * image format in place of the mime type.
+	 */
+	private static int[] parse_picture(byte[] tag, int pos, int end, int version) {
+		if(pos >= end)
+			return null;
+
+		int encoding = tag[pos++];
+
+		if(version == 2)
+			pos += 3;
+		else
+			pos = skip_string(tag, pos, end, false);
+
+		if(pos < 0 || pos >= end)
+			return null;
+
+		int type = tag[pos++] & 0xff;
+
+		pos = skip_string(tag, pos, end, encoding == 1 || encoding == 2);
+		if(pos < 0 || pos >= end)
+			return null;
+
+		return new int[] {pos, end - pos, type};
+	}
+
+	/*
+	 * returns the position after the terminator of the string at pos, or
+	 * -1 if it is not terminated. Wide strings end on an aligned 0x0000.
+	 */
+	private static int skip_string(byte[] tag, int pos, int end, boolean wide) {
+		if(wide) {
+			for(int i = pos; i + 1 < end; i += 2)
+				if(tag[i] == 0 && tag[i + 1] == 0)
+					return i + 2;
+		} else {
+			for(int i = pos; i < end; i++)
+				if(tag[i] == 0)
+					return i + 1;
+		}
+
+		return -1;
+	}
+
+	/*
+	 * undoes unsynchronisation in place, every 0xff 0x00 becomes 0xff.
+	 * Returns the new end of the range.
+	 */
+	private static int resynchronise(byte[] tag, int start, int end) {
+		int out = start;
+
+		for(int i = start; i < end; i++) {
+			tag[out++] = tag[i];
+			if(tag[i] == (byte)0xff && i + 1 < end && tag[i + 1] == 0)
+				i++;
+		}
+
+		return out;
+	}
+
+	private static int synchsafe(byte[] b, int off) {
+		return (b[off] & 0x7f) << 21 | (b[off + 1] & 0x7f) << 14 |
+			   (b[off + 2] & 0x7f) << 7 | (b[off + 3] & 0x7f);
+	}
+
+	private static int int_at(byte[] b, int off) {
+		return (b[off] & 0xff) << 24 | (b[off + 1] & 0xff) << 16 |
+			   (b[off + 2] & 0xff) << 8 | (b[off + 3] & 0xff);
+	}
+}
@@ -0,0 +1,149 @@
+/*
+    Open Manager, an open source file manager for the Android system
+    Copyright (C) 2009, 2010  Joe Berria <nexesdevelopment@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.nexes.manager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import android.graphics.Bitmap;
+
+/**
+ * Thumbnails for application packages. Rather than having the package
+ * manager parse the whole package, the zip's central directory is scanned
+ * for the launcher icon under its usual names and only that entry is
+ * inflated. Packages that name their icon something else keep the
+ * generic apk icon.
+ */
+public class ApkIconExtractor implements ThumbnailExtractor {
+	private static final int MAX_ICON_SIZE = 256 * 1024;
+	private static final String[] ICON_NAMES = {"/ic_launcher.png", "/icon.png", "/app_icon.png"};
+
+	/*
+	 * densities in the order they are preferred, closest to the size of a
+	 * list row first. Qualifiers not listed rank after all of these.
+	 */
+	private static final String[] DENSITIES = {"-mdpi", "", "-hdpi", "-ldpi", "-xhdpi"};
+
+	public boolean accepts(String extension) {
+		return extension.equals("apk");
+	}
+
+	public Bitmap extract(File file, int width, int height, BitmapPool pool) {
+		ZipFile zip = null;
+
+		try {
+			zip = new ZipFile(file);
+			ZipEntry icon = find_icon(zip);
+
+			if(icon == null || icon.getSize() > MAX_ICON_SIZE)
+				return null;
+
+			byte[] data = read_entry(zip, icon);
+			if(data == null)
+				return null;
+
+			return BitmapDecoder.decodeByteArray(data, 0, data.length, width, height, pool);
+
+		} catch (IOException e) {
+			return null;
+
+		} finally {
+			if(zip != null) {
+				try {
+					zip.close();
+				} catch (IOException e) { }
+			}
+		}
+	}
+
+	private static ZipEntry find_icon(ZipFile zip) {
+		Enumeration<? extends ZipEntry> entries = zip.entries();
+		ZipEntry best = null;
+		int best_rank = Integer.MAX_VALUE;
+
+		while(entries.hasMoreElements()) {
+			ZipEntry entry = entries.nextElement();
+			int rank = rank_of(entry.getName());
+
+			if(rank < best_rank) {
+				best = entry;
+				best_rank = rank;
+			}
+		}
+
+		return best;
+	}
+
+	/*
+	 * lower is better, Integer.MAX_VALUE if name is not a launcher icon.
+	 * Names are ranked first and densities second.
+	 */
+	private static int rank_of(String name) {
+		if(!name.startsWith("res/drawable"))
+			return Integer.MAX_VALUE;
+
+		int slash = name.lastIndexOf('/');
+		if(slash < 0)
+			return Integer.MAX_VALUE;
+
+		String file_name = name.substring(slash);
+		String qualifiers = name.substring("res/drawable".length(), slash);
+
+		for(int i = 0; i < ICON_NAMES.length; i++) {
+			if(!file_name.equals(ICON_NAMES[i]))
+				continue;
+
+			for(int j = 0; j < DENSITIES.length; j++)
+				if(qualifiers.equals(DENSITIES[j]) || qualifiers.equals(DENSITIES[j] + "-v4"))
+					return i * (DENSITIES.length + 1) + j;
+
+			return i * (DENSITIES.length + 1) + DENSITIES.length;
+		}
+
+		return Integer.MAX_VALUE;
+	}
+
+	private static byte[] read_entry(ZipFile zip, ZipEntry entry) throws IOException {
+		int size = (int)entry.getSize();
+		if(size <= 0)
+			return null;
+
+		byte[] data = new byte[size];
+		InputStream in = zip.getInputStream(entry);
+		int read = 0;
+
+		try {
+			while(read < size) {
+				int n = in.read(data, read, size - read);
+				if(n < 0)
+					break;
+
+				read += n;
+			}
+		} finally {
+			in.close();
+		}
+
+		return read == size ? data : null;
+	}
+}
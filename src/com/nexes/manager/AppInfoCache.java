@@ -0,0 +1,422 @@
+/*
+    Open Manager, an open source file manager for the Android system
+    Copyright (C) 2009, 2010  Joe Berria <nexesdevelopment@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.nexes.manager;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+/**
+ * The labels and icons of installed applications, for lists that show
+ * many of them. Asking the PackageManager for them is an IPC each time,
+ * too slow to do for every row that is bound.
+ * <br>
+ * Everything is loaded on one background thread. The MAX_LABELS labels
+ * used last are kept, icons are scaled down to ICON_SIZE and kept in a
+ * ThumbnailCache. Both are keyed by package name and versionCode, so an
+ * update of an app is loaded again, and both are saved in the cache
+ * directory so the next launch does not have to ask the PackageManager
+ * at all.
+ * <br>
+ * The setIcon and setLabel methods must be called on the UI thread. They
+ * show what is cached, or the fallback until the real thing is loaded.
+ */
+public final class AppInfoCache {
+	public static final int ICON_SIZE = 48;						//px
+	private static final int MEMORY_BUDGET = 512 * 1024;		//bytes of icons in memory
+	private static final int DISK_BUDGET = 1024 * 1024;			//bytes of icons on disk
+	private static final String LABELS = "labels";
+	private static final int MAX_LABELS = 1000;
+
+	private static AppInfoCache instance;
+
+	private final PackageManager pk;
+	private final ExecutorService worker;
+	private final Handler handle;
+	private final File dir;
+	private final ThumbnailCache icons;
+	private final ThumbnailDiskCache disk;
+	private final HashMap<String, String> labels;			//key to label, LRU, guarded by itself
+	private final HashMap<String, Integer> versions;		//package to versionCode
+	private final HashMap<String, String> keys;				//package to its loaded key
+	private final HashSet<String> loading;					//packages queued
+	private final HashSet<String> missing;					//names that are no package
+	private final WeakHashMap<ImageView, String> icon_views;	//UI thread only
+	private final WeakHashMap<TextView, String> label_views;	//UI thread only
+	private boolean labels_read = false;
+	private boolean labels_dirty = false;
+
+	/**
+	 * Told on the UI thread once the list of installed packages is loaded.
+	 */
+	public interface OnPackagesLoadedListener {
+		void onPackagesLoaded(List<PackageInfo> packages);
+	}
+
+	private AppInfoCache(Context context) {
+		pk = context.getPackageManager();
+		handle = new Handler(Looper.getMainLooper());
+		dir = new File(context.getCacheDir(), "appinfo");
+		icons = new ThumbnailCache(MEMORY_BUDGET);
+		disk = new ThumbnailDiskCache(dir.getPath(), DISK_BUDGET);
+		labels = new LinkedHashMap<String, String>(64, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			/* the least recently used label goes first, and is saved first */
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > MAX_LABELS;
+			}
+		};
+		versions = new HashMap<String, Integer>();
+		keys = new HashMap<String, String>();
+		loading = new HashSet<String>();
+		missing = new HashSet<String>();
+		icon_views = new WeakHashMap<ImageView, String>();
+		label_views = new WeakHashMap<TextView, String>();
+		worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "app-info");
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+	}
+
+	public static synchronized AppInfoCache getInstance(Context context) {
+		if(instance == null)
+			instance = new AppInfoCache(context.getApplicationContext());
+
+		return instance;
+	}
+
+	/**
+	 * Loads the list of installed packages in the background, uninstalled
+	 * ones that kept their data included.
+	 */
+	public void loadPackages(final OnPackagesLoadedListener listener) {
+		worker.execute(new Runnable() {
+			public void run() {
+				final List<PackageInfo> packages = pk.getInstalledPackages(
+											PackageManager.GET_UNINSTALLED_PACKAGES);
+
+				synchronized(versions) {
+					versions.clear();
+					for(PackageInfo info : packages)
+						versions.put(info.packageName, info.versionCode);
+				}
+				synchronized(loading) {
+					missing.clear();
+				}
+				forget_updated();
+
+				handle.post(new Runnable() {
+					public void run() {
+						listener.onPackagesLoaded(packages);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * @return	the cached icon of packageName, or null if it is not loaded
+	 */
+	public Bitmap getIcon(String packageName) {
+		String key = key_of(packageName);
+
+		return key == null ? null : icons.get(key);
+	}
+
+	/**
+	 * Shows the icon of packageName in view, or fallback until it is loaded.
+	 */
+	public void setIcon(ImageView view, String packageName, int fallback) {
+		Bitmap icon = getIcon(packageName);
+
+		icon_views.put(view, packageName);
+		if(icon != null) {
+			view.setImageBitmap(icon);
+			return;
+		}
+
+		view.setImageResource(fallback);
+		load(packageName);
+	}
+
+	/**
+	 * Shows the label of packageName in view, or fallback until it is loaded.
+	 */
+	public void setLabel(TextView view, String packageName, String fallback) {
+		String key = key_of(packageName);
+		String label = null;
+
+		if(key != null) {
+			synchronized(labels) {
+				label = labels.get(key);
+			}
+		}
+
+		label_views.put(view, packageName);
+		if(label != null) {
+			view.setText(label);
+			return;
+		}
+
+		view.setText(fallback);
+		load(packageName);
+	}
+
+	/*
+	 * drops the loaded keys of packages whose version has changed, so
+	 * they are loaded again
+	 */
+	private void forget_updated() {
+		synchronized(keys) {
+			Iterator<Map.Entry<String, String>> it = keys.entrySet().iterator();
+
+			while(it.hasNext()) {
+				Map.Entry<String, String> e = it.next();
+				Integer version;
+
+				synchronized(versions) {
+					version = versions.get(e.getKey());
+				}
+				if(!e.getValue().equals(e.getKey() + ':' + version))
+					it.remove();
+			}
+		}
+	}
+
+	private String key_of(String packageName) {
+		synchronized(keys) {
+			return keys.get(packageName);
+		}
+	}
+
+	/*
+	 * queues packageName to be loaded, unless it already is
+	 */
+	private void load(final String packageName) {
+		synchronized(loading) {
+			if(missing.contains(packageName) || !loading.add(packageName))
+				return;
+		}
+
+		worker.execute(new Runnable() {
+			public void run() {
+				boolean loaded = load_now(packageName);
+
+				synchronized(loading) {
+					loading.remove(packageName);
+					if(!loaded)
+						missing.add(packageName);
+				}
+
+				if(loaded)
+					handle.post(new Runnable() {
+						public void run() {
+							bind(packageName);
+						}
+					});
+			}
+		});
+	}
+
+	/*
+	 * on the worker, reads the label and icon from disk or else asks the
+	 * PackageManager for them
+	 *
+	 * @return	false if packageName is not installed
+	 */
+	private boolean load_now(String packageName) {
+		Integer version;
+		String key;
+		String label;
+
+		synchronized(versions) {
+			version = versions.get(packageName);
+		}
+
+		try {
+			if(version == null)
+				version = pk.getPackageInfo(packageName, 0).versionCode;
+
+			key = packageName + ':' + version;
+			read_labels();
+
+			synchronized(labels) {
+				label = labels.get(key);
+			}
+			Bitmap icon = disk.get(key);
+
+			if(label == null || icon == null) {
+				ApplicationInfo info = pk.getApplicationInfo(packageName, 0);
+
+				label = info.loadLabel(pk).toString();
+				icon = scale(info.loadIcon(pk));
+				disk.put(key, icon);
+
+				synchronized(labels) {
+					labels.put(key, label);
+					labels_dirty = true;
+				}
+				schedule_save();
+			}
+			icons.put(key, icon);
+
+		} catch (NameNotFoundException e) {
+			return false;
+		}
+
+		synchronized(keys) {
+			keys.put(packageName, key);
+		}
+
+		return true;
+	}
+
+	/*
+	 * on the UI thread, shows what was loaded for packageName in every
+	 * view still waiting for it
+	 */
+	private void bind(String packageName) {
+		String key = key_of(packageName);
+		Bitmap icon = icons.get(key);
+		String label;
+
+		synchronized(labels) {
+			label = labels.get(key);
+		}
+
+		for(Map.Entry<ImageView, String> e : icon_views.entrySet())
+			if(icon != null && packageName.equals(e.getValue()))
+				e.getKey().setImageBitmap(icon);
+
+		for(Map.Entry<TextView, String> e : label_views.entrySet())
+			if(label != null && packageName.equals(e.getValue()))
+				e.getKey().setText(label);
+	}
+
+	private static Bitmap scale(Drawable drawable) {
+		Bitmap bitmap = Bitmap.createBitmap(ICON_SIZE, ICON_SIZE, Bitmap.Config.ARGB_8888);
+		Canvas canvas = new Canvas(bitmap);
+
+		drawable.setBounds(0, 0, ICON_SIZE, ICON_SIZE);
+		drawable.draw(canvas);
+
+		return bitmap;
+	}
+
+	/*
+	 * writes the labels once the worker has nothing else to do
+	 */
+	private void schedule_save() {
+		worker.execute(new Runnable() {
+			public void run() {
+				write_labels();
+			}
+		});
+	}
+
+	private void read_labels() {
+		BufferedReader in = null;
+		String line;
+
+		if(labels_read)
+			return;
+		labels_read = true;
+
+		try {
+			in = new BufferedReader(new FileReader(new File(dir, LABELS)));
+
+			synchronized(labels) {
+				while((line = in.readLine()) != null) {
+					int tab = line.indexOf('\t');
+
+					if(tab > 0)
+						labels.put(line.substring(0, tab), line.substring(tab + 1));
+				}
+			}
+		} catch (IOException e) {
+			//not saved yet
+		} finally {
+			BackupEngine.close(in);
+		}
+	}
+
+	private void write_labels() {
+		File file = new File(dir, LABELS);
+		File temp = new File(dir, LABELS + ".tmp");
+		BufferedWriter out = null;
+
+		synchronized(labels) {
+			if(!labels_dirty)
+				return;
+			labels_dirty = false;
+
+			try {
+				dir.mkdirs();
+				out = new BufferedWriter(new FileWriter(temp));
+
+				for(Map.Entry<String, String> e : labels.entrySet()) {
+					out.write(e.getKey() + '\t' + e.getValue().replace('\n', ' ').replace('\t', ' '));
+					out.newLine();
+				}
+				out.close();
+				out = null;
+
+				if(!temp.renameTo(file))
+					temp.delete();
+
+			} catch (IOException e) {
+				temp.delete();
+
+			} finally {
+				BackupEngine.close(out);
+			}
+		}
+	}
+}
@@ -18,31 +18,31 @@
 
 package com.nexes.manager;
 
+import java.io.File;
 import java.util.List;
 import java.util.ArrayList;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
 
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.Message;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.Window;
 import android.view.View.OnClickListener;
 import android.view.LayoutInflater;
+import android.app.AlertDialog;
 import android.app.ListActivity;
 import android.app.ProgressDialog;
-import android.content.pm.PackageManager;
+import android.content.DialogInterface;
+import android.content.SharedPreferences;
+import android.content.pm.PackageInfo;
 import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager.NameNotFoundException;
 import android.widget.TextView;
 import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.AdapterView;
+import android.widget.AdapterView.OnItemLongClickListener;
 import android.widget.ArrayAdapter;
 import android.widget.ImageView;
 import android.widget.Toast;
@@ -57,6 +57,11 @@ import android.widget.Toast;
  * The location that the backup will be placed is at 
  * <br>/sdcard/open manager/AppBackup/
  * <br>
+ * Backups are incremental, a BackupManifest in that directory tells which
+ * apps have not changed since they were last backed up. Those are skipped.
+ * When every version is kept, apps go into a BackupStore in that directory
+ * instead, and a long press on an app restores one of its versions.
+ * <br>
  * note: that /sdcard/open manager/ should already exists. This is check at start
  * up from the SettingsManager class.
  * 
@@ -64,32 +69,48 @@ import android.widget.Toast;
  */
 public class ApplicationBackup extends ListActivity {
 	private static final String BACKUP_LOC = "/sdcard/open manager/AppBackup/";
-	private static final int SET_PROGRESS = 0x00;
-	private static final int FINISH_PROGRESS = 0x01;
 	private static final int FLAG_UPDATED_SYS_APP = 0x80;
+	private static final long PROGRESS_INTERVAL = 250;	//ms between progress updates
+	private static final String PREFS_PRUNE = "backup_prune";
+	private static final String PREFS_VERSIONS = "backup_versions";
 	
 	private ArrayList<ApplicationInfo> appList;
+	private HashMap<String, Integer> versions;		//package name to versionCode
+	private HashSet<String> installed;				//every installed package
+	private CheckBox prune_bx;
+	private CheckBox versions_bx;
+	private BackupManifest manifest;
+	private BackupStore store;
+	private int unchanged;
 	private TextView appLabel;
-	private PackageManager pk;
+	private Button backup_bt;
+	private AppInfoCache app_info;
+	private TableView delegate;
 	private ProgressDialog dialog;
+	private BackupEngine engine;
+	private Handler mHandler = new Handler();
 	
 	/*
-	 * Our handler object that will update the GUI from 
-	 * our background thread. 
+	 * Reads the engine's counters on the GUI thread every PROGRESS_INTERVAL
+	 * until the backup is finished, however fast the apps are copied.
 	 */
-	private Handler mHandler = new Handler() {
-		public void handleMessage(Message msg) {
-			
-			switch(msg.what) {
-				case SET_PROGRESS:
-					dialog.setMessage((String)msg.obj);
-					break;
-				case FINISH_PROGRESS:
-					dialog.cancel();
-					Toast.makeText(ApplicationBackup.this, "Applications have been backed up", 
-									Toast.LENGTH_SHORT).show();
-					break;
+	private final Runnable progress = new Runnable() {
+		public void run() {
+			if(engine.isFinished()) {
+				int pruned = finish_backup();
+				
+				dialog.cancel();
+				Toast.makeText(ApplicationBackup.this, engine.getFailed() == 0 ?
+								engine.getDone() + " applications backed up, " + 
+								unchanged + " unchanged" + pruned_text(pruned) :
+								engine.getFailed() + " applications could not be backed up", 
+								Toast.LENGTH_SHORT).show();
+				return;
 			}
+			
+			dialog.setMessage(engine.getDone() + " out of " + engine.getTotal() + 
+							  " apps backed up");
+			mHandler.postDelayed(this, PROGRESS_INTERVAL);
 		}
 	};
 
@@ -100,106 +121,209 @@ public class ApplicationBackup extends ListActivity {
 		setContentView(R.layout.backup_layout);
 				
 		appLabel = (TextView)findViewById(R.id.backup_label);
-		Button button = (Button)findViewById(R.id.backup_button);
-		button.setOnClickListener(new OnClickListener() {
+		prune_bx = (CheckBox)findViewById(R.id.backup_prune_box);
+		versions_bx = (CheckBox)findViewById(R.id.backup_versions_box);
+		
+		SharedPreferences settings = getSharedPreferences(Main.PREFS_NAME, 0);
+		prune_bx.setChecked(settings.getBoolean(PREFS_PRUNE, false));
+		versions_bx.setChecked(settings.getBoolean(PREFS_VERSIONS, false));
+		store = new BackupStore(BACKUP_LOC);
+		
+		/* enabled once the apps are loaded */
+		backup_bt = (Button)findViewById(R.id.backup_button);
+		backup_bt.setEnabled(false);
+		backup_bt.setOnClickListener(new OnClickListener() {
 			@Override
 			public void onClick(View v) {
-				dialog = ProgressDialog.show(ApplicationBackup.this, "Backing up applications",
-						"", true, false);
-				
-				Thread thread = new Thread(new BackgroundWork());
-				thread.start();
+				start_backup();
 			}
 		});
 		
 		appList = new ArrayList<ApplicationInfo>();
-		pk = getPackageManager();
+		versions = new HashMap<String, Integer>();
+		installed = new HashSet<String>();
+		app_info = AppInfoCache.getInstance(this);
+		delegate = new TableView();
+		setListAdapter(delegate);
 		
-		get_downloaded_apps();
-		setListAdapter(new TableView());
+		appLabel.setText("Loading applications...");
+		app_info.loadPackages(new AppInfoCache.OnPackagesLoadedListener() {
+			public void onPackagesLoaded(List<PackageInfo> packages) {
+				if(!isFinishing())
+					get_downloaded_apps(packages);
+			}
+		});
+		
+		getListView().setOnItemLongClickListener(new OnItemLongClickListener() {
+			public boolean onItemLongClick(AdapterView<?> parent, View view, int position, long id) {
+				choose_version(appList.get(position));
+				return true;
+			}
+		});
 	}
 	
-	private void get_downloaded_apps() {
-		List<ApplicationInfo> all_apps = pk.getInstalledApplications(
-											PackageManager.GET_UNINSTALLED_PACKAGES);
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
 		
-		for(ApplicationInfo appInfo : all_apps) {
-			if((appInfo.flags & ApplicationInfo.FLAG_SYSTEM) == 0 && 
-					   (appInfo.flags & FLAG_UPDATED_SYS_APP) == 0 && appInfo.flags != 0)
-				
-				appList.add(appInfo);
-		}
+		/* the backup itself carries on, only its progress is no longer shown */
+		mHandler.removeCallbacks(progress);
+		if(dialog != null && dialog.isShowing())
+			dialog.dismiss();
 		
-		appLabel.setText("You have " +appList.size() + " downloaded apps");
+		SharedPreferences.Editor editor = getSharedPreferences(Main.PREFS_NAME, 0).edit();
+		editor.putBoolean(PREFS_PRUNE, prune_bx.isChecked());
+		editor.putBoolean(PREFS_VERSIONS, versions_bx.isChecked());
+		editor.commit();
 	}
-
-
+	
 	/*
-	 * This private inner class will perform the backup of applications
-	 * on a background thread, while updating the user via a message being
-	 * sent to our handler object.
+	 * copies the apps that changed since the last backup, the manifest is
+	 * told about each copy and saved on the copying thread as it completes
 	 */
-	private class BackgroundWork implements Runnable {
-		File dir = new File(BACKUP_LOC);
-		BufferedInputStream buff_in;
-		BufferedOutputStream buff_out;
-		int buffer = 256;
-		byte[] data;
-		
-		public BackgroundWork() {
-			data =  new byte[buffer];
+	private void start_backup() {
+		final HashMap<String, BackupManifest.Entry> changed = 
+								new HashMap<String, BackupManifest.Entry>();
+		ArrayList<String> sources = new ArrayList<String>();
+		boolean keep = versions_bx.isChecked();
+		
+		manifest = new BackupManifest(BACKUP_LOC);
+		manifest.load();
+		
+		for(ApplicationInfo info : appList) {
+			BackupManifest.Entry entry = BackupManifest.Entry.of(info.packageName,
+												versions.get(info.packageName), info.sourceDir);
 			
-			/*create dir if needed*/
-			File d = new File("/sdcard/open manager/");
-			if(!d.exists()) {
-				d.mkdir();
-				
-				//then create this directory
-				dir.mkdir();
-				
-			} else {
-				if(!dir.exists())
-					dir.mkdir();
+			if(keep ? !store.isCurrent(entry) : !manifest.isCurrent(entry)) {
+				changed.put(info.sourceDir, entry);
+				sources.add(info.sourceDir);
 			}
 		}
-
-		public void run() {
-			Message msg;
-			int len = appList.size();
-			int read = 0;
+		unchanged = appList.size() - sources.size();
+		
+		if(sources.isEmpty()) {
+			int pruned = finish_backup();
 			
-			for(int i = 0; i < len; i++) {
-				ApplicationInfo info = appList.get(i);
-				String source_dir = info.sourceDir;
-				String out_file = source_dir.substring(source_dir.lastIndexOf("/") + 1, source_dir.length());
-
-				try {
-					buff_in = new BufferedInputStream(new FileInputStream(source_dir));
-					buff_out = new BufferedOutputStream(new FileOutputStream(BACKUP_LOC + out_file));
-					
-					while((read = buff_in.read(data, 0, buffer)) != -1)
-						buff_out.write(data, 0, read);
-					
-					buff_out.flush();
-					buff_in.close();
-					buff_out.close();
-					
-					msg = new Message();
-					msg.what = SET_PROGRESS;
-					msg.obj = i + " out of " + len + " apps backed up";
-					mHandler.sendMessage(msg);
-					
-				} catch (FileNotFoundException e) {
-					e.printStackTrace();
-				} catch (IOException e) {
-					e.printStackTrace();
+			Toast.makeText(this, "All applications are already backed up" + pruned_text(pruned),
+						   Toast.LENGTH_SHORT).show();
+			return;
+		}
+		
+		dialog = ProgressDialog.show(ApplicationBackup.this, "Backing up applications",
+				"", true, false);
+		
+		if(keep) {
+			engine = new BackupEngine(BACKUP_LOC, BackupEngine.DEFAULT_THREADS) {
+				protected boolean copy(File source) {
+					return store.add(changed.get(source.getPath()), source, checkpoint);
+				}
+			};
+		} else {
+			engine = new BackupEngine(BACKUP_LOC, BackupEngine.DEFAULT_THREADS);
+			engine.setOnCopiedListener(new BackupEngine.OnCopiedListener() {
+				public void onCopied(String source) {
+					/* saved as each copy completes, so a backup that outlives
+					 * this activity still remembers what it copied */
+					manifest.put(changed.get(source));
+					manifest.save();
 				}
+			});
+		}
+		engine.start(sources);
+		mHandler.post(progress);
+	}
+	
+	/*
+	 * prunes the backup directory if asked to and saves the manifest
+	 * 
+	 * @return	how many old backups were removed
+	 */
+	private int finish_backup() {
+		int pruned = 0;
+		
+		if(prune_bx.isChecked())
+			pruned = manifest.prune(installed) + store.prune(installed);
+		
+		manifest.save();
+		return pruned;
+	}
+	
+	/*
+	 * lets the user pick one of the stored versions of info's app and
+	 * restores it next to the other backups, ready to be installed
+	 */
+	private void choose_version(final ApplicationInfo info) {
+		final int[] codes = store.getVersions(info.packageName);
+		CharSequence[] items = new CharSequence[codes.length];
+		
+		if(codes.length == 0) {
+			Toast.makeText(this, "No stored versions of " + info.packageName, 
+						   Toast.LENGTH_SHORT).show();
+			return;
+		}
+		
+		for(int i = 0; i < codes.length; i++)
+			items[i] = "Version code " + codes[i];
+		
+		AlertDialog.Builder builder = new AlertDialog.Builder(this);
+		builder.setTitle("Restore " + info.packageName);
+		builder.setItems(items, new DialogInterface.OnClickListener() {
+			public void onClick(DialogInterface d, int which) {
+				restore_version(info.packageName, codes[which]);
 			}
+		});
+		builder.create().show();
+	}
+	
+	private void restore_version(final String packageName, final int versionCode) {
+		final File dest = new File(BACKUP_LOC, packageName + "-" + versionCode + ".apk");
+		
+		dialog = ProgressDialog.show(this, "Restoring " + packageName, "", true, false);
+		new Thread(new Runnable() {
+			public void run() {
+				final boolean restored = store.restore(packageName, versionCode, dest, null);
+				
+				mHandler.post(new Runnable() {
+					public void run() {
+						if(dialog.isShowing())
+							dialog.dismiss();
+						
+						Toast.makeText(ApplicationBackup.this, restored ? 
+									   "Restored to " + dest.getPath() :
+									   "Version " + versionCode + " could not be restored",
+									   Toast.LENGTH_SHORT).show();
+					}
+				});
+			}
+		}).start();
+	}
+	
+	private static String pruned_text(int pruned) {
+		return pruned > 0 ? ", " + pruned + " old backups removed" : "";
+	}
+	
+	private void get_downloaded_apps(List<PackageInfo> all_packages) {
+		for(PackageInfo pkg : all_packages) {
+			ApplicationInfo appInfo = pkg.applicationInfo;
+			
+			installed.add(pkg.packageName);
+			if(appInfo == null)
+				continue;
 			
-			mHandler.sendEmptyMessage(FINISH_PROGRESS);
+			if((appInfo.flags & ApplicationInfo.FLAG_SYSTEM) == 0 && 
+					   (appInfo.flags & FLAG_UPDATED_SYS_APP) == 0 && appInfo.flags != 0) {
+				
+				appList.add(appInfo);
+				versions.put(pkg.packageName, pkg.versionCode);
+			}
 		}
+		
+		appLabel.setText("You have " +appList.size() + " downloaded apps");
+		delegate.notifyDataSetChanged();
+		backup_bt.setEnabled(true);
 	}
-	
+
+
 	private static class AppViewHolder {
 		TextView top_view;
 		TextView bottom_view;
@@ -232,15 +356,9 @@ public class ApplicationBackup extends ListActivity {
 				holder = (AppViewHolder) convertView.getTag();
 			}
 			
-			holder.top_view.setText(info.processName);
+			app_info.setLabel(holder.top_view, info.packageName, info.processName);
 			holder.bottom_view.setText(info.packageName);
-			
-			//this should not throw the exception
-			try {
-				holder.icon.setImageDrawable(pk.getApplicationIcon(info.packageName));
-			} catch (NameNotFoundException e) {
-				holder.icon.setImageResource(R.drawable.appicon);
-			}
+			app_info.setIcon(holder.icon, info.packageName, R.drawable.appicon);
 			
 			return convertView;
 		}
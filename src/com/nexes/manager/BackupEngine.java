@@ -0,0 +1,287 @@
+/*
+    Open Manager, an open source file manager for the Android system
+    Copyright (C) 2009, 2010  Joe Berria <nexesdevelopment@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.nexes.manager;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies a list of files, such as the APKs of installed applications,
+ * into one directory. A few files are copied at once, which keeps the
+ * internal flash reading while the sdcard is busy writing, and each one is
+ * moved with FileChannel.transferTo so no bytes go through the Java heap.
+ * <br>
+ * Progress is only kept in counters. A caller that wants to show it reads
+ * them at whatever rate suits it, however many files finish in between.
+ * The copies are bulk work of the destination's IoScheduler, so they give
+ * way to browsing and keep to the background copy speed.
+ * Like FileManager, this class knows nothing of the GUI.
+ * <br>
+ * Subclasses may store each file some other way by overriding copy.
+ */
+public class BackupEngine {
+	public static final int DEFAULT_THREADS = 2;
+	private static final long CHUNK = 1024 * 1024;	//bytes per transferTo call
+
+	private final File dest_dir;
+	private final IoScheduler io;
+	private final int threads;
+	private final AtomicInteger done = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final AtomicInteger remaining = new AtomicInteger();
+	private final AtomicLong bytes = new AtomicLong();
+	private volatile boolean cancelled = false;
+	private final Object pause = new Object();		//waited on to keep to the copy speed
+	private ExecutorService workers;
+	private OnCopiedListener listener;
+	private int total = 0;
+
+	/**
+	 * Asked by copy before every block and told about the bytes moved, it
+	 * stops on cancel, gives way to foreground work on the destination and
+	 * keeps to its copy speed.
+	 */
+	protected final FileManager.Checkpoint checkpoint = new FileManager.Checkpoint() {
+		public boolean proceed() {
+			try {
+				io.yieldToForeground();
+			} catch (InterruptedException e) {
+				cancelled = true;
+			}
+			return !cancelled;
+		}
+
+		public void bytesDone(long count) {
+			bytes.addAndGet(count);
+			hold_off(io.charge(count));
+		}
+
+		public void bytesCounted(long count) {
+			bytes.addAndGet(count);
+		}
+
+		public void fileDone() {
+		}
+	};
+
+	/**
+	 * Told on the copying thread about every file that was copied whole.
+	 */
+	public interface OnCopiedListener {
+		void onCopied(String source);
+	}
+
+	/**
+	 * @param destDir	the directory the files are copied into, it is made
+	 * 					if it does not exist
+	 * @param threads	how many files may be copied at once
+	 */
+	public BackupEngine(String destDir, int threads) {
+		dest_dir = new File(destDir);
+		io = IoScheduler.forPath(destDir);
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Must be set before start.
+	 */
+	public void setOnCopiedListener(OnCopiedListener l) {
+		listener = l;
+	}
+
+	/**
+	 * Starts copying sources in the background, each under its own name.
+	 * An engine can only be started once.
+	 */
+	public synchronized void start(List<String> sources) {
+		if(workers != null)
+			throw new IllegalStateException("backup already started");
+
+		total = sources.size();
+		remaining.set(total);
+		dest_dir.mkdirs();
+
+		workers = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, total)),
+											   new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "backup");
+				t.setPriority(Thread.NORM_PRIORITY - 1);
+				return t;
+			}
+		});
+
+		for(final String source : sources) {
+			workers.execute(new Runnable() {
+				public void run() {
+					try {
+						if(!cancelled && copy(new File(source))) {
+							if(listener != null)
+								listener.onCopied(source);
+							done.incrementAndGet();
+						} else {
+							failed.incrementAndGet();
+						}
+					} finally {
+						remaining.decrementAndGet();
+					}
+				}
+			});
+		}
+		workers.shutdown();
+	}
+
+	/**
+	 * Files not yet started are skipped, the ones being copied are
+	 * stopped and removed.
+	 */
+	public void cancel() {
+		synchronized(pause) {
+			cancelled = true;
+			pause.notifyAll();
+		}
+	}
+
+	public int getTotal() {
+		return total;
+	}
+
+	/**
+	 * @return	how many files have been copied
+	 */
+	public int getDone() {
+		return done.get();
+	}
+
+	/**
+	 * @return	how many files could not be copied, or were cancelled
+	 */
+	public int getFailed() {
+		return failed.get();
+	}
+
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	public boolean isFinished() {
+		return workers != null && remaining.get() == 0;
+	}
+
+	/**
+	 * Called on a worker thread for each source, copies it into the
+	 * destination directory. A copy that fails or is cancelled leaves
+	 * nothing behind.
+	 *
+	 * @return	true if source was copied whole
+	 */
+	protected boolean copy(File source) {
+		File target = new File(dest_dir, source.getName());
+		FileInputStream in = null;
+		FileOutputStream out = null;
+		boolean copied = false;
+
+		try {
+			in = new FileInputStream(source);
+			out = new FileOutputStream(target);
+
+			FileChannel from = in.getChannel();
+			copied = transfer(from, 0, from.size(), out.getChannel(), checkpoint);
+
+		} catch (IOException e) {
+			e.printStackTrace();
+
+		} finally {
+			close(in);
+			if(!close(out))
+				copied = false;
+		}
+
+		if(!copied)
+			target.delete();
+
+		return copied;
+	}
+
+	/**
+	 * Moves count bytes of from, starting at position, to the end of to
+	 * with FileChannel.transferTo.
+	 *
+	 * @param checkpoint	asked before every block, may be null
+	 * @return				false if checkpoint stopped the transfer
+	 */
+	static boolean transfer(FileChannel from, long position, long count, FileChannel to,
+							FileManager.Checkpoint checkpoint) throws IOException {
+		long end = position + count;
+
+		while(position < end) {
+			if(checkpoint != null && !checkpoint.proceed())
+				return false;
+
+			long moved = from.transferTo(position, Math.min(CHUNK, end - position), to);
+			if(moved <= 0)
+				throw new IOException("transfer stopped short at " + position);
+
+			position += moved;
+			if(checkpoint != null)
+				checkpoint.bytesDone(moved);
+		}
+
+		return true;
+	}
+
+	/*
+	 * waits ms to keep to the destination's copy speed, cancel cuts it short
+	 */
+	private void hold_off(long ms) {
+		long until = System.currentTimeMillis() + ms;
+		long left;
+
+		synchronized(pause) {
+			while(!cancelled && (left = until - System.currentTimeMillis()) > 0) {
+				try {
+					pause.wait(left);
+				} catch (InterruptedException e) {
+					cancelled = true;
+				}
+			}
+		}
+	}
+
+	static boolean close(Closeable stream) {
+		if(stream == null)
+			return true;
+
+		try {
+			stream.close();
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,233 @@
+/*
+    Open Manager, an open source file manager for the Android system
+    Copyright (C) 2009, 2010  Joe Berria <nexesdevelopment@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.nexes.manager;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * What is in a backup directory: for every package, the version, size and
+ * modification time of the APK it was copied from and the name of the
+ * copy. A package whose APK still matches its entry, and whose copy is
+ * still there, does not need to be copied again.
+ * <br>
+ * The manifest is a text file in the backup directory with one line per
+ * package, its fields separated by tabs. It is written to a temporary
+ * file first, so a backup cut short never leaves it half written.
+ */
+public class BackupManifest {
+	public static final String FILE_NAME = ".manifest";
+	private static final String HEADER = "# open manager backup manifest 1";
+
+	private final File dir;
+	private final File file;
+	private final LinkedHashMap<String, Entry> entries;
+	private final ArrayList<String> superseded;	//copies of older versions
+
+	/**
+	 * One backed up package.
+	 */
+	public static final class Entry {
+		public final String packageName;
+		public final int versionCode;
+		public final long size;
+		public final long modified;
+		public final String fileName;	//of the copy in the backup directory
+
+		public Entry(String packageName, int versionCode, long size, long modified,
+					 String fileName) {
+			this.packageName = packageName;
+			this.versionCode = versionCode;
+			this.size = size;
+			this.modified = modified;
+			this.fileName = fileName;
+		}
+
+		/**
+		 * @param apk	the installed APK, its size and time are read now
+		 */
+		public static Entry of(String packageName, int versionCode, String apk) {
+			File f = new File(apk);
+
+			return new Entry(packageName, versionCode, f.length(), f.lastModified(),
+							 f.getName());
+		}
+
+		boolean sameAs(Entry e) {
+			return versionCode == e.versionCode && size == e.size &&
+				   modified == e.modified && fileName.equals(e.fileName);
+		}
+	}
+
+	/**
+	 * @param dir	the backup directory, load must be called to read
+	 * 				what it already holds
+	 */
+	public BackupManifest(String dir) {
+		this.dir = new File(dir);
+		file = new File(dir, FILE_NAME);
+		entries = new LinkedHashMap<String, Entry>();
+		superseded = new ArrayList<String>();
+	}
+
+	/**
+	 * Reads the manifest. A missing manifest, or lines that can not be
+	 * read, only mean those packages are copied again.
+	 */
+	public synchronized void load() {
+		BufferedReader in = null;
+		String line;
+
+		entries.clear();
+		if(!file.exists())
+			return;
+
+		try {
+			in = new BufferedReader(new FileReader(file));
+
+			while((line = in.readLine()) != null) {
+				String[] f = line.split("\t");
+
+				if(line.startsWith("#") || f.length != 5)
+					continue;
+
+				try {
+					entries.put(f[0], new Entry(f[0], Integer.parseInt(f[1]),
+												Long.parseLong(f[2]), Long.parseLong(f[3]),
+												f[4]));
+				} catch (NumberFormatException e) {
+					continue;
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+
+		} finally {
+			if(in != null) {
+				try {
+					in.close();
+				} catch (IOException e) { }
+			}
+		}
+	}
+
+	/**
+	 * @return	true if entry was backed up as it is now and its copy is
+	 * 			still in the backup directory
+	 */
+	public synchronized boolean isCurrent(Entry entry) {
+		Entry e = entries.get(entry.packageName);
+
+		return e != null && e.sameAs(entry) &&
+			   new File(dir, e.fileName).length() == e.size;
+	}
+
+	/**
+	 * Records that entry has been copied. May be called from any thread.
+	 */
+	public synchronized void put(Entry entry) {
+		Entry old = entries.put(entry.packageName, entry);
+
+		if(old != null && !old.fileName.equals(entry.fileName))
+			superseded.add(old.fileName);
+	}
+
+	/**
+	 * Deletes the copies of packages that are not installed any more, and
+	 * of older versions replaced by a newer copy, and forgets them.
+	 *
+	 * @param installed	the package names of every installed package
+	 * @return			how many copies were deleted
+	 */
+	public synchronized int prune(Collection<String> installed) {
+		int deleted = 0;
+
+		for(Iterator<Entry> i = entries.values().iterator(); i.hasNext(); ) {
+			Entry e = i.next();
+
+			if(!installed.contains(e.packageName)) {
+				if(new File(dir, e.fileName).delete())
+					deleted++;
+				i.remove();
+			}
+		}
+
+		for(String name : superseded)
+			if(!is_in_use(name) && new File(dir, name).delete())
+				deleted++;
+		superseded.clear();
+
+		return deleted;
+	}
+
+	/**
+	 * @return	false if the manifest could not be written
+	 */
+	public synchronized boolean save() {
+		File temp = new File(dir, FILE_NAME + ".tmp");
+		BufferedWriter out = null;
+
+		try {
+			out = new BufferedWriter(new FileWriter(temp));
+			out.write(HEADER);
+			out.newLine();
+
+			for(Entry e : entries.values()) {
+				out.write(e.packageName + "\t" + e.versionCode + "\t" + e.size + "\t" +
+						  e.modified + "\t" + e.fileName);
+				out.newLine();
+			}
+			out.close();
+			out = null;
+
+			return temp.renameTo(file);
+
+		} catch (IOException e) {
+			e.printStackTrace();
+			temp.delete();
+			return false;
+
+		} finally {
+			if(out != null) {
+				try {
+					out.close();
+				} catch (IOException e) { }
+			}
+		}
+	}
+
+	/*
+	 * two packages may have had a copy of the same name over time
+	 */
+	private boolean is_in_use(String name) {
+		for(Entry e : entries.values())
+			if(e.fileName.equals(name))
+				return true;
+
+		return false;
+	}
+}
@@ -0,0 +1,590 @@
+/*
+    Open Manager, an open source file manager for the Android system
+    Copyright (C) 2009, 2010  Joe Berria <nexesdevelopment@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.nexes.manager;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+
+/**
+ * Keeps every backed up version of every app while storing each distinct
+ * piece of an APK once. An APK is a zip, so it is cut where its entries
+ * start: small entries are grouped, large ones stand alone, and each
+ * piece is stored under its SHA-1. A version is then only the list of its
+ * pieces, and a new version of an app costs the entries that changed.
+ * <br>
+ * Groups of small entries end after an entry whose name hashes to a
+ * fixed pattern, so an entry that grows or shrinks only changes the group
+ * it is in, not every group after it.
+ * <br>
+ * The store lives in the STORE_DIR of the backup directory:
+ * <br>chunks/ab/abcdef...	one file per piece, named by its SHA-1
+ * <br>versions/package/versionCode	the pieces of one version, in order
+ */
+public class BackupStore {
+	public static final String STORE_DIR = ".store";
+	private static final String HEADER = "# open manager backup version 1";
+
+	private static final int LARGE_ENTRY = 64 * 1024;		//stored on its own
+	private static final int MAX_GROUP = 256 * 1024;
+	private static final int GROUP_MASK = 0x7;				//about 8 entries a group
+	private static final int MAX_CENTRAL_DIR = 4 * 1024 * 1024;
+	private static final int MAX_EOCD_SEARCH = 0xffff + 22;
+	private static final long PLAIN_CHUNK = 1024 * 1024;	//for files that are no zip
+
+	private final File chunks;
+	private final File versions;
+
+	/**
+	 * @param backupDir	the directory the store is kept in
+	 */
+	public BackupStore(String backupDir) {
+		File root = new File(backupDir, STORE_DIR);
+
+		chunks = new File(root, "chunks");
+		versions = new File(root, "versions");
+	}
+
+	/**
+	 * @return	true if the store holds entry's version, taken from an APK
+	 * 			of the same size and time
+	 */
+	public boolean isCurrent(BackupManifest.Entry entry) {
+		BackupManifest.Entry stored = read_entry(version_file(entry.packageName, entry.versionCode));
+
+		return stored != null && stored.sameAs(entry);
+	}
+
+	/**
+	 * @return	the versionCodes stored for packageName, lowest first
+	 */
+	public int[] getVersions(String packageName) {
+		String[] names = new File(versions, packageName).list();
+		int count = 0;
+
+		if(names == null)
+			return new int[0];
+
+		int[] codes = new int[names.length];
+		for(String name : names) {
+			try {
+				codes[count] = Integer.parseInt(name);
+				count++;
+			} catch (NumberFormatException e) {
+				continue;
+			}
+		}
+
+		int[] found = new int[count];
+		System.arraycopy(codes, 0, found, 0, count);
+		Arrays.sort(found);
+
+		return found;
+	}
+
+	/**
+	 * Stores apk as the version entry describes, writing only the pieces
+	 * the store does not have yet.
+	 *
+	 * @param checkpoint	asked before every block, may be null
+	 * @return				false if apk could not be stored, or checkpoint
+	 * 						stopped it
+	 */
+	public boolean add(BackupManifest.Entry entry, File apk, FileManager.Checkpoint checkpoint) {
+		RandomAccessFile in = null;
+		StringBuilder list = new StringBuilder();
+
+		try {
+			in = new RandomAccessFile(apk, "r");
+			long[] ends = boundaries(in);
+			FileChannel channel = in.getChannel();
+			MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+			byte[] buffer = BufferPool.obtain(BufferPool.COPY, apk.getPath(), -1);
+			long start = 0;
+
+			try {
+				for(long end : ends) {
+					if(checkpoint != null && !checkpoint.proceed())
+						return false;
+
+					String hash = hash(in, start, end - start, sha1, buffer);
+					File chunk = chunk_file(hash);
+
+					if(chunk.length() != end - start &&
+					   !write_chunk(channel, start, end - start, chunk, checkpoint))
+						return false;
+
+					list.append(hash).append('\t').append(end - start).append('\n');
+					start = end;
+				}
+			} finally {
+				BufferPool.release(buffer);
+			}
+
+			if(start != entry.size)
+				return false;
+
+			return write_version(entry, list);
+
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+
+		} catch (NoSuchAlgorithmException e) {
+			return false;
+
+		} finally {
+			BackupEngine.close(in);
+		}
+	}
+
+	/**
+	 * Puts a stored version back together as an APK.
+	 *
+	 * @param dest			the APK to write, removed again on failure
+	 * @param checkpoint	asked before every block, may be null
+	 * @return				false if the version is not stored whole, or
+	 * 						checkpoint stopped the restore
+	 */
+	public boolean restore(String packageName, int versionCode, File dest,
+						   FileManager.Checkpoint checkpoint) {
+		File version = version_file(packageName, versionCode);
+		BackupManifest.Entry entry = read_entry(version);
+		FileOutputStream out = null;
+		BufferedReader in = null;
+		boolean restored = false;
+		long size = 0;
+		String line;
+
+		if(entry == null)
+			return false;
+
+		try {
+			in = new BufferedReader(new FileReader(version));
+			out = new FileOutputStream(dest);
+			FileChannel to = out.getChannel();
+
+			/* the header and the entry line come first */
+			in.readLine();
+			in.readLine();
+
+			while((line = in.readLine()) != null) {
+				String[] f = line.split("\t");
+				if(f.length != 2)
+					throw new IOException("damaged version list");
+
+				File chunk = chunk_file(f[0]);
+				long length = Long.parseLong(f[1]);
+
+				if(chunk.length() != length)
+					throw new IOException("missing or damaged piece " + f[0]);
+
+				FileInputStream piece = new FileInputStream(chunk);
+				try {
+					if(!BackupEngine.transfer(piece.getChannel(), 0, length, to, checkpoint))
+						return false;
+				} finally {
+					piece.close();
+				}
+				size += length;
+			}
+			restored = size == entry.size;
+
+		} catch (IOException e) {
+			e.printStackTrace();
+
+		} catch (NumberFormatException e) {
+			e.printStackTrace();
+
+		} finally {
+			BackupEngine.close(in);
+			if(!BackupEngine.close(out))
+				restored = false;
+			if(!restored)
+				dest.delete();
+		}
+
+		return restored;
+	}
+
+	/**
+	 * Forgets every version of the packages that are not installed any
+	 * more, and deletes the pieces no version uses.
+	 *
+	 * @param installed	the package names of every installed package
+	 * @return			how many versions were removed
+	 */
+	public synchronized int prune(Collection<String> installed) {
+		String[] packages = versions.list();
+		int removed = 0;
+
+		if(packages == null)
+			return 0;
+
+		for(String name : packages) {
+			if(installed.contains(name))
+				continue;
+
+			File dir = new File(versions, name);
+			String[] codes = dir.list();
+
+			if(codes != null)
+				for(String code : codes)
+					if(new File(dir, code).delete())
+						removed++;
+			dir.delete();
+		}
+
+		if(removed > 0)
+			collect_garbage();
+
+		return removed;
+	}
+
+	/*
+	 * deletes every piece that is not in any version
+	 */
+	private void collect_garbage() {
+		HashSet<String> used = new HashSet<String>();
+		String[] packages = versions.list();
+		String[] dirs = chunks.list();
+
+		if(packages == null || dirs == null)
+			return;
+
+		for(String name : packages) {
+			File dir = new File(versions, name);
+			String[] codes = dir.list();
+
+			if(codes != null)
+				for(String code : codes)
+					if(!read_chunks(new File(dir, code), used))
+						return;		//never delete what a version we can not read may use
+		}
+
+		for(String d : dirs) {
+			File dir = new File(chunks, d);
+			String[] names = dir.list();
+
+			if(names != null)
+				for(String name : names)
+					if(!used.contains(name))
+						new File(dir, name).delete();
+		}
+	}
+
+	/*
+	 * the end offset of every piece of file, in order
+	 */
+	static long[] boundaries(RandomAccessFile file) throws IOException {
+		long length = file.length();
+		long[] entries = entry_offsets(file, length);
+		ArrayList<Long> ends = new ArrayList<Long>();
+
+		if(entries == null) {
+			for(long end = PLAIN_CHUNK; end < length; end += PLAIN_CHUNK)
+				ends.add(end);
+			ends.add(length);
+			return to_array(ends);
+		}
+
+		/* entries[] holds pairs of local header offset and name hash,
+		 * ending with the central directory's offset */
+		int count = entries.length / 2 - 1;
+		long group = entries[0];
+
+		if(group > 0)
+			ends.add(group);
+
+		for(int i = 0; i < count; i++) {
+			long start = entries[2 * i];
+			long end = entries[2 * i + 2];
+
+			if(end - start >= LARGE_ENTRY) {
+				if(group < start)
+					ends.add(start);
+				ends.add(end);
+				group = end;
+
+			} else if(end - group >= MAX_GROUP || (entries[2 * i + 1] & GROUP_MASK) == 0) {
+				ends.add(end);
+				group = end;
+			}
+		}
+
+		long central = entries[2 * count];
+		if(group < central)
+			ends.add(central);
+		if(central < length)
+			ends.add(length);
+
+		return to_array(ends);
+	}
+
+	/*
+	 * reads the zip's central directory, returns null if file is no zip
+	 * this can cut into pieces
+	 */
+	private static long[] entry_offsets(RandomAccessFile file, long length) throws IOException {
+		int tail_len = (int)Math.min(length, MAX_EOCD_SEARCH);
+		byte[] tail = new byte[tail_len];
+		int eocd = -1;
+
+		file.seek(length - tail_len);
+		file.readFully(tail);
+
+		for(int i = tail_len - 22; i >= 0; i--) {
+			if(int_at(tail, i) == 0x06054b50) {
+				eocd = i;
+				break;
+			}
+		}
+		if(eocd < 0)
+			return null;
+
+		long cd_size = int_at(tail, eocd + 12) & 0xffffffffL;
+		long cd_offset = int_at(tail, eocd + 16) & 0xffffffffL;
+
+		if(cd_size > MAX_CENTRAL_DIR || cd_offset + cd_size > length - tail_len + eocd)
+			return null;
+
+		byte[] cd = new byte[(int)cd_size];
+		file.seek(cd_offset);
+		file.readFully(cd);
+
+		ArrayList<long[]> found = new ArrayList<long[]>();
+		int pos = 0;
+
+		while(pos + 46 <= cd.length && int_at(cd, pos) == 0x02014b50) {
+			int name_len = short_at(cd, pos + 28);
+			int extra_len = short_at(cd, pos + 30);
+			int comment_len = short_at(cd, pos + 32);
+			long offset = int_at(cd, pos + 42) & 0xffffffffL;
+			int hash = 0;
+
+			if(pos + 46 + name_len > cd.length || offset >= cd_offset)
+				return null;
+
+			for(int i = 0; i < name_len; i++)
+				hash = 31 * hash + cd[pos + 46 + i];
+
+			found.add(new long[] {offset, hash});
+			pos += 46 + name_len + extra_len + comment_len;
+		}
+
+		if(found.isEmpty())
+			return null;
+
+		long[][] sorted = found.toArray(new long[found.size()][]);
+		Arrays.sort(sorted, new Comparator<long[]>() {
+			public int compare(long[] a, long[] b) {
+				return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+			}
+		});
+
+		long[] entries = new long[2 * sorted.length + 2];
+		for(int i = 0; i < sorted.length; i++) {
+			entries[2 * i] = sorted[i][0];
+			entries[2 * i + 1] = sorted[i][1];
+		}
+		entries[2 * sorted.length] = cd_offset;
+
+		return entries;
+	}
+
+	private static String hash(RandomAccessFile in, long start, long length,
+							   MessageDigest sha1, byte[] buffer) throws IOException {
+		in.seek(start);
+
+		while(length > 0) {
+			int read = in.read(buffer, 0, (int)Math.min(buffer.length, length));
+			if(read < 0)
+				throw new IOException("file shrank while being stored");
+
+			sha1.update(buffer, 0, read);
+			length -= read;
+		}
+
+		byte[] digest = sha1.digest();
+		StringBuilder hex = new StringBuilder(digest.length * 2);
+		for(byte b : digest) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+
+		return hex.toString();
+	}
+
+	/*
+	 * writes the piece under a temporary name first, so a piece that is
+	 * there is always whole. Another thread storing the same piece at the
+	 * same time is harmless.
+	 */
+	private boolean write_chunk(FileChannel from, long start, long length, File chunk,
+								FileManager.Checkpoint checkpoint) throws IOException {
+		File temp = new File(chunk.getPath() + "." + Thread.currentThread().getId());
+		FileOutputStream out = null;
+		boolean written = false;
+
+		chunk.getParentFile().mkdirs();
+		try {
+			out = new FileOutputStream(temp);
+			written = BackupEngine.transfer(from, start, length, out.getChannel(), checkpoint);
+		} finally {
+			if(!BackupEngine.close(out))
+				written = false;
+		}
+
+		if(written && !temp.renameTo(chunk))
+			written = chunk.length() == length;
+
+		temp.delete();
+		return written;
+	}
+
+	private boolean write_version(BackupManifest.Entry entry, StringBuilder list) {
+		File file = version_file(entry.packageName, entry.versionCode);
+		File temp = new File(file.getPath() + ".tmp");
+		BufferedWriter out = null;
+
+		file.getParentFile().mkdirs();
+		try {
+			out = new BufferedWriter(new FileWriter(temp));
+			out.write(HEADER);
+			out.newLine();
+			out.write(entry.packageName + "\t" + entry.versionCode + "\t" + entry.size + "\t" +
+					  entry.modified + "\t" + entry.fileName);
+			out.newLine();
+			out.write(list.toString());
+			out.close();
+			out = null;
+
+			file.delete();
+			return temp.renameTo(file);
+
+		} catch (IOException e) {
+			e.printStackTrace();
+			temp.delete();
+			return false;
+
+		} finally {
+			BackupEngine.close(out);
+		}
+	}
+
+	private static BackupManifest.Entry read_entry(File version) {
+		BufferedReader in = null;
+
+		if(!version.exists())
+			return null;
+
+		try {
+			in = new BufferedReader(new FileReader(version));
+
+			String header = in.readLine();
+			String line = in.readLine();
+			if(!HEADER.equals(header) || line == null)
+				return null;
+
+			String[] f = line.split("\t");
+			if(f.length != 5)
+				return null;
+
+			return new BackupManifest.Entry(f[0], Integer.parseInt(f[1]), Long.parseLong(f[2]),
+											Long.parseLong(f[3]), f[4]);
+
+		} catch (IOException e) {
+			return null;
+
+		} catch (NumberFormatException e) {
+			return null;
+
+		} finally {
+			BackupEngine.close(in);
+		}
+	}
+
+	/*
+	 * adds the pieces of version to used
+	 *
+	 * @return	false if the version could not be read
+	 */
+	private static boolean read_chunks(File version, HashSet<String> used) {
+		BufferedReader in = null;
+		String line;
+
+		try {
+			in = new BufferedReader(new FileReader(version));
+			in.readLine();
+			in.readLine();
+
+			while((line = in.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				used.add(tab < 0 ? line : line.substring(0, tab));
+			}
+			return true;
+
+		} catch (IOException e) {
+			return false;
+
+		} finally {
+			BackupEngine.close(in);
+		}
+	}
+
+	private File version_file(String packageName, int versionCode) {
+		return new File(new File(versions, packageName), String.valueOf(versionCode));
+	}
+
+	private File chunk_file(String hash) {
+		return new File(new File(chunks, hash.substring(0, 2)), hash);
+	}
+
+	private static long[] to_array(ArrayList<Long> list) {
+		long[] a = new long[list.size()];
+
+		for(int i = 0; i < a.length; i++)
+			a[i] = list.get(i);
+
+		return a;
+	}
+
+	private static int int_at(byte[] b, int off) {
+		return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 |
+			   (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+	}
+
+	private static int short_at(byte[] b, int off) {
+		return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8;
+	}
+}
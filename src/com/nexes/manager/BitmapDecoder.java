@@ -0,0 +1,155 @@
+/*
+    Open Manager, an open source file manager for the Android system
+    Copyright (C) 2009, 2010  Joe Berria <nexesdevelopment@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.nexes.manager;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Decodes images straight to thumbnail size. The bounds of the image are
+ * read first without allocating any pixels, then the image is decoded once
+ * with the largest power of two sample size that still leaves it at least
+ * as big as the requested size, and finally scaled down to fit. This keeps
+ * a small image from being decoded at full resolution only to be thrown away.
+ * When a BitmapPool is given the result is drawn into a pooled bitmap of
+ * exactly the requested size instead of a newly allocated one.
+ */
+public final class BitmapDecoder {
+	private static final int TEMP_STORAGE = 16 * 1024;
+
+	/* the decoder's scratch buffer, one per decoding thread */
+	private static final ThreadLocal<byte[]> temp_storage = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {
+			return new byte[TEMP_STORAGE];
+		}
+	};
+
+	private BitmapDecoder() {
+	}
+
+	/**
+	 * @param width		width of the encoded image
+	 * @param height	height of the encoded image
+	 * @param reqWidth	width of the thumbnail
+	 * @param reqHeight	height of the thumbnail
+	 * @return			the power of two to pass as inSampleSize
+	 */
+	public static int computeSampleSize(int width, int height, int reqWidth, int reqHeight) {
+		int sample = 1;
+
+		while(width / (sample * 2) >= reqWidth && height / (sample * 2) >= reqHeight)
+			sample *= 2;
+
+		return sample;
+	}
+
+	/**
+	 * Decodes the image at path so it fits within reqWidth x reqHeight.
+	 *
+	 * @return the thumbnail, or null if path is not an image that can be decoded
+	 */
+	public static Bitmap decodeFile(String path, int reqWidth, int reqHeight) {
+		return decodeFile(path, reqWidth, reqHeight, null);
+	}
+
+	/**
+	 * Decodes the image at path and, if pool is not null, draws it into a
+	 * reqWidth x reqHeight bitmap taken from the pool.
+	 */
+	public static Bitmap decodeFile(String path, int reqWidth, int reqHeight, BitmapPool pool) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(path, options);
+		if(options.outWidth <= 0 || options.outHeight <= 0)
+			return null;
+
+		options.inJustDecodeBounds = false;
+		options.inTempStorage = temp_storage.get();
+		options.inSampleSize = computeSampleSize(options.outWidth, options.outHeight,
+												 reqWidth, reqHeight);
+
+		return finish(BitmapFactory.decodeFile(path, options), reqWidth, reqHeight, pool);
+	}
+
+	/**
+	 * Same as decodeFile for an image that is already in memory, such as
+	 * a thumbnail embedded in another file.
+	 */
+	public static Bitmap decodeByteArray(byte[] data, int offset, int length,
+										 int reqWidth, int reqHeight, BitmapPool pool) {
+		BitmapFactory.Options options = decodeBounds(data, offset, length);
+		if(options.outWidth <= 0 || options.outHeight <= 0)
+			return null;
+
+		options.inJustDecodeBounds = false;
+		options.inTempStorage = temp_storage.get();
+		options.inSampleSize = computeSampleSize(options.outWidth, options.outHeight,
+												 reqWidth, reqHeight);
+
+		return finish(BitmapFactory.decodeByteArray(data, offset, length, options),
+					  reqWidth, reqHeight, pool);
+	}
+
+	/**
+	 * Reads only the header of an image in memory.
+	 *
+	 * @return options with outWidth and outHeight set, both are -1 if
+	 * 		   the data is not an image
+	 */
+	public static BitmapFactory.Options decodeBounds(byte[] data, int offset, int length) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(data, offset, length, options);
+		return options;
+	}
+
+	private static Bitmap finish(Bitmap sampled, int reqWidth, int reqHeight, BitmapPool pool) {
+		if(pool != null)
+			return pool.fit(sampled, reqWidth, reqHeight);
+
+		return scale_to_fit(sampled, reqWidth, reqHeight);
+	}
+
+	/*
+	 * scales keeping the aspect ratio and recycles the sampled bitmap
+	 * if a new one had to be made.
+	 */
+	static Bitmap scale_to_fit(Bitmap sampled, int reqWidth, int reqHeight) {
+		if(sampled == null)
+			return null;
+
+		int width = sampled.getWidth();
+		int height = sampled.getHeight();
+
+		if(width <= reqWidth && height <= reqHeight)
+			return sampled;
+
+		float scale = Math.min((float)reqWidth / width, (float)reqHeight / height);
+		Bitmap scaled = Bitmap.createScaledBitmap(sampled,
+												  Math.max(1, Math.round(width * scale)),
+												  Math.max(1, Math.round(height * scale)),
+												  true);
+		if(scaled != sampled)
+			sampled.recycle();
+
+		return scaled;
+	}
+}
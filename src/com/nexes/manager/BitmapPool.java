@@ -0,0 +1,115 @@
+/*
+    Open Manager, an open source file manager for the Android system
+    Copyright (C) 2009, 2010  Joe Berria <nexesdevelopment@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.nexes.manager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * A pool of mutable bitmaps, grouped by width, height and config, that
+ * thumbnails are drawn into. A bitmap that is no longer cached or shown is
+ * handed back to the pool and reused for the next thumbnail, so scrolling
+ * a folder does not leave a trail of pixel buffers for the GC to collect.
+ */
+public class BitmapPool {
+	private final HashMap<String, ArrayList<Bitmap>> pool;
+	private final int max_per_size;
+	private final Paint paint;
+
+	/**
+	 * @param maxPerSize	how many free bitmaps of one size are kept
+	 */
+	public BitmapPool(int maxPerSize) {
+		max_per_size = maxPerSize;
+		pool = new HashMap<String, ArrayList<Bitmap>>();
+		paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+	}
+
+	/**
+	 * @return a cleared bitmap from the pool, or a new one if the pool is empty
+	 */
+	public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+		ArrayList<Bitmap> free = pool.get(get_key(width, height, config));
+
+		if(free != null && !free.isEmpty()) {
+			Bitmap bitmap = free.remove(free.size() - 1);
+
+			bitmap.eraseColor(0);
+			return bitmap;
+		}
+
+		return Bitmap.createBitmap(width, height, config);
+	}
+
+	/**
+	 * Gives a bitmap back to the pool. The caller must not use it afterwards.
+	 */
+	public synchronized void put(Bitmap bitmap) {
+		if(bitmap == null || bitmap.isRecycled() || !bitmap.isMutable())
+			return;
+
+		String key = get_key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+		ArrayList<Bitmap> free = pool.get(key);
+
+		if(free == null) {
+			free = new ArrayList<Bitmap>(max_per_size);
+			pool.put(key, free);
+		}
+
+		if(free.size() < max_per_size)
+			free.add(bitmap);
+		else
+			bitmap.recycle();
+	}
+
+	/**
+	 * Draws source centred into a pooled width x height bitmap, keeping its
+	 * aspect ratio, and recycles source.
+	 *
+	 * @return the pooled bitmap, or null if source was null
+	 */
+	public Bitmap fit(Bitmap source, int width, int height) {
+		if(source == null)
+			return null;
+
+		Bitmap target = get(width, height, Bitmap.Config.ARGB_8888);
+		int src_w = source.getWidth();
+		int src_h = source.getHeight();
+		float scale = Math.min((float)width / src_w, (float)height / src_h);
+		int w = Math.max(1, Math.round(src_w * scale));
+		int h = Math.max(1, Math.round(src_h * scale));
+
+		Rect dest = new Rect((width - w) / 2, (height - h) / 2, 
+							 (width + w) / 2, (height + h) / 2);
+
+		new Canvas(target).drawBitmap(source, null, dest, paint);
+
+		source.recycle();
+		return target;
+	}
+
+	private static String get_key(int width, int height, Bitmap.Config config) {
+		return width + "x" + height + ":" + config;
+	}
+}
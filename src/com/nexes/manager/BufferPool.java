@@ -0,0 +1,234 @@
+/*
+    Open Manager, an open source file manager for the Android system
+    Copyright (C) 2009, 2010  Joe Berria <nexesdevelopment@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.nexes.manager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The byte buffers of every stream loop. Buffers come in power of two
+ * sizes from MIN_SIZE to MAX_SIZE and are kept for reuse once released,
+ * up to MAX_POOLED bytes in all.
+ * <br>
+ * The size handed out is tuned for each kind of work on each device, as
+ * flash cards differ a lot in the block size they like best, and a zip
+ * is bound by deflate long before the card. Every large transfer reports
+ * its throughput, the size with the best throughput so far is used, and
+ * every few transfers one of its neighbours is tried again in case the
+ * card behaves differently from how it did.
+ */
+public final class BufferPool {
+	public static final int COPY = 0;		//plain copies and backups
+	public static final int DEFLATE = 1;	//writing zip archives
+	public static final int INFLATE = 2;	//extracting zip archives
+	public static final int HASH = 3;		//reading files to checksum them
+
+	private static final int MIN_SHIFT = 13;			//8KB
+	private static final int MAX_SHIFT = 18;			//256KB
+	private static final int DEFAULT_SHIFT = 16;		//64KB
+	private static final int MAX_POOLED = 512 * 1024;	//bytes kept for reuse
+	private static final long MIN_SAMPLE = 256 * 1024;	//smaller transfers say little
+	private static final int PROBE_EVERY = 4;			//samples between probes
+	private static final double ALPHA = 0.3;
+
+	public static final int MIN_SIZE = 1 << MIN_SHIFT;
+	public static final int MAX_SIZE = 1 << MAX_SHIFT;
+
+	private static final ArrayList<ArrayList<byte[]>> free = new ArrayList<ArrayList<byte[]>>();
+	private static final HashMap<String, Tuning> tunings = new HashMap<String, Tuning>();
+	private static int pooled = 0;
+
+	static {
+		for(int i = MIN_SHIFT; i <= MAX_SHIFT; i++)
+			free.add(new ArrayList<byte[]>());
+	}
+
+	/*
+	 * what has been measured for one kind of work on one device
+	 */
+	private static final class Tuning {
+		final double[] rates = new double[MAX_SHIFT - MIN_SHIFT + 1];	//bytes per ms, 0 if unknown
+		int shift = DEFAULT_SHIFT;
+		int samples = 0;
+
+		void sample(int size_shift, long bytes, long nanos) {
+			int i = size_shift - MIN_SHIFT;
+			double rate = bytes * 1000000.0 / nanos;
+
+			rates[i] = rates[i] == 0 ? rate : rates[i] + ALPHA * (rate - rates[i]);
+
+			int best = DEFAULT_SHIFT - MIN_SHIFT;
+			for(int j = 0; j < rates.length; j++)
+				if(rates[j] > rates[best])
+					best = j;
+
+			/* alternate probing above and below the best size */
+			if(++samples % PROBE_EVERY == 0) {
+				int probe = (samples / PROBE_EVERY) % 2 == 0 ? best - 1 : best + 1;
+
+				if(probe < 0 || probe >= rates.length)
+					probe = 2 * best - probe;
+				best = probe;
+			}
+
+			shift = best + MIN_SHIFT;
+		}
+	}
+
+	private BufferPool() {
+	}
+
+	/**
+	 * @param kind		COPY, DEFLATE, INFLATE or HASH
+	 * @param path		the file written to, or read for HASH, picks the device
+	 * @return			the buffer size to use for that kind of work there
+	 */
+	public static int getSize(int kind, String path) {
+		synchronized(tunings) {
+			return 1 << tuning(kind, path).shift;
+		}
+	}
+
+	/**
+	 * @param length	how many bytes will be moved, a smaller buffer is
+	 * 					returned for a small file. Negative if not known.
+	 * @return			a buffer of at least MIN_SIZE bytes, give it back
+	 * 					with release once done
+	 */
+	public static byte[] obtain(int kind, String path, long length) {
+		int shift = shift_of(getSize(kind, path));
+
+		while(shift > MIN_SHIFT && length >= 0 && (1L << (shift - 1)) >= length)
+			shift--;
+
+		ArrayList<byte[]> list = free.get(shift - MIN_SHIFT);
+		synchronized(free) {
+			int last = list.size() - 1;
+
+			if(last >= 0) {
+				pooled -= 1 << shift;
+				return list.remove(last);
+			}
+		}
+
+		return new byte[1 << shift];
+	}
+
+	/**
+	 * Keeps buffer for the next caller, unless enough are kept already.
+	 */
+	public static void release(byte[] buffer) {
+		int shift = shift_of(buffer.length);
+
+		if(buffer.length != 1 << shift)
+			return;
+
+		synchronized(free) {
+			if(pooled + buffer.length <= MAX_POOLED) {
+				free.get(shift - MIN_SHIFT).add(buffer);
+				pooled += buffer.length;
+			}
+		}
+	}
+
+	/**
+	 * Tells the pool how fast a transfer went.
+	 *
+	 * @param size		the length of the buffer it used
+	 * @param bytes		how many bytes it moved
+	 * @param nanos		the time spent reading and writing them, not
+	 * 					counting any pauses
+	 */
+	public static void report(int kind, String path, int size, long bytes, long nanos) {
+		if(bytes < MIN_SAMPLE || nanos <= 0)
+			return;
+
+		synchronized(tunings) {
+			tuning(kind, path).sample(shift_of(size), bytes, nanos);
+		}
+	}
+
+	/**
+	 * Moves everything from in to out through a pooled buffer, and reports
+	 * how fast it went. Neither stream is closed.
+	 *
+	 * @param kind			COPY, DEFLATE or INFLATE
+	 * @param path			the file written to
+	 * @param length		the bytes expected, or -1
+	 * @param checkpoint	asked before every block, may be null
+	 * @return				false if checkpoint stopped the transfer
+	 */
+	public static boolean copy(InputStream in, OutputStream out, int kind, String path,
+							   long length, FileManager.Checkpoint checkpoint) throws IOException {
+		byte[] data = obtain(kind, path, length);
+		long bytes = 0;
+		long nanos = 0;
+		boolean done = true;
+		int read;
+
+		try {
+			while(true) {
+				if(checkpoint != null && !checkpoint.proceed()) {
+					done = false;
+					break;
+				}
+
+				long start = System.nanoTime();
+				if((read = in.read(data, 0, data.length)) == -1)
+					break;
+
+				out.write(data, 0, read);
+				nanos += System.nanoTime() - start;
+				bytes += read;
+
+				if(checkpoint != null)
+					checkpoint.bytesDone(read);
+			}
+		} finally {
+			release(data);
+		}
+
+		report(kind, path, data.length, bytes, nanos);
+		return done;
+	}
+
+	private static Tuning tuning(int kind, String path) {
+		String key = kind + MountTable.getMountPoint(path);
+		Tuning t = tunings.get(key);
+
+		if(t == null) {
+			t = new Tuning();
+			tunings.put(key, t);
+		}
+
+		return t;
+	}
+
+	private static int shift_of(int size) {
+		int shift = MIN_SHIFT;
+
+		while(shift < MAX_SHIFT && (1 << shift) < size)
+			shift++;
+
+		return shift;
+	}
+}
@@ -0,0 +1,537 @@
+/*
+    Open Manager, an open source file manager for the Android system
+    Copyright (C) 2009, 2010  Joe Berria <nexesdevelopment@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.nexes.manager;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Writes and checks manifests, the checksum of every file in a folder.
+ * A manifest is a text file at the top of the folder with one
+ * "checksum  relative/path" line per file, the format md5sum and
+ * sha256sum read and write, named after its algorithm: MD5SUMS,
+ * SHA1SUMS, SHA256SUMS or CRC32SUMS.
+ * <br>
+ * A few files are read at once, so one thread hashing keeps the CPU busy
+ * while another waits on the card. Each file is streamed through a
+ * BufferPool buffer, tuned like the copies, and never held in memory.
+ * <br>
+ * Writing a manifest takes the checksums of unchanged files from the
+ * HashCache. Checking one always reads every file again, as that is the
+ * point of checking. Like FileManager, this class knows nothing of the GUI.
+ */
+public class ChecksumEngine {
+	public static final String MD5 = "MD5";
+	public static final String SHA1 = "SHA-1";
+	public static final String SHA256 = "SHA-256";
+	public static final String CRC32 = "CRC32";
+	public static final int DEFAULT_THREADS = 2;
+
+	private static final String[] ALGORITHMS = {MD5, SHA1, SHA256, CRC32};
+	private static final String[] MANIFESTS = {"MD5SUMS", "SHA1SUMS", "SHA256SUMS", "CRC32SUMS"};
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final int MAX_LISTED = 20;		//paths named in a report
+	private static final String UNREADABLE = "";	//in place of a checksum
+
+	private final String algorithm;
+	private final int threads;
+	private volatile boolean stopped = false;
+
+	private int ok = 0;
+	private final ArrayList<String> differ = new ArrayList<String>();
+	private final ArrayList<String> missing = new ArrayList<String>();
+	private final ArrayList<String> unreadable = new ArrayList<String>();
+	private int malformed = 0;
+
+	/**
+	 * @param algorithm	MD5, SHA1, SHA256 or CRC32
+	 * @param threads	how many files may be read at once
+	 */
+	public ChecksumEngine(String algorithm, int threads) {
+		if(manifestName(algorithm) == null)
+			throw new IllegalArgumentException("unknown algorithm " + algorithm);
+
+		this.algorithm = algorithm;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * @return	the file name of a manifest made with algorithm, null if
+	 * 			the algorithm is not known
+	 */
+	public static String manifestName(String algorithm) {
+		for(int i = 0; i < ALGORITHMS.length; i++)
+			if(ALGORITHMS[i].equals(algorithm))
+				return MANIFESTS[i];
+
+		return null;
+	}
+
+	/**
+	 * @return	the algorithm of the manifest called name, null if name
+	 * 			is not a manifest's
+	 */
+	public static String algorithmOf(String name) {
+		for(int i = 0; i < MANIFESTS.length; i++)
+			if(MANIFESTS[i].equals(name))
+				return ALGORITHMS[i];
+
+		return null;
+	}
+
+	/**
+	 * Reads file on the calling thread.
+	 *
+	 * @param useCache		true to take the checksum from the HashCache if
+	 * 						the file has not changed since
+	 * @param checkpoint	asked before every block, may be null
+	 * @return				the checksum in lower case hex, or null if
+	 * 						checkpoint stopped it
+	 */
+	public static String hash(File file, String algorithm, boolean useCache,
+							  FileManager.Checkpoint checkpoint) throws IOException {
+		String path = file.getPath();
+		long size = file.length();
+		long modified = file.lastModified();
+
+		if(useCache) {
+			String hex = HashCache.get(algorithm, path, size, modified);
+
+			/* nothing was read, so it counts for progress only */
+			if(hex != null) {
+				if(checkpoint != null)
+					checkpoint.bytesCounted(size);
+				return hex;
+			}
+		}
+
+		MessageDigest digest = null;
+		CRC32 crc = null;
+		if(algorithm.equals(CRC32)) {
+			crc = new CRC32();
+		} else {
+			try {
+				digest = MessageDigest.getInstance(algorithm);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException(algorithm + " is not available");
+			}
+		}
+
+		InputStream in = new FileInputStream(file);
+		byte[] data = BufferPool.obtain(BufferPool.HASH, path, size);
+		long bytes = 0;
+		long nanos = 0;
+		int read;
+
+		try {
+			while(true) {
+				if(checkpoint != null && !checkpoint.proceed())
+					return null;
+
+				long start = System.nanoTime();
+				if((read = in.read(data, 0, data.length)) == -1)
+					break;
+
+				if(crc != null)
+					crc.update(data, 0, read);
+				else
+					digest.update(data, 0, read);
+				nanos += System.nanoTime() - start;
+				bytes += read;
+
+				if(checkpoint != null)
+					checkpoint.bytesDone(read);
+			}
+		} finally {
+			BufferPool.release(data);
+			BackupEngine.close(in);
+		}
+
+		BufferPool.report(BufferPool.HASH, path, data.length, bytes, nanos);
+
+		String hex = crc != null ? format_crc(crc.getValue()) : to_hex(digest.digest());
+
+		/* a file written to while it was read has no checksum to keep */
+		if(file.length() == size && file.lastModified() == modified)
+			HashCache.put(algorithm, path, size, modified, hex);
+
+		return hex;
+	}
+
+	/**
+	 * @return	every file under dir that a manifest lists, as paths
+	 * 			relative to dir with '/' between names, sorted. The trash
+	 * 			and manifests at the top of dir are left out.
+	 */
+	public static ArrayList<String> listFiles(String dir) {
+		ArrayList<String> files = new ArrayList<String>();
+
+		list_into(new File(dir), "", files);
+		Collections.sort(files);
+		return files;
+	}
+
+	/**
+	 * @return	the bytes in the files under dir
+	 */
+	public static long sizeOf(String dir, ArrayList<String> paths) {
+		long size = 0;
+
+		for(String path : paths)
+			size += new File(dir, path).length();
+
+		return size;
+	}
+
+	/**
+	 * Reads the manifest file.
+	 *
+	 * @param paths		gets the path of every line, relative to the
+	 * 					manifest's directory
+	 * @param sums		gets the checksum of every line
+	 */
+	public void readManifest(File file, ArrayList<String> paths, ArrayList<String> sums)
+																	throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+
+		try {
+			String line;
+
+			while((line = in.readLine()) != null) {
+				int space = line.indexOf(' ');
+
+				if(line.trim().length() == 0)
+					continue;
+
+				/* a '*' in place of the second space marks binary mode, the same for us */
+				if(space <= 0 || space + 2 >= line.length() ||
+				   (line.charAt(space + 1) != ' ' && line.charAt(space + 1) != '*')) {
+					malformed++;
+					continue;
+				}
+
+				sums.add(line.substring(0, space).toLowerCase());
+				paths.add(line.substring(space + 2));
+			}
+		} finally {
+			BackupEngine.close(in);
+		}
+	}
+
+	/**
+	 * Hashes every one of paths and writes the manifest into dir. It is
+	 * written to a temporary file first, so an earlier manifest stays
+	 * whole until the new one is. Files that can not be read are left out
+	 * of it.
+	 *
+	 * @param paths			from listFiles
+	 * @param checkpoint	asked before every block by each reading
+	 * 						thread at once, may be null
+	 * @return				false if stopped or the manifest could not be
+	 * 						written
+	 */
+	public boolean writeManifest(String dir, ArrayList<String> paths,
+								 FileManager.Checkpoint checkpoint) {
+		File manifest = new File(dir, manifestName(algorithm));
+		File temp = new File(dir, manifest.getName() + ".tmp");
+		String[] sums = hash_all(new File(dir), paths, true, checkpoint);
+		BufferedWriter out = null;
+
+		HashCache.save();
+		if(stopped)
+			return false;
+
+		try {
+			out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+
+			for(int i = 0; i < sums.length; i++) {
+				if(sums[i] == UNREADABLE) {
+					unreadable.add(paths.get(i));
+					continue;
+				}
+
+				out.write(sums[i]);
+				out.write("  ");
+				out.write(paths.get(i));
+				out.write('\n');
+				ok++;
+			}
+
+			if(!BackupEngine.close(out))
+				return false;
+			out = null;
+
+			/* renameTo does not replace a file everywhere */
+			if(!temp.renameTo(manifest) && !(manifest.delete() && temp.renameTo(manifest)))
+				return false;
+
+		} catch (IOException e) {
+			return false;
+
+		} finally {
+			BackupEngine.close(out);
+			temp.delete();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Reads every file the manifest lists again and compares it with its
+	 * checksum there.
+	 *
+	 * @param checkpoint	asked before every block by each reading
+	 * 						thread at once, may be null
+	 * @return				false if the manifest could not be read, or a
+	 * 						file is missing, unreadable or differs
+	 */
+	public boolean verify(File manifest, FileManager.Checkpoint checkpoint) throws IOException {
+		ArrayList<String> paths = new ArrayList<String>();
+		ArrayList<String> expected = new ArrayList<String>();
+
+		readManifest(manifest, paths, expected);
+		return verify(manifest.getParentFile(), paths, expected, checkpoint);
+	}
+
+	/**
+	 * The same as above with the manifest already read.
+	 *
+	 * @param dir	the manifest's directory
+	 */
+	public boolean verify(File dir, ArrayList<String> paths, ArrayList<String> expected,
+						  FileManager.Checkpoint checkpoint) {
+		ArrayList<String> present = new ArrayList<String>();
+		ArrayList<String> present_sums = new ArrayList<String>();
+
+		for(int i = 0; i < paths.size(); i++) {
+			if(new File(dir, paths.get(i)).isFile()) {
+				present.add(paths.get(i));
+				present_sums.add(expected.get(i));
+			} else {
+				missing.add(paths.get(i));
+			}
+		}
+
+		String[] sums = hash_all(dir, present, false, checkpoint);
+		HashCache.save();
+		if(stopped)
+			return false;
+
+		for(int i = 0; i < sums.length; i++) {
+			if(sums[i] == UNREADABLE)
+				unreadable.add(present.get(i));
+			else if(sums[i].equals(present_sums.get(i)))
+				ok++;
+			else
+				differ.add(present.get(i));
+		}
+
+		return differ.isEmpty() && missing.isEmpty() && unreadable.isEmpty();
+	}
+
+	/**
+	 * @return	files that matched, or were written to the manifest
+	 */
+	public int getOk() {
+		return ok;
+	}
+
+	/**
+	 * @return	files whose checksum is not the one in the manifest
+	 */
+	public ArrayList<String> getDiffering() {
+		return differ;
+	}
+
+	public ArrayList<String> getMissing() {
+		return missing;
+	}
+
+	public ArrayList<String> getUnreadable() {
+		return unreadable;
+	}
+
+	/**
+	 * @param verified	true after verify, false after writeManifest
+	 * @return			what was found, for the user
+	 */
+	public String getReport(boolean verified) {
+		StringBuilder report = new StringBuilder(256);
+
+		if(verified)
+			report.append(ok).append(" file(s) match");
+		else
+			report.append(ok).append(" file(s) written to ").append(manifestName(algorithm));
+
+		append_paths(report, differ, "differ");
+		append_paths(report, missing, "missing");
+		append_paths(report, unreadable, "could not be read");
+		if(malformed > 0)
+			report.append('\n').append(malformed).append(" line(s) of the manifest not understood");
+
+		return report.toString();
+	}
+
+	/*
+	 * hashes paths under dir on the pool, the checksum of each is at its
+	 * index, UNREADABLE if it could not be read, null if not read at all
+	 */
+	private String[] hash_all(final File dir, final ArrayList<String> paths, final boolean use_cache,
+							  final FileManager.Checkpoint checkpoint) {
+		final String[] sums = new String[paths.size()];
+		final FileManager.Checkpoint shared = checkpoint == null ? null : new FileManager.Checkpoint() {
+			/*
+			 * nothing is locked here, the caller's checkpoint is thread
+			 * safe and each worker waits out its own throttle
+			 */
+			public boolean proceed() {
+				if(!stopped && !checkpoint.proceed())
+					stopped = true;
+				return !stopped;
+			}
+
+			public void bytesDone(long count) {
+				checkpoint.bytesDone(count);
+			}
+
+			public void bytesCounted(long count) {
+				checkpoint.bytesCounted(count);
+			}
+
+			public void fileDone() {
+				checkpoint.fileDone();
+			}
+		};
+
+		if(sums.length == 0)
+			return sums;
+
+		ExecutorService workers = Executors.newFixedThreadPool(Math.min(threads, sums.length),
+															   new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "checksum");
+				t.setPriority(Thread.NORM_PRIORITY - 1);
+				return t;
+			}
+		});
+
+		for(int i = 0; i < sums.length; i++) {
+			final int index = i;
+
+			workers.execute(new Runnable() {
+				public void run() {
+					if(stopped)
+						return;
+
+					try {
+						sums[index] = hash(new File(dir, paths.get(index)), algorithm,
+										   use_cache, shared);
+					} catch (IOException e) {
+						sums[index] = UNREADABLE;
+					}
+
+					if(sums[index] == null)
+						stopped = true;
+					else if(shared != null)
+						shared.fileDone();
+				}
+			});
+		}
+
+		workers.shutdown();
+		try {
+			while(!workers.awaitTermination(1, TimeUnit.SECONDS))
+				;
+		} catch (InterruptedException e) {
+			stopped = true;
+			workers.shutdownNow();
+		}
+
+		return sums;
+	}
+
+	private static void list_into(File dir, String prefix, ArrayList<String> files) {
+		String[] names = dir.list();
+
+		if(names == null)
+			return;
+
+		for(String name : names) {
+			File file = new File(dir, name);
+
+			if(prefix.length() == 0 && (name.equals(TrashManager.TRASH_DIR) ||
+										algorithmOf(name) != null))
+				continue;
+
+			if(file.isDirectory())
+				list_into(file, prefix + name + "/", files);
+			else if(file.isFile())
+				files.add(prefix + name);
+		}
+	}
+
+	private static void append_paths(StringBuilder report, ArrayList<String> paths, String what) {
+		if(paths.isEmpty())
+			return;
+
+		report.append("\n\n").append(paths.size()).append(" ").append(what).append(":");
+		for(int i = 0; i < paths.size() && i < MAX_LISTED; i++)
+			report.append('\n').append(paths.get(i));
+		if(paths.size() > MAX_LISTED)
+			report.append("\n...");
+	}
+
+	static String format_crc(long value) {
+		char[] hex = new char[8];
+
+		for(int i = 7; i >= 0; i--) {
+			hex[i] = HEX[(int)(value & 0xf)];
+			value >>>= 4;
+		}
+
+		return new String(hex);
+	}
+
+	private static String to_hex(byte[] bytes) {
+		char[] hex = new char[bytes.length * 2];
+
+		for(int i = 0; i < bytes.length; i++) {
+			hex[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+			hex[2 * i + 1] = HEX[bytes[i] & 0xf];
+		}
+
+		return new String(hex);
+	}
+}
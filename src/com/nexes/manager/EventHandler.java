@@ -22,10 +22,9 @@ import java.io.File;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 import android.net.Uri;
-import android.os.AsyncTask;
-import android.os.Handler;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.ProgressDialog;
@@ -33,7 +32,6 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.graphics.Color;
-import android.graphics.Bitmap;
 import android.view.View.OnClickListener;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -64,31 +62,75 @@ import android.widget.Toast;
  * @author Joe Berria
  */
 public class EventHandler implements OnClickListener {
-	/*
-	 * Unique types to control which file operation gets
-	 * performed in the background
-	 */
-    private static final int SEARCH_TYPE =		0x00;
-	private static final int COPY_TYPE =		0x01;
-	private static final int UNZIP_TYPE =		0x02;
-	private static final int UNZIPTO_TYPE =		0x03;
-	private static final int ZIP_TYPE =			0x04;
-	private static final int DELETE_TYPE = 		0x05;
 	private static final int MANAGE_DIALOG =	 0x06;
 	private static final int MULTISELECT_DIAlOG = 0x07;
+	private static final int OPERATIONS_DIALOG = 0x08;
+	
+	/* how many thumbnails are prepared ahead when entering a folder */
+	public static final int DEFAULT_PREFETCH = 50;
 	
 	private final Context context;
 	private final FileManager file_mg;
 	private TableRow delegate;
 	private boolean multi_select_flag = false;
 	private int color = Color.WHITE;
+	private int prefetch_distance = DEFAULT_PREFETCH;
 	
 	//the data used to feed info into the array adapter and when multi-select is on
-	private ArrayList<String> data_source, multiselect_data;
+	private ArrayList<String> data_source;
+	private final SelectionModel selection = new SelectionModel();
 
 	private TextView path_label;
 	private TextView info_label;
 	
+	//the search the user is waiting on, and its progress dialog
+	private FileOperation search_op;
+	private ProgressDialog search_dialog;
+	
+	//the operation whose progress is being shown, and its dialog
+	private FileOperation shown_op;
+	private ProgressDialog op_dialog;
+	
+	/*
+	 * file operations run on the OperationQueue, finishing ones are reported
+	 * here so the listing can be refreshed. Only one EventHandler listens
+	 * at a time, see detach.
+	 */
+	private final OperationQueue.OnOperationChangeListener op_listener = 
+										new OperationQueue.OnOperationChangeListener() {
+		public void onOperationChanged(FileOperation operation) {
+			if(operation == shown_op && op_dialog.isShowing()) {
+				op_dialog.setMessage(operation.getProgressText());
+				op_dialog.setProgress(operation.getPercent());
+			}
+			
+			if(operation.takeFinished())
+				operation_finished(operation);
+		}
+	};
+	
+	/*
+	 * the icon shown for each file extension, any extension not in here
+	 * gets the plain text icon.
+	 */
+	private static final HashMap<String, Integer> icons = new HashMap<String, Integer>();
+	
+	static {
+		put_icons(R.drawable.pdf, "pdf");
+		put_icons(R.drawable.music, "mp3", "wma", "m4a", "m4p");
+		put_icons(R.drawable.image, "png", "jpg", "jpeg", "gif", "tiff");
+		put_icons(R.drawable.zip, "zip", "gzip", "gz");
+		put_icons(R.drawable.movies, "m4v", "wmv", "3gp", "mp4");
+		put_icons(R.drawable.word, "doc", "docx");
+		put_icons(R.drawable.excel, "xls", "xlsx");
+		put_icons(R.drawable.ppt, "ppt", "pptx");
+		put_icons(R.drawable.html32, "html");
+		put_icons(R.drawable.xml32, "xml");
+		put_icons(R.drawable.config32, "conf");
+		put_icons(R.drawable.appicon, "apk");
+		put_icons(R.drawable.jar32, "jar");
+	}
+	
 	/*
 	 * The comparator object that is passed into Arrays.sort method
 	 * to Sort alphabetical. This can be better implemented.
@@ -135,6 +177,22 @@ public class EventHandler implements OnClickListener {
 		file_mg = manager;
 		
 		data_source = new ArrayList<String>(file_mg.getHomeDir());
+		selection.setListing(file_mg.getCurrentDir(), data_source);
+		OperationQueue.getInstance().addListener(op_listener);
+	}
+	
+	/**
+	 * Stops listening for finished file operations, called when the
+	 * activity is destroyed. Operations that are still running carry on
+	 * and are reported to the next EventHandler that is created.
+	 */
+	public void detach() {
+		OperationQueue.getInstance().removeListener(op_listener);
+		
+		if(search_dialog != null && search_dialog.isShowing())
+			search_dialog.dismiss();
+		if(op_dialog != null && op_dialog.isShowing())
+			op_dialog.dismiss();
 	}
 
 	/**
@@ -178,7 +236,7 @@ public class EventHandler implements OnClickListener {
 	 * @return	returns true if the user is holding multiple objects (multi-select)
 	 */
 	public boolean hasMultiSelectData() {
-		return (multiselect_data != null && multiselect_data.size() > 0);
+		return !selection.isEmpty();
 	}
 	
 	/**
@@ -188,7 +246,18 @@ public class EventHandler implements OnClickListener {
 	 * @param name	the name to search for
 	 */
 	public void searchForFile(String name) {
-		new BackgroundWork(SEARCH_TYPE).execute(name);
+		final FileOperation op = new FileOperation(FileOperation.SEARCH, 
+												   file_mg.getCurrentDir(), name);
+		
+		search_op = op;
+		search_dialog = ProgressDialog.show(context, "Searching", 
+											"Searching current file system...",
+											true, true, new DialogInterface.OnCancelListener() {
+			public void onCancel(DialogInterface dialog) {
+				OperationQueue.getInstance().cancel(op);
+			}
+		});
+		OperationQueue.getInstance().submit(op, file_mg);
 	}
 	
 	/**
@@ -198,7 +267,23 @@ public class EventHandler implements OnClickListener {
 	 * @param name
 	 */
 	public void deleteFile(String name) {
-		new BackgroundWork(DELETE_TYPE).execute(name);
+		delete_targets(new String[] {name});
+	}
+	
+	/**
+	 * Puts the most recently deleted file or folder back from the trash
+	 * and refreshes the current directory.
+	 * 
+	 * @return	true if something was restored
+	 */
+	public boolean restoreLastDeleted() {
+		String restored = file_mg.restoreLastDeleted();
+		
+		if(restored == null)
+			return false;
+		
+		updateDirectory(file_mg.getNextDir(file_mg.getCurrentDir(), true));
+		return true;
 	}
 	
 	/**
@@ -208,9 +293,43 @@ public class EventHandler implements OnClickListener {
 	 * @param newLocation	to location
 	 */
 	public void copyFile(String oldLocation, String newLocation) {
-		String[] data = {oldLocation, newLocation};
+		submit(new FileOperation(FileOperation.COPY, newLocation, oldLocation));
+	}
+	
+	/**
+	 * Makes the folder of the same name in newLocation like the folder
+	 * oldLocation, writing only what has changed.
+	 * 
+	 * @param delete	true to also delete what oldLocation does not have
+	 * @param dryRun	true to only show the user what the sync would do
+	 */
+	public void syncFolder(String oldLocation, String newLocation, boolean delete, boolean dryRun) {
+		ArrayList<String> params = new ArrayList<String>();
+		
+		params.add(newLocation + oldLocation.substring(oldLocation.lastIndexOf("/")));
+		params.add(oldLocation);
+		if(delete)
+			params.add(FileOperation.SYNC_DELETE);
+		if(dryRun)
+			params.add(FileOperation.SYNC_DRY_RUN);
 		
-		new BackgroundWork(COPY_TYPE).execute(data);
+		submit(new FileOperation(FileOperation.SYNC, params.toArray(new String[params.size()])));
+	}
+	
+	/**
+	 * Writes the manifest of a folder, the checksum of every file in it.
+	 * 
+	 * @param algorithm	one of the ChecksumEngine algorithms
+	 */
+	public void checksumFolder(String folder, String algorithm) {
+		submit(new FileOperation(FileOperation.CHECKSUM, folder, algorithm));
+	}
+	
+	/**
+	 * Checks the files of the folder a manifest is in against it.
+	 */
+	public void verifyManifest(String manifest) {
+		submit(new FileOperation(FileOperation.VERIFY, manifest));
 	}
 	
 	/**
@@ -221,14 +340,18 @@ public class EventHandler implements OnClickListener {
 		String[] data;
 		int index = 1;
 		
-		if (multiselect_data.size() > 0) {
-			data = new String[multiselect_data.size() + 1];
+		if (!selection.isEmpty()) {
+			data = new String[selection.size() + 1];
 			data[0] = newLocation;
 			
-			for(String s : multiselect_data)
+			for(String s : selection.getPaths())
 				data[index++] = s;
 			
-			new BackgroundWork(COPY_TYPE).execute(data);
+			submit(new FileOperation(FileOperation.COPY, data));
+			
+			multi_select_flag = false;
+			selection.clear();
+			info_label.setText("");
 		}
 	}
 	
@@ -239,7 +362,7 @@ public class EventHandler implements OnClickListener {
 	 * @param path	the path were the zip file will be extracted (the current directory)
 	 */
 	public void unZipFile(String file, String path) {
-		new BackgroundWork(UNZIP_TYPE).execute(file, path);
+		submit(new FileOperation(FileOperation.UNZIP, file, path));
 	}
 	
 	/**
@@ -251,7 +374,7 @@ public class EventHandler implements OnClickListener {
 	 * @param oldDir	the dir where the zip file is
 	 */
 	public void unZipFileToDir(String name, String newDir, String oldDir) {
-		new BackgroundWork(UNZIPTO_TYPE).execute(name, newDir, oldDir);
+		submit(new FileOperation(FileOperation.UNZIPTO, name, newDir, oldDir));
 	}
 	
 	/**
@@ -260,7 +383,7 @@ public class EventHandler implements OnClickListener {
 	 * @param zipPath	the path to the directory you want to zip
 	 */
 	public void zipFile(String zipPath) {
-		new BackgroundWork(ZIP_TYPE).execute(zipPath);
+		submit(new FileOperation(FileOperation.ZIP, zipPath));
 	}
 
 	/**
@@ -317,9 +440,6 @@ public class EventHandler implements OnClickListener {
 					multi_select_flag = false;
 					delegate.clearMultiPosition();
 					
-					if(multiselect_data != null && !multiselect_data.isEmpty())
-						multiselect_data.clear();
-					
 					hidden.setVisibility(LinearLayout.GONE);
 					
 				} else {
@@ -331,7 +451,7 @@ public class EventHandler implements OnClickListener {
 			/* three hidden buttons for multiselect*/
 			case R.id.hidden_attach:
 				ArrayList<Uri> uris = new ArrayList<Uri>();
-				int length = multiselect_data.size();
+				String[] paths = selection.getPaths();
 				Intent mail_int = new Intent();
     			
     			mail_int.setAction(android.content.Intent.ACTION_SEND_MULTIPLE);
@@ -339,16 +459,14 @@ public class EventHandler implements OnClickListener {
     			mail_int.putExtra(Intent.EXTRA_BCC, "");
     			mail_int.putExtra(Intent.EXTRA_SUBJECT, " ");
     			
-    			for(int i = 0; i < length; i++) {
-    				File file = new File(multiselect_data.get(i));
-    				uris.add(Uri.fromFile(file));
-    			}
+    			for(String path : paths)
+    				uris.add(Uri.fromFile(new File(path)));
     			
     			mail_int.putParcelableArrayListExtra(Intent.EXTRA_STREAM, uris);
     			context.startActivity(Intent.createChooser(mail_int, 
     													   "Email using..."));
     			
-    			multiselect_data.clear();
+    			delegate.clearMultiPosition();
     			
     			hidden_lay = (LinearLayout)((Activity) context).
 								findViewById(R.id.hidden_buttons);
@@ -356,7 +474,7 @@ public class EventHandler implements OnClickListener {
 				break;
 				
 			case R.id.hidden_copy:
-				info_label.setText("Holding " + multiselect_data.size() + 
+				info_label.setText("Holding " + selection.size() + 
 								   " file(s) to be copied");
 				
 				hidden_lay = (LinearLayout)((Activity) context).
@@ -365,14 +483,8 @@ public class EventHandler implements OnClickListener {
 				break;
 				
 			case R.id.hidden_delete:
-				String[] data = new String[multiselect_data.size()];
-				int at = 0;
-				
-				for(String string : multiselect_data)
-					data[at++] = string;
-				
-				new BackgroundWork(DELETE_TYPE).execute(data);
-				multiselect_data.clear();
+				delete_targets(selection.getPaths());
+				delegate.clearMultiPosition();
 				
 				hidden_lay = (LinearLayout)((Activity) context).
 											findViewById(R.id.hidden_buttons);
@@ -385,6 +497,14 @@ public class EventHandler implements OnClickListener {
 		this.color = color;
 	}
 	
+	/**
+	 * @param distance	how many thumbnails to decode ahead of the visible
+	 * 					rows when a folder is entered, 0 turns prefetch off
+	 */
+	public void setPrefetchDistance(int distance) {
+		prefetch_distance = distance;
+	}
+	
 	/**
 	 * will return the data in the ArrayList that holds the dir contents. 
 	 * 
@@ -450,13 +570,20 @@ public class EventHandler implements OnClickListener {
 	 * @param content	an ArrayList of the file/folders in the current directory.
 	 */
 	public void updateDirectory(ArrayList<String> content) {	
+		delegate.cancelThumbnails();
+		
 		if(!data_source.isEmpty())
 			data_source.clear();
 		
 		for(String data : content)
 			data_source.add(data);
 		
+		selection.setListing(file_mg.getCurrentDir(), data_source);
+		delegate.clearRows();
 		delegate.notifyDataSetChanged();
+		
+		if(prefetch_distance > 0)
+			delegate.prefetchThumbnails(prefetch_distance);
 	}
 
 	/**
@@ -473,7 +600,8 @@ public class EventHandler implements OnClickListener {
     		case MANAGE_DIALOG:
     			//un-comment WIFI Info here and in the manifest file 
     	    	//to display WIFI info. Also uncomment and change case number below
-    	    	CharSequence[] options = {"Process Info", /*"Wifi Info",*/ "Application backup"};
+    	    	CharSequence[] options = {"Process Info", /*"Wifi Info",*/ "Application backup",
+    	    							  "File operations"};
     	    	
     	    	builder = new AlertDialog.Builder(context);
     	    	builder.setTitle("Tool Box");
@@ -498,29 +626,277 @@ public class EventHandler implements OnClickListener {
     							i = new Intent(context, ApplicationBackup.class);
     							context.startActivity(i);
     							break;
+    							
+    						case 2:
+    							display_dialog(OPERATIONS_DIALOG);
+    							break;
     					}
     				}
     			});
     	    	dialog = builder.create();
     	    	dialog.show();
     			break;
+    			
+    		case OPERATIONS_DIALOG:
+    			final ArrayList<FileOperation> ops = OperationQueue.getInstance().getOperations();
+    			CharSequence[] titles = new CharSequence[ops.size()];
+    			
+    			for(int j = 0; j < titles.length; j++)
+    				titles[j] = ops.get(j).getTitle() + " (" + ops.get(j).getStateName() + 
+    							(ops.get(j).getType() == FileOperation.SEARCH ? ")" :
+    							 ", " + ops.get(j).getPercent() + "%)");
+    			
+    			builder = new AlertDialog.Builder(context);
+    			builder.setTitle("File operations");
+    			builder.setIcon(R.drawable.toolbox);
+    			
+    			if(titles.length == 0)
+    				builder.setMessage("Nothing is running.");
+    			else
+    				builder.setItems(titles, new DialogInterface.OnClickListener() {
+    					public void onClick(DialogInterface dialog, int index) {
+    						show_operation_dialog(ops.get(index));
+    					}
+    				});
+    			
+    			builder.setNeutralButton("Clear failed", new DialogInterface.OnClickListener() {
+    				public void onClick(DialogInterface dialog, int which) {
+    					OperationQueue.getInstance().clearFinished();
+    				}
+    			});
+    			
+    			dialog = builder.create();
+    			dialog.show();
+    			break;
     	}
 	}
     
-	private void add_multiSelect_file(String src) {
-		if(multiselect_data == null)
-			multiselect_data = new ArrayList<String>();
+	/*
+	 * When the trash is on the targets are renamed into it right here, which
+	 * is instant, so the user is not held up by a progress dialog. Only the
+	 * targets that could not be moved are deleted on a background thread.
+	 */
+	private void delete_targets(String[] paths) {
+		ArrayList<String> remaining = new ArrayList<String>();
+		int trashed = 0;
+		
+		for(String path : paths) {
+			if(file_mg.moveToTrash(path))
+				trashed++;
+			else
+				remaining.add(path);
+		}
+		
+		if(trashed > 0) {
+			updateDirectory(file_mg.getNextDir(file_mg.getCurrentDir(), true));
+			Toast.makeText(context, trashed + " item(s) moved to trash", 
+							Toast.LENGTH_SHORT).show();
+		}
+		
+		if(!remaining.isEmpty())
+			submit(new FileOperation(FileOperation.DELETE, 
+							remaining.toArray(new String[remaining.size()])));
+		
+		if(!selection.isEmpty()) {
+			selection.clear();
+			multi_select_flag = false;
+		}
+		info_label.setText("");
+	}
+	
+	/*
+	 * queues a file operation, the user can keep browsing while it runs
+	 */
+	private void submit(FileOperation op) {
+		OperationQueue.getInstance().submit(op, file_mg);
+		Toast.makeText(context, op.getTitle() + " in the background", 
+					   Toast.LENGTH_SHORT).show();
+	}
+	
+	private void operation_finished(FileOperation op) {
+		if(op.getType() == FileOperation.SEARCH) {
+			if(op == search_op)
+				show_search_results(op);
+			return;
+		}
+		
+		if(op.isDryRun() && op.getState() == FileOperation.DONE) {
+			show_sync_plan(op);
+			return;
+		}
+		
+		if((op.getType() == FileOperation.CHECKSUM || op.getType() == FileOperation.VERIFY) &&
+		   op.getState() != FileOperation.CANCELLED && op.getReport() != null) {
+			show_report(op);
+			updateDirectory(file_mg.getNextDir(file_mg.getCurrentDir(), true));
+			return;
+		}
+		
+		switch(op.getState()) {
+			case FileOperation.DONE:
+				Toast.makeText(context, op.getTitle() + " finished", Toast.LENGTH_SHORT).show();
+				break;
+			case FileOperation.FAILED:
+				Toast.makeText(context, op.getTitle() + " failed", Toast.LENGTH_SHORT).show();
+				break;
+			case FileOperation.CANCELLED:
+				Toast.makeText(context, op.getTitle() + " cancelled", Toast.LENGTH_SHORT).show();
+				break;
+		}
+		
+		updateDirectory(file_mg.getNextDir(file_mg.getCurrentDir(), true));
+	}
+	
+	private void show_search_results(FileOperation op) {
+		final ArrayList<String> file = op.getFound();
+		final CharSequence[] names;
+		int len = file != null ? file.size() : 0;
+		
+		search_op = null;
+		if(search_dialog.isShowing())
+			search_dialog.dismiss();
+		
+		if(op.getState() == FileOperation.CANCELLED)
+			return;
+		
+		if(len == 0) {
+			Toast.makeText(context, "Couldn't find anything", Toast.LENGTH_SHORT).show();
+			return;
+		}
+		
+		names = new CharSequence[len];
+		for (int i = 0; i < len; i++) {
+			String entry = file.get(i);
+			names[i] = entry.substring(entry.lastIndexOf("/") + 1, entry.length());
+		}
+		
+		AlertDialog.Builder builder = new AlertDialog.Builder(context);
+		builder.setTitle("Found " + len + " file(s)");
+		builder.setItems(names, new DialogInterface.OnClickListener() {
+			
+			public void onClick(DialogInterface dialog, int position) {
+				String path = file.get(position);
+				updateDirectory(file_mg.getNextDir(path.
+									substring(0, path.lastIndexOf("/")), true));
+			}
+		});
+		
+		AlertDialog dialog = builder.create();
+		dialog.show();
+	}
+	
+	/*
+	 * shows what a sync would do, and lets the user go ahead with it
+	 */
+	private void show_sync_plan(final FileOperation op) {
+		AlertDialog.Builder builder = new AlertDialog.Builder(context);
+		
+		builder.setTitle(op.getTitle());
+		builder.setMessage(op.getReport());
+		builder.setPositiveButton("Sync", new DialogInterface.OnClickListener() {
+			public void onClick(DialogInterface dialog, int which) {
+				submit(op.withoutDryRun());
+			}
+		});
+		builder.setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
+			public void onClick(DialogInterface dialog, int which) {
+				dialog.dismiss();
+			}
+		});
+		
+		builder.create().show();
+	}
+	
+	/*
+	 * shows what a checksum or verify found
+	 */
+	private void show_report(FileOperation op) {
+		AlertDialog.Builder builder = new AlertDialog.Builder(context);
+		
+		builder.setTitle(op.getTitle() + (op.getState() == FileOperation.DONE ? " finished" : " failed"));
+		builder.setMessage(op.getReport());
+		builder.setPositiveButton("OK", new DialogInterface.OnClickListener() {
+			public void onClick(DialogInterface dialog, int which) {
+				dialog.dismiss();
+			}
+		});
+		
+		builder.create().show();
+	}
+	
+	/*
+	 * shows the progress of one operation, updated by op_listener, and
+	 * lets the user pause, resume or cancel it
+	 */
+	private void show_operation_dialog(final FileOperation op) {
+		final OperationQueue queue = OperationQueue.getInstance();
+		
+		op_dialog = new ProgressDialog(context);
+		op_dialog.setTitle(op.getTitle());
+		op_dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+		op_dialog.setMax(100);
+		op_dialog.setProgress(op.getPercent());
+		op_dialog.setMessage(op.getProgressText());
+		shown_op = op;
+		
+		if(!op.isFinished()) {
+			if(op.getState() == FileOperation.PAUSED) {
+				op_dialog.setButton(DialogInterface.BUTTON_POSITIVE, "Resume", 
+									new DialogInterface.OnClickListener() {
+					public void onClick(DialogInterface dialog, int which) {
+						queue.resume(op);
+					}
+				});
+			} else {
+				op_dialog.setButton(DialogInterface.BUTTON_POSITIVE, "Pause", 
+									new DialogInterface.OnClickListener() {
+					public void onClick(DialogInterface dialog, int which) {
+						queue.pause(op);
+					}
+				});
+			}
+			
+			op_dialog.setButton(DialogInterface.BUTTON_NEUTRAL, "Cancel it", 
+								new DialogInterface.OnClickListener() {
+				public void onClick(DialogInterface dialog, int which) {
+					queue.cancel(op);
+				}
+			});
+		}
+		
+		op_dialog.setButton(DialogInterface.BUTTON_NEGATIVE, "Hide", 
+							new DialogInterface.OnClickListener() {
+			public void onClick(DialogInterface dialog, int which) {
+				dialog.dismiss();
+			}
+		});
 		
-		multiselect_data.add(src);
+		op_dialog.show();
 	}
 	
+	private static void put_icons(int icon, String... extensions) {
+		for(String ext : extensions)
+			icons.put(ext, icon);
+	}
 	
 	private static class ViewHolder {
 		TextView topView;
 		TextView bottomView;
 		ImageView icon;
 		ImageView mSelect;	//multi-select check mark icon
-		Bitmap image;
+		int color;
+	}
+	
+	/*
+	 * everything a row shows, worked out the first time the row is bound
+	 * so scrolling back over it only sets what is already here.
+	 */
+	private static class RowInfo {
+		String name;
+		String path;
+		String detail;
+		String thumbnail_key;	//null if the file has no thumbnail
+		int icon;
 	}
 
 	
@@ -533,12 +909,9 @@ public class EventHandler implements OnClickListener {
 	 * @author Joe Berria
 	 */
     public class TableRow extends ArrayAdapter<String> {
-    	private final int KB = 1024;
-    	private final int MG = KB * KB;
-    	private final int GB = MG * KB;
-    	private String display_size;
-    	private ArrayList<Integer> positions;
+    	private final RowFormat format = new RowFormat();
     	private ThumbnailCreator listener;
+    	private RowInfo[] rows;
     	
     	public TableRow() {
     		super(context, R.layout.tablerow, data_source);
@@ -546,32 +919,55 @@ public class EventHandler implements OnClickListener {
     		listener = new ThumbnailCreator(32, 32);
     	}
     	
-    	public void addMultiPosition(int index, String path) {
-    		if(positions == null)
-    			positions = new ArrayList<Integer>();
-    		
-    		if(multiselect_data == null) {
-    			positions.add(index);
-    			add_multiSelect_file(path);
-    			
-    		} else if(multiselect_data.contains(path)) {
-    			if(positions.contains(index))
-    				positions.remove(new Integer(index));
-    			
-    			multiselect_data.remove(path);
-    			
-    		} else {
-    			positions.add(index);
-    			add_multiSelect_file(path);
-    		}
-    		
+    	/*
+    	 * drops thumbnail requests for rows of the directory being left
+    	 */
+    	public void cancelThumbnails() {
+    		listener.cancelAll();
+    	}
+    	
+    	/*
+    	 * forgets what was worked out for the rows of the last listing
+    	 */
+    	public void clearRows() {
+    		rows = null;
+    	}
+    	
+    	/*
+    	 * starts decoding thumbnails of the current directory ahead of the rows
+    	 */
+    	public void prefetchThumbnails(int distance) {
+    		listener.prefetch(file_mg.getCurrentDir(), data_source, distance);
+    	}
+    	
+    	/*
+    	 * selects the row at index, or unselects it if it was selected
+    	 */
+    	public void addMultiPosition(int index) {
+    		selection.toggle(index);
+    		notifyDataSetChanged();
+    	}
+    	
+    	/*
+    	 * selects every row between the last one tapped and index
+    	 */
+    	public void selectMultiRange(int index) {
+    		selection.selectRange(index);
+    		notifyDataSetChanged();
+    	}
+    	
+    	public void selectAllPositions() {
+    		selection.selectAll();
+    		notifyDataSetChanged();
+    	}
+    	
+    	public void invertMultiPositions() {
+    		selection.invert();
     		notifyDataSetChanged();
     	}
    	
     	public void clearMultiPosition() {
-    		if(positions != null && !positions.isEmpty())
-    			positions.clear();
-    		
+    		selection.clear();
     		notifyDataSetChanged();
     	}
     	
@@ -580,12 +976,7 @@ public class EventHandler implements OnClickListener {
     	 */
     	public void killMultiSelect() {
     		multi_select_flag = false;
-    		
-    		if(positions != null && !positions.isEmpty())
-    			positions.clear();
-    		
-    		if(multiselect_data != null && !multiselect_data.isEmpty())
-    			multiselect_data.clear();
+    		selection.clear();
     	}
     	
     	public String getFilePermissions(File file) {
@@ -604,13 +995,7 @@ public class EventHandler implements OnClickListener {
     	@Override
     	public View getView(int position, View convertView, ViewGroup parent) {
     		ViewHolder holder;
-    		int num_items = 0;
-    		String temp = file_mg.getCurrentDir();
-    		File file = new File(temp + "/" + data_source.get(position));
-    		String[] list = file.list();
-    		
-    		if(list != null)
-    			num_items = list.length;
+    		RowInfo row = get_row(position);
    
     		if(convertView == null) {
     			LayoutInflater inflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
@@ -621,7 +1006,6 @@ public class EventHandler implements OnClickListener {
     			holder.bottomView = (TextView)convertView.findViewById(R.id.bottom_view);
     			holder.icon = (ImageView)convertView.findViewById(R.id.row_image);
     			holder.mSelect = (ImageView)convertView.findViewById(R.id.multiselect_icon);
-    			holder.image = null;
     			
     			convertView.setTag(holder);
     			
@@ -629,309 +1013,69 @@ public class EventHandler implements OnClickListener {
     			holder = (ViewHolder)convertView.getTag();
     		}
     		
-    		if (positions != null && positions.contains(position))
+    		if (selection.isSelected(position))
     			holder.mSelect.setVisibility(ImageView.VISIBLE);
     		else
     			holder.mSelect.setVisibility(ImageView.GONE);
 
-    		holder.topView.setTextColor(color);
-    		holder.bottomView.setTextColor(color);
-    		
-    		if(file.isDirectory()) {
-    			holder.icon.setImageResource(R.drawable.folder);
-    			
-    		} else if(file.isFile()) {
-    			String ext = file.toString();
-    			String sub_ext = ext.substring(ext.lastIndexOf(".") + 1);
-    			
-    			/*This series of else if statements will determine which icon is displayed*/
-    			if (sub_ext.equalsIgnoreCase("pdf")) {
-    				holder.icon.setImageResource(R.drawable.pdf);
-    			
-    			} else if (sub_ext.equalsIgnoreCase("mp3") || sub_ext.equalsIgnoreCase("wma") || 
-    					 sub_ext.equalsIgnoreCase("m4a") || sub_ext.equalsIgnoreCase("m4p")) {
-    				
-    				holder.icon.setImageResource(R.drawable.music);
-    			
-    			} else if (sub_ext.equalsIgnoreCase("png") || sub_ext.equalsIgnoreCase("jpg") ||
-    					   sub_ext.equalsIgnoreCase("jpeg") || sub_ext.equalsIgnoreCase("gif")||
-    					   sub_ext.equalsIgnoreCase("tiff")) {
-    				
-    				if(holder.image == null) {
-    					final Handler mHandler = new Handler();
-   						listener.setBitmapToImageView(file.getPath(), mHandler, holder.icon);
-   						
-    				} else {
-    					holder.icon.setImageBitmap(holder.image);
-    				}
-    							
-    			} else if (sub_ext.equalsIgnoreCase("zip") || sub_ext.equalsIgnoreCase("gzip") ||
-    					   sub_ext.equalsIgnoreCase("gz")) {
-    				holder.icon.setImageResource(R.drawable.zip);
-    			
-    			} else if(sub_ext.equalsIgnoreCase("m4v") || sub_ext.equalsIgnoreCase("wmv") ||
-    					  sub_ext.equalsIgnoreCase("3gp") || sub_ext.equalsIgnoreCase("mp4")) {
-    				holder.icon.setImageResource(R.drawable.movies);
-    			
-    			} else if(sub_ext.equalsIgnoreCase("doc") || sub_ext.equalsIgnoreCase("docx")) {
-    				holder.icon.setImageResource(R.drawable.word);
-    			
-    			} else if(sub_ext.equalsIgnoreCase("xls") || sub_ext.equalsIgnoreCase("xlsx")) {
-    				holder.icon.setImageResource(R.drawable.excel);
-    				
-    			} else if(sub_ext.equalsIgnoreCase("ppt") || sub_ext.equalsIgnoreCase("pptx")) {
-    				holder.icon.setImageResource(R.drawable.ppt);   	
-    				
-    			} else if(sub_ext.equalsIgnoreCase("html")) {
-    				holder.icon.setImageResource(R.drawable.html32);  
-    				
-    			} else if(sub_ext.equalsIgnoreCase("xml")) {
-    				holder.icon.setImageResource(R.drawable.xml32);
-    				
-    			} else if(sub_ext.equalsIgnoreCase("conf")) {
-    				holder.icon.setImageResource(R.drawable.config32);
-    				
-    			} else if(sub_ext.equalsIgnoreCase("apk")) {
-    				holder.icon.setImageResource(R.drawable.appicon);
-    				
-    			} else if(sub_ext.equalsIgnoreCase("jar")) {
-    				holder.icon.setImageResource(R.drawable.jar32);
-    				
-    			} else {
-    				holder.icon.setImageResource(R.drawable.text);
-    			}
+    		if(holder.color != color) {
+    			holder.topView.setTextColor(color);
+    			holder.bottomView.setTextColor(color);
+    			holder.color = color;
     		}
-    		    		
-    		String permission = getFilePermissions(file);
     		
-    		if(file.isFile()) {
-    			double size = file.length();
-        		if (size > GB)
-    				display_size = String.format("%.2f Gb ", (double)size / GB);
-    			else if (size < GB && size > MG)
-    				display_size = String.format("%.2f Mb ", (double)size / MG);
-    			else if (size < MG && size > KB)
-    				display_size = String.format("%.2f Kb ", (double)size/ KB);
-    			else
-    				display_size = String.format("%.2f bytes ", (double)size);
-        		
-        		if(file.isHidden())
-        			holder.bottomView.setText("(hidden) | " + display_size +" | "+ permission);
-        		else
-        			holder.bottomView.setText(display_size +" | "+ permission);
-        		
+    		/* the icon is shown until the thumbnail is ready, a recycled row
+    		 * must not keep waiting for the thumbnail of its old file */
+    		if(row.thumbnail_key != null) {
+    			listener.setBitmapToImageView(row.path, row.thumbnail_key, holder.icon, row.icon);
     		} else {
-    			if(file.isHidden())
-    				holder.bottomView.setText("(hidden) | " + num_items + " items | " + permission);
-    			else
-    				holder.bottomView.setText(num_items + " items | " + permission);
+    			listener.cancel(holder.icon);
+    			holder.icon.setImageResource(row.icon);
     		}
     		
-    		holder.topView.setText(file.getName());
+    		holder.topView.setText(row.name);
+    		holder.bottomView.setText(row.detail);
     		
     		return convertView;
     	}
-    }
-    
-    /**
-     * A private inner class of EventHandler used to perform time extensive 
-     * operations. So the user does not think the the application has hung, 
-     * operations such as copy/past, search, unzip and zip will all be performed 
-     * in the background. This class extends AsyncTask in order to give the user
-     * a progress dialog to show that the app is working properly.
-     * 
-     * (note): this class will eventually be changed from using AsyncTask to using
-     * Handlers and messages to perform background operations. 
-     * 
-     * @author Joe Berria
-     */
-    private class BackgroundWork extends AsyncTask<String, Void, ArrayList<String>> {
-    	private String file_name;
-    	private ProgressDialog pr_dialog;
-    	private int type;
-    	private int copy_rtn;
     	
-    	private BackgroundWork(int type) {
-    		this.type = type;
+    	private RowInfo get_row(int position) {
+    		if(rows == null || rows.length != data_source.size())
+    			rows = new RowInfo[data_source.size()];
+    		
+    		RowInfo row = rows[position];
+    		if(row == null) {
+    			row = make_row(data_source.get(position));
+    			rows[position] = row;
+    		}
+    		
+    		return row;
     	}
     	
-    	/**
-    	 * This is done on the EDT thread. this is called before 
-    	 * doInBackground is called
-    	 */
-    	@Override
-    	protected void onPreExecute() {
+    	private RowInfo make_row(String name) {
+    		File file = new File(file_mg.getCurrentDir() + "/" + name);
+    		RowInfo row = new RowInfo();
+    		
+    		row.name = file.getName();
+    		row.path = file.getPath();
+    		row.icon = R.drawable.text;
+    		row.detail = format.detail(file);
     		
-    		switch(type) {
-    			case SEARCH_TYPE:
-    				pr_dialog = ProgressDialog.show(context, "Searching", 
-    												"Searching current file system...",
-    												true, true);
-    				break;
-    				
-    			case COPY_TYPE:
-    				pr_dialog = ProgressDialog.show(context, "Copying", 
-    												"Copying file...", 
-    												true, false);
-    				break;
-    				
-    			case UNZIP_TYPE:
-    				pr_dialog = ProgressDialog.show(context, "Unzipping", 
-    												"Unpacking zip file please wait...",
-    												true, false);
-    				break;
-    				
-    			case UNZIPTO_TYPE:
-    				pr_dialog = ProgressDialog.show(context, "Unzipping", 
-    												"Unpacking zip file please wait...",
-    												true, false);
-    				break;
+    		if(file.isDirectory()) {
+    			row.icon = R.drawable.folder;
+    			
+    		} else if(file.isFile()) {
+    			String ext = name.substring(name.lastIndexOf(".") + 1).toLowerCase();
+    			Integer icon = icons.get(ext);
     			
-    			case ZIP_TYPE:
-    				pr_dialog = ProgressDialog.show(context, "Zipping", 
-    												"Zipping folder...", 
-    												true, false);
-    				break;
-    				
-    			case DELETE_TYPE:
-    				pr_dialog = ProgressDialog.show(context, "Deleting", 
-    												"Deleting files...", 
-    												true, false);
-    				break;
+    			if(icon != null)
+    				row.icon = icon;
+    			if(ThumbnailCreator.canCreateThumbnail(ext))
+    				row.thumbnail_key = ThumbnailCache.getKey(file);
     		}
+    		
+    		return row;
     	}
-
-    	/**
-    	 * background thread here
-    	 */
-    	@Override
-		protected ArrayList<String> doInBackground(String... params) {
-			
-			switch(type) {
-				case SEARCH_TYPE:
-					file_name = params[0];
-					ArrayList<String> found = file_mg.searchInDirectory(file_mg.getCurrentDir(), 
-																	    file_name);
-					return found;
-					
-				case COPY_TYPE:
-					int len = params.length;
-					
-					if(multiselect_data != null && !multiselect_data.isEmpty()) {
-						for(int i = 1; i < len; i++)
-							copy_rtn = file_mg.copyToDirectory(params[i], params[0]);	
-					} else {
-						copy_rtn = file_mg.copyToDirectory(params[0], params[1]);
-					}
-					
-					return null;
-					
-				case UNZIP_TYPE:
-					file_mg.extractZipFiles(params[0], params[1]);
-					return null;
-					
-				case UNZIPTO_TYPE:
-					file_mg.extractZipFilesFromDir(params[0], params[1], params[2]);
-					return null;
-					
-				case ZIP_TYPE:
-					file_mg.createZipFile(params[0]);
-					return null;
-					
-				case DELETE_TYPE:
-					int size = params.length;
-					
-					for(int i = 0; i < size; i++)
-						file_mg.deleteTarget(params[i]);
-					
-					return null;
-			}
-			return null;
-		}
-		
-    	/**
-    	 * This is called when the background thread is finished. Like onPreExecute, anything
-    	 * here will be done on the EDT thread. 
-    	 */
-    	@Override
-		protected void onPostExecute(final ArrayList<String> file) {			
-			final CharSequence[] names;
-			int len = file != null ? file.size() : 0;
-			
-			switch(type) {
-				case SEARCH_TYPE:				
-					if(len == 0) {
-						Toast.makeText(context, "Couldn't find " + file_name, 
-											Toast.LENGTH_SHORT).show();
-					
-					} else {
-						names = new CharSequence[len];
-						
-						for (int i = 0; i < len; i++) {
-							String entry = file.get(i);
-							names[i] = entry.substring(entry.lastIndexOf("/") + 1, entry.length());
-						}
-						
-						AlertDialog.Builder builder = new AlertDialog.Builder(context);
-						builder.setTitle("Found " + len + " file(s)");
-						builder.setItems(names, new DialogInterface.OnClickListener() {
-							
-							public void onClick(DialogInterface dialog, int position) {
-								String path = file.get(position);
-								updateDirectory(file_mg.getNextDir(path.
-													substring(0, path.lastIndexOf("/")), true));
-							}
-						});
-						
-						AlertDialog dialog = builder.create();
-						dialog.show();
-					}
-					
-					pr_dialog.dismiss();
-					break;
-					
-				case COPY_TYPE:
-					if(multiselect_data != null && !multiselect_data.isEmpty()) {
-						multi_select_flag = false;
-						multiselect_data.clear();
-					}
-					
-					if(copy_rtn == 0)
-						Toast.makeText(context, "File successfully copied and pasted", 
-											Toast.LENGTH_SHORT).show();
-					else
-						Toast.makeText(context, "Copy pasted failed", Toast.LENGTH_SHORT).show();
-					
-					pr_dialog.dismiss();
-					info_label.setText("");
-					break;
-					
-				case UNZIP_TYPE:
-					updateDirectory(file_mg.getNextDir(file_mg.getCurrentDir(), true));
-					pr_dialog.dismiss();
-					break;
-					
-				case UNZIPTO_TYPE:
-					updateDirectory(file_mg.getNextDir(file_mg.getCurrentDir(), true));
-					pr_dialog.dismiss();
-					break;
-					
-				case ZIP_TYPE:
-					updateDirectory(file_mg.getNextDir(file_mg.getCurrentDir(), true));
-					pr_dialog.dismiss();
-					break;
-					
-				case DELETE_TYPE:
-					if(multiselect_data != null && !multiselect_data.isEmpty()) {
-						multiselect_data.clear();
-						multi_select_flag = false;
-					}
-					
-					updateDirectory(file_mg.getNextDir(file_mg.getCurrentDir(), true));
-					pr_dialog.dismiss();
-					info_label.setText("");
-					break;
-			}
-		}
+    	
     }
 }
@@ -0,0 +1,212 @@
+/*
+    Open Manager, an open source file manager for the Android system
+    Copyright (C) 2009, 2010  Joe Berria <nexesdevelopment@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.nexes.manager;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Reads the thumbnail most cameras embed in the EXIF (APP1) header of a
+ * JPEG. Only the markers in front of the image data are read, at most a
+ * few tens of kilobytes, instead of the whole photo.
+ * <br>
+ * <br>
+ * The APP1 segment holds a TIFF structure: a byte order mark, the offset
+ * of IFD0 and, linked from IFD0, IFD1 which describes the thumbnail. The
+ * JPEGInterchangeFormat (0x0201) and JPEGInterchangeFormatLength (0x0202)
+ * tags of IFD1 give the position of the thumbnail inside the segment.
+ */
+public final class ExifThumbnailReader {
+	private static final int MARKER_SOI = 0xd8;
+	private static final int MARKER_APP1 = 0xe1;
+	private static final int MARKER_SOS = 0xda;
+	private static final int MARKER_EOI = 0xd9;
+	private static final int TAG_THUMB_OFFSET = 0x0201;
+	private static final int TAG_THUMB_LENGTH = 0x0202;
+
+	private ExifThumbnailReader() {
+	}
+
+	/**
+	 * @param path		a JPEG file
+	 * @param reqWidth	width of the thumbnail
+	 * @param reqHeight	height of the thumbnail
+	 * @param pool		pool to draw the thumbnail into, may be null
+	 * @return			the embedded thumbnail scaled to fit, or null if the file
+	 * 					has none or it is smaller than the requested size
+	 */
+	public static Bitmap decodeThumbnail(String path, int reqWidth, int reqHeight,
+										 BitmapPool pool) {
+		byte[] exif = read_exif(path);
+		if(exif == null)
+			return null;
+
+		int[] range = find_thumbnail(exif);
+		if(range == null)
+			return null;
+
+		BitmapFactory.Options bounds = BitmapDecoder.decodeBounds(exif, range[0], range[1]);
+		if(bounds.outWidth < reqWidth && bounds.outHeight < reqHeight)
+			return null;
+
+		return BitmapDecoder.decodeByteArray(exif, range[0], range[1],
+											 reqWidth, reqHeight, pool);
+	}
+
+	/*
+	 * walks the JPEG markers up to the start of the image data and
+	 * returns the TIFF structure of the Exif APP1 segment.
+	 */
+	private static byte[] read_exif(String path) {
+		DataInputStream in = null;
+
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 4096));
+
+			if(in.readUnsignedByte() != 0xff || in.readUnsignedByte() != MARKER_SOI)
+				return null;
+
+			while(true) {
+				int marker = in.readUnsignedByte();
+				if(marker != 0xff)
+					return null;
+
+				/* markers may be padded with any number of 0xff bytes */
+				while(marker == 0xff)
+					marker = in.readUnsignedByte();
+
+				if(marker == MARKER_SOS || marker == MARKER_EOI)
+					return null;
+
+				int length = in.readUnsignedShort() - 2;
+				if(length < 0)
+					return null;
+
+				if(marker == MARKER_APP1 && length > 6) {
+					byte[] header = new byte[6];
+					in.readFully(header);
+
+					if(header[0] == 'E' && header[1] == 'x' && header[2] == 'i' &&
+					   header[3] == 'f' && header[4] == 0 && header[5] == 0) {
+						byte[] tiff = new byte[length - 6];
+						in.readFully(tiff);
+						return tiff;
+					}
+					skip_fully(in, length - 6);
+
+				} else {
+					skip_fully(in, length);
+				}
+			}
+
+		} catch (IOException e) {
+			return null;
+
+		} finally {
+			if(in != null) {
+				try {
+					in.close();
+				} catch (IOException e) { }
+			}
+		}
+	}
+
+	/*
+	 * returns {offset, length} of the thumbnail inside tiff, or null.
+	 */
+	static int[] find_thumbnail(byte[] tiff) {
+		if(tiff.length < 8)
+			return null;
+
+		boolean little;
+		if(tiff[0] == 'I' && tiff[1] == 'I')
+			little = true;
+		else if(tiff[0] == 'M' && tiff[1] == 'M')
+			little = false;
+		else
+			return null;
+
+		if(read_short(tiff, 2, little) != 42)
+			return null;
+
+		int ifd0 = read_int(tiff, 4, little);
+		if(ifd0 < 8 || ifd0 > tiff.length - 2)
+			return null;
+
+		int next = ifd0 + 2 + read_short(tiff, ifd0, little) * 12;
+		if(next > tiff.length - 4)
+			return null;
+
+		int ifd1 = read_int(tiff, next, little);
+		if(ifd1 < 8 || ifd1 > tiff.length - 2)
+			return null;
+
+		int count = read_short(tiff, ifd1, little);
+		int offset = -1;
+		int length = -1;
+
+		for(int i = 0; i < count; i++) {
+			int entry = ifd1 + 2 + i * 12;
+			if(entry > tiff.length - 12)
+				return null;
+
+			int tag = read_short(tiff, entry, little);
+			if(tag == TAG_THUMB_OFFSET)
+				offset = read_int(tiff, entry + 8, little);
+			else if(tag == TAG_THUMB_LENGTH)
+				length = read_int(tiff, entry + 8, little);
+		}
+
+		if(offset <= 0 || length <= 0 || offset > tiff.length - length)
+			return null;
+
+		return new int[] {offset, length};
+	}
+
+	private static int read_short(byte[] b, int at, boolean little) {
+		if(little)
+			return (b[at] & 0xff) | (b[at + 1] & 0xff) << 8;
+
+		return (b[at] & 0xff) << 8 | (b[at + 1] & 0xff);
+	}
+
+	private static int read_int(byte[] b, int at, boolean little) {
+		if(little)
+			return (b[at] & 0xff) | (b[at + 1] & 0xff) << 8 |
+				   (b[at + 2] & 0xff) << 16 | (b[at + 3] & 0xff) << 24;
+
+		return (b[at] & 0xff) << 24 | (b[at + 1] & 0xff) << 16 |
+			   (b[at + 2] & 0xff) << 8 | (b[at + 3] & 0xff);
+	}
+
+	private static void skip_fully(DataInputStream in, int count) throws IOException {
+		while(count > 0) {
+			int skipped = in.skipBytes(count);
+
+			if(skipped <= 0)
+				throw new IOException("unexpected end of file");
+			count -= skipped;
+		}
+	}
+}
@@ -21,12 +21,14 @@ package com.nexes.manager;
 import java.util.ArrayList;
 import java.util.Stack;
 import java.io.File;
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
@@ -43,17 +45,50 @@ import android.util.Log;
  * This class dictates how files and folders are copied/pasted, (un)zipped
  * renamed and searched. The EventHandler class will generally call these
  * methods and have them performed in a background thread. Threading is not
- * done in this class.  
+ * done in this class, but the long running operations take a Checkpoint
+ * that is asked between blocks whether to go on, so a caller running them
+ * on another thread can pause or cancel them.
  * 
  * @author Joe Berria
  *
  */
 public class FileManager {
-	private static final int BUFFER = 2048;
 	private boolean show_hidden = false;
+	private boolean verify_copies = false;
+	private TrashManager trash;
 	private Stack<String> path_stack;
 	private ArrayList<String> dir_content;
 	
+	/**
+	 * Asked by the long running operations before each block of work,
+	 * and told how much work each block was.
+	 */
+	public interface Checkpoint {
+		/**
+		 * May block for as long as the caller wants the operation paused.
+		 * 
+		 * @return	false if the operation should stop as soon as it can
+		 */
+		boolean proceed();
+		
+		/**
+		 * @param count	bytes copied, packed or unpacked since the last call
+		 */
+		void bytesDone(long count);
+		
+		/**
+		 * @param count	bytes dealt with since the last call without being
+		 * 				read or written, such as a deleted file. They count
+		 * 				towards progress but not towards the copy speed.
+		 */
+		void bytesCounted(long count);
+		
+		/**
+		 * Called once for every file that has been dealt with.
+		 */
+		void fileDone();
+	}
+	
 	/**
 	 * Constructs an object of the class
 	 * <br>
@@ -97,6 +132,35 @@ public class FileManager {
 		show_hidden = choice;
 	}
 	
+	/**
+	 * This will determine if deleted files and folders are moved to the
+	 * trash of their volume instead of being removed right away.
+	 * @param choice	true if deletes should go to the trash
+	 */
+	public void setUseTrash(boolean choice) {
+		if(choice && trash == null)
+			trash = new TrashManager(this, path_stack.get(1));
+		else if(!choice)
+			trash = null;
+	}
+	
+	/**
+	 * This will determine if every file copyToDirectory writes is read
+	 * back and compared with what was read from the original.
+	 * @param choice	true to verify copies
+	 */
+	public void setVerifyCopies(boolean choice) {
+		verify_copies = choice;
+	}
+	
+	/**
+	 * 
+	 * @return	true if deleteTarget moves targets to the trash
+	 */
+	public boolean isUsingTrash() {
+		return trash != null;
+	}
+	
 	/**
 	 * This will return a string that represents the path of the previous path
 	 * @return	returns the previous path
@@ -143,28 +207,54 @@ public class FileManager {
 	 * @return
 	 */
 	public int copyToDirectory(String old, String newDir) {
+		return copyToDirectory(old, newDir, null);
+	}
+	
+	/**
+	 * Same as above, a cancelled copy removes the file it was writing
+	 * and returns -1. So does a copy that reads back different from the
+	 * original, when copies are verified. A folder copies the rest of
+	 * its files after one fails, and still returns -1.
+	 * 
+	 * @param checkpoint	asked before every block, may be null
+	 */
+	public int copyToDirectory(String old, String newDir, Checkpoint checkpoint) {
 		File old_file = new File(old);
 		File temp_dir = new File(newDir);
-		byte[] data = new byte[BUFFER];
-		int read = 0;
 		
 		if(old_file.isFile() && temp_dir.isDirectory() && temp_dir.canWrite()){
 			String file_name = old.substring(old.lastIndexOf("/"), old.length());
 			File cp_file = new File(newDir + file_name);
 
 			try {
-				BufferedOutputStream o_stream = new BufferedOutputStream(
-												new FileOutputStream(cp_file));
-				BufferedInputStream i_stream = new BufferedInputStream(
-											   new FileInputStream(old_file));
+				FileOutputStream o_stream = new FileOutputStream(cp_file);
+				CRC32 crc = new CRC32();
+				InputStream i_stream = new FileInputStream(old_file);
 				
-				while((read = i_stream.read(data, 0, BUFFER)) != -1)
-					o_stream.write(data, 0, read);
+				/* the original's checksum is taken on the way, so it is read once */
+				if(verify_copies)
+					i_stream = new CheckedInputStream(i_stream, crc);
+				
+				if(!BufferPool.copy(i_stream, o_stream, BufferPool.COPY, cp_file.getPath(),
+									old_file.length(), checkpoint)) {
+					i_stream.close();
+					o_stream.close();
+					cp_file.delete();
+					return -1;
+				}
 				
-				o_stream.flush();
 				i_stream.close();
 				o_stream.close();
 				
+				if(verify_copies && !ChecksumEngine.format_crc(crc.getValue()).equals(
+						ChecksumEngine.hash(cp_file, ChecksumEngine.CRC32, false, null))) {
+					Log.e("FileManager", "copy of " + old + " differs from the original");
+					cp_file.delete();
+					return -1;
+				}
+				
+				file_done(checkpoint);
+				
 			} catch (FileNotFoundException e) {
 				Log.e("FileNotFoundException", e.getMessage());
 				return -1;
@@ -178,12 +268,19 @@ public class FileManager {
 			String files[] = old_file.list();
 			String dir = newDir + old.substring(old.lastIndexOf("/"), old.length());
 			int len = files.length;
+			int result = 0;
 			
 			if(!new File(dir).mkdir())
 				return -1;
 			
-			for(int i = 0; i < len; i++)
-				copyToDirectory(old + "/" + files[i], dir);
+			for(int i = 0; i < len; i++) {
+				if(!proceed(checkpoint))
+					return -1;
+				
+				if(copyToDirectory(old + "/" + files[i], dir, checkpoint) != 0)
+					result = -1;
+			}
+			return result;
 			
 		} else if(!temp_dir.canWrite())
 			return -1;
@@ -197,7 +294,14 @@ public class FileManager {
 	 * @param fromDir
 	 */
 	public void extractZipFilesFromDir(String zipName, String toDir, String fromDir) {
-		byte[] data = new byte[BUFFER];
+		extractZipFilesFromDir(zipName, toDir, fromDir, null);
+	}
+	
+	/**
+	 * Same as above, stops before the next block once checkpoint says so.
+	 */
+	public void extractZipFilesFromDir(String zipName, String toDir, String fromDir,
+									   Checkpoint checkpoint) {
 		ZipEntry entry;
 		ZipInputStream zipstream;
 		
@@ -212,22 +316,27 @@ public class FileManager {
 			zipstream = new ZipInputStream(new FileInputStream(org_path));
 			
 			while((entry = zipstream.getNextEntry()) != null) {
+				if(!proceed(checkpoint))
+					break;
+				
 				if(entry.isDirectory()) {
 					String ndir = zipDir + entry.getName() + "/";
 					
 					new File(ndir).mkdir();
 					
 				} else {
-					int read = 0;
-					FileOutputStream out = new FileOutputStream(
-												zipDir + entry.getName());
-					while((read = zipstream.read(data, 0, BUFFER)) != -1)
-						out.write(data, 0, read);
+					String out_path = zipDir + entry.getName();
+					FileOutputStream out = new FileOutputStream(out_path);
+					
+					BufferPool.copy(zipstream, out, BufferPool.INFLATE, out_path,
+									entry.getSize(), checkpoint);
 					
 					zipstream.closeEntry();
 					out.close();
+					file_done(checkpoint);
 				}
 			}
+			zipstream.close();
 			
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
@@ -243,7 +352,13 @@ public class FileManager {
 	 * @param directory
 	 */
 	public void extractZipFiles(String zip_file, String directory) {
-		byte[] data = new byte[BUFFER];
+		extractZipFiles(zip_file, directory, null);
+	}
+	
+	/**
+	 * Same as above, stops before the next block once checkpoint says so.
+	 */
+	public void extractZipFiles(String zip_file, String directory, Checkpoint checkpoint) {
 		ZipEntry entry;
 		ZipInputStream zipstream;
 		
@@ -259,22 +374,27 @@ public class FileManager {
 			zipstream = new ZipInputStream(new FileInputStream(path));
 			
 			while((entry = zipstream.getNextEntry()) != null) {
+				if(!proceed(checkpoint))
+					break;
+				
 				if(entry.isDirectory()) {
 					String ndir = zipDir + entry.getName() + "/";
 
 					new File(ndir).mkdir();
 					
 				} else {
-					int read = 0;
-					FileOutputStream out = new FileOutputStream(
-											zipDir + entry.getName());
-					while((read = zipstream.read(data, 0, BUFFER)) != -1)
-						out.write(data, 0, read);
+					String out_path = zipDir + entry.getName();
+					FileOutputStream out = new FileOutputStream(out_path);
+					
+					BufferPool.copy(zipstream, out, BufferPool.INFLATE, out_path,
+									entry.getSize(), checkpoint);
 					
 					zipstream.closeEntry();
 					out.close();
+					file_done(checkpoint);
 				}
 			}
+			zipstream.close();
 			
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
@@ -289,6 +409,13 @@ public class FileManager {
 	 * @param path
 	 */
 	public void createZipFile(String path) {
+		createZipFile(path, null);
+	}
+	
+	/**
+	 * Same as above, a cancelled zip removes the unfinished archive.
+	 */
+	public void createZipFile(String path, Checkpoint checkpoint) {
 		File dir = new File(path);
 		String[] list = dir.list();
 		String name = path.substring(path.lastIndexOf("/"), path.length());
@@ -305,15 +432,19 @@ public class FileManager {
 			_path = path;
 		
 		try {
+			String zip_path = _path + name + ".zip";
 			ZipOutputStream zip_out = new ZipOutputStream(
-					new BufferedOutputStream(
-					new FileOutputStream(_path + name + ".zip"), BUFFER));
+					new BufferedOutputStream(new FileOutputStream(zip_path),
+					BufferPool.getSize(BufferPool.DEFLATE, zip_path)));
 			
-			for (int i = 0; i < len; i++)
-				zip_folder(new File(_path + list[i]), zip_out);
+			for (int i = 0; i < len && proceed(checkpoint); i++)
+				zip_folder(new File(_path + list[i]), zip_out, zip_path, checkpoint);
 
 			zip_out.close();
 			
+			if(!proceed(checkpoint))
+				new File(zip_path).delete();
+			
 		} catch (FileNotFoundException e) {
 			Log.e("File not found", e.getMessage());
 
@@ -371,15 +502,78 @@ public class FileManager {
 	}
 	
 	/**
+	 * Deletes a file or folder. If the trash is in use the target is only
+	 * renamed into the trash, otherwise it is removed permanently.
 	 * 
 	 * @param path
 	 * @return
 	 */
 	public int deleteTarget(String path) {
+		return deleteTarget(path, null);
+	}
+	
+	/**
+	 * Same as above, a cancelled delete leaves whatever it has not
+	 * reached yet in place and returns -1.
+	 */
+	public int deleteTarget(String path, Checkpoint checkpoint) {
+		if(moveToTrash(path))
+			return 0;
+		
+		return deleteTargetPermanently(path, checkpoint);
+	}
+	
+	/**
+	 * Renames the target into the trash of its volume. This is a
+	 * single rename so it is safe to call from the UI thread.
+	 * 
+	 * @param path
+	 * @return	false if the trash is off or the target could not be moved,
+	 * 			the target then still needs to be deleted permanently
+	 */
+	public boolean moveToTrash(String path) {
+		if(trash == null)
+			return false;
+		
+		return trash.moveToTrash(path) != null;
+	}
+	
+	/**
+	 * Puts the most recently trashed file or folder back.
+	 * 
+	 * @return	the restored path, or null if there was nothing to restore
+	 */
+	public String restoreLastDeleted() {
+		if(trash == null)
+			return null;
+		
+		return trash.restoreLast();
+	}
+	
+	/**
+	 * @return	true if a trashed file or folder can still be put back
+	 */
+	public boolean hasTrashed() {
+		return trash != null && trash.hasEntries();
+	}
+	
+	/**
+	 * 
+	 * @param path
+	 * @return
+	 */
+	public int deleteTargetPermanently(String path) {
+		return deleteTargetPermanently(path, null);
+	}
+	
+	/**
+	 * Same as above, checkpoint is asked before each entry is removed.
+	 */
+	public int deleteTargetPermanently(String path, Checkpoint checkpoint) {
 		File target = new File(path);
 		
 		if(target.exists() && target.isFile() && target.canWrite()) {
-			target.delete();
+			delete_file(target, checkpoint);
 			return 0;
 		}
 		
@@ -392,11 +586,14 @@ public class FileManager {
 				
 			} else {
 				for(int i = 0; i < file_list.length; i++) {
+					if(!proceed(checkpoint))
+						return -1;
+					
 					File temp_f = new File(target.getAbsolutePath() + "/" + file_list[i]);
 					if(temp_f.isDirectory())
-						deleteTarget(temp_f.getAbsolutePath());
+						deleteTargetPermanently(temp_f.getAbsolutePath(), checkpoint);
 					else if(temp_f.isFile())
-						temp_f.delete();
+						delete_file(temp_f, checkpoint);
 				}
 			}
 			if(target.exists())
@@ -406,6 +603,19 @@ public class FileManager {
 		return -1;
 	}
 	
+	/**
+	 * 
+	 * @param name	the name of a file within a directory
+	 * @return		true if browsing shows it. Hidden files are only shown
+	 * 				if set so, the trash never is.
+	 */
+	public boolean isListed(String name) {
+		if(name.equals(TrashManager.TRASH_DIR))
+			return false;
+		
+		return show_hidden || name.charAt(0) != '.';
+	}
+	
 	/**
 	 * 
 	 * @param name
@@ -453,8 +663,15 @@ public class FileManager {
 	 * @return
 	 */
 	public ArrayList<String> searchInDirectory(String dir, String pathName) {
+		return searchInDirectory(dir, pathName, null);
+	}
+	
+	/**
+	 * Same as above, a cancelled search returns what it found so far.
+	 */
+	public ArrayList<String> searchInDirectory(String dir, String pathName, Checkpoint checkpoint) {
 		ArrayList<String> names = new ArrayList<String>();
-		search_file(dir, pathName, names);
+		search_file(dir, pathName, names, checkpoint);
 
 		return names;
 	}
@@ -482,25 +699,32 @@ public class FileManager {
 			dir_content.clear();
 		
 		File file = new File(path_stack.peek());
+		IoScheduler io = IoScheduler.forPath(file.getPath());
+		
+		/* file operations on the same device hold off while this runs */
+		io.beginForeground();
+		try {
+			list_into(file);
+		} finally {
+			io.endForeground();
+		}
 		
+		return dir_content;
+	}
+	
+	private void list_into(File file) {
 		if(file.exists() && file.canRead()) {
 			String[] list = file.list();
 			int len = list.length;
 						
 			for (int i = 0; i < len; i++) {
-				if(!show_hidden) {
-					if(list[i].toString().charAt(0) != '.')
-						dir_content.add(list[i]);
-				} else {
+				if(isListed(list[i]))
 					dir_content.add(list[i]);
-				}
 			}
 				
 		} else {
 			dir_content.add("Emtpy");
 		}
-		
-		return dir_content;
 	}
 	
 	/*
@@ -509,28 +733,26 @@ public class FileManager {
 	 * @param zout
 	 * @throws IOException
 	 */
-	private void zip_folder(File file, ZipOutputStream zout) throws IOException {
-		byte[] data = new byte[BUFFER];
-		int read;
-		
+	private void zip_folder(File file, ZipOutputStream zout, String zip_path,
+							Checkpoint checkpoint) throws IOException {
 		if(file.isFile()){
 			ZipEntry entry = new ZipEntry(file.getPath());
 			zout.putNextEntry(entry);
-			BufferedInputStream instream = new BufferedInputStream(
-										   new FileInputStream(file));
+			FileInputStream instream = new FileInputStream(file);
 			
-			while((read = instream.read(data, 0, BUFFER)) != -1)
-				zout.write(data, 0, read);
+			BufferPool.copy(instream, zout, BufferPool.DEFLATE, zip_path,
+							file.length(), checkpoint);
 			
 			zout.closeEntry();
 			instream.close();
+			file_done(checkpoint);
 			
 		}else {
 			String[] list = file.list();
 			int len = list.length;
 			
-			for(int i = 0; i < len; i++)
-				zip_folder(new File(file.getPath() +"/"+ list[i]), zout);
+			for(int i = 0; i < len && proceed(checkpoint); i++)
+				zip_folder(new File(file.getPath() +"/"+ list[i]), zout, zip_path, checkpoint);
 		}
 	}
 	
@@ -567,14 +789,15 @@ public class FileManager {
 	 * @param fileName	filename that is being searched for
 	 * @param n			ArrayList to populate results
 	 */
-	private void search_file(String dir, String fileName, ArrayList<String> n) {
+	private void search_file(String dir, String fileName, ArrayList<String> n, 
+							 Checkpoint checkpoint) {
 		File root_dir = new File(dir);
 		String[] list = root_dir.list();
 		
 		if(list != null && root_dir.canRead()) {
 			int len = list.length;
 			
-			for (int i = 0; i < len; i++) {
+			for (int i = 0; i < len && proceed(checkpoint); i++) {
 				File check = new File(dir + "/" + list[i]);
 				String name = check.getName();
 					
@@ -586,9 +809,32 @@ public class FileManager {
 						n.add(check.getPath());
 					
 					else if(check.canRead() && !dir.equals("/"))
-						search_file(check.getAbsolutePath(), fileName, n);
+						search_file(check.getAbsolutePath(), fileName, n, checkpoint);
 				}
 			}
 		}
 	}
+	
+	private static boolean proceed(Checkpoint checkpoint) {
+		return checkpoint == null || checkpoint.proceed();
+	}
+	
+	private static void bytes_counted(Checkpoint checkpoint, long count) {
+		if(checkpoint != null)
+			checkpoint.bytesCounted(count);
+	}
+	
+	private static void file_done(Checkpoint checkpoint) {
+		if(checkpoint != null)
+			checkpoint.fileDone();
+	}
+	
+	private static void delete_file(File file, Checkpoint checkpoint) {
+		long length = checkpoint != null ? file.length() : 0;
+		
+		if(file.delete()) {
+			bytes_counted(checkpoint, length);
+			file_done(checkpoint);
+		}
+	}
 }
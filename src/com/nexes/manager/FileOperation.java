@@ -0,0 +1,689 @@
+/*
+    Open Manager, an open source file manager for the Android system
+    Copyright (C) 2009, 2010  Joe Berria <nexesdevelopment@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.nexes.manager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import android.os.SystemClock;
+
+/**
+ * One copy, zip, unzip, delete, sync, checksum or search waiting in or run by the
+ * OperationQueue. The operation is its own Checkpoint, so pausing it
+ * blocks its thread at the next block of work and cancelling it makes
+ * FileManager stop there.
+ * <br>
+ * Before it starts the operation adds up how many files and bytes it is
+ * going to touch, from file sizes and the zip's central directory only, and
+ * then counts them off as FileManager reports each block. The throughput
+ * is a moving average sampled at most twice a second, so the copy loop
+ * only adds to two counters per block.
+ * <br>
+ * The parameters for each type are
+ * <ul>
+ * <li>SEARCH: directory, name to search for</li>
+ * <li>COPY: destination directory, then every file or folder to copy</li>
+ * <li>UNZIP: zip file name, directory it is in</li>
+ * <li>UNZIPTO: zip file name, destination directory, directory it is in</li>
+ * <li>ZIP: folder to zip</li>
+ * <li>DELETE: every file or folder to delete</li>
+ * <li>SYNC: destination folder, source folder, then SYNC_DELETE and or
+ * SYNC_DRY_RUN if wanted. A dry run only makes the plan, see getReport.</li>
+ * <li>CHECKSUM: folder to write the manifest of, algorithm</li>
+ * <li>VERIFY: manifest to check the folder it is in against</li>
+ * </ul>
+ */
+public class FileOperation implements FileManager.Checkpoint {
+	public static final int SEARCH =	0x00;
+	public static final int COPY =		0x01;
+	public static final int UNZIP =		0x02;
+	public static final int UNZIPTO =	0x03;
+	public static final int ZIP =		0x04;
+	public static final int DELETE =	0x05;
+	public static final int SYNC =		0x06;
+	public static final int CHECKSUM =	0x07;
+	public static final int VERIFY =	0x08;
+
+	public static final String SYNC_DELETE = "delete";
+	public static final String SYNC_DRY_RUN = "dry-run";
+
+	public static final int QUEUED =	0x00;
+	public static final int RUNNING =	0x01;
+	public static final int PAUSED =	0x02;
+	public static final int DONE =		0x03;
+	public static final int FAILED =	0x04;
+	public static final int CANCELLED =	0x05;
+
+	private final int type;
+	private final String[] params;
+	private int state = QUEUED;
+	private boolean paused = false;
+	private boolean reported = false;
+	private volatile boolean cancelled = false;
+	private int result = 0;
+	private ArrayList<String> found;
+	private String report;
+
+	private static final long SAMPLE_INTERVAL = 500;	//ms between throughput samples
+	private static final long SAMPLE_BYTES = 64 * 1024;	//bytes between looking at the clock
+	private static final double SMOOTHING = 0.3;
+
+	/* written by the operation's thread, or its checksum workers under the lock */
+	private volatile long bytes_total = -1;
+	private volatile int files_total = -1;
+	private volatile long bytes_done = 0;
+	private volatile int files_done = 0;
+	private volatile double rate = 0;			//bytes per second
+	private long sample_time;
+	private long sample_bytes;
+
+	FileManager manager;	//set by the queue when submitted
+	IoScheduler io;			//of the device written to, null for searches
+
+	public FileOperation(int type, String... params) {
+		this.type = type;
+		this.params = params;
+	}
+
+	public int getType() {
+		return type;
+	}
+
+	public synchronized int getState() {
+		return state;
+	}
+
+	public synchronized boolean isFinished() {
+		return state == DONE || state == FAILED || state == CANCELLED;
+	}
+
+	/**
+	 * Changes that were posted before the operation finished still reach
+	 * the listeners after it, so they ask here before reporting the end.
+	 *
+	 * @return	true only the first time it is called once finished
+	 */
+	public synchronized boolean takeFinished() {
+		if(!isFinished() || reported)
+			return false;
+
+		reported = true;
+		return true;
+	}
+
+	/**
+	 * @return	the files a finished search found
+	 */
+	public ArrayList<String> getFound() {
+		return found;
+	}
+
+	/**
+	 * @return	what a sync did or, for a dry run, would do, null until
+	 * 			it is planned. What a checksum or verify found once done.
+	 */
+	public String getReport() {
+		return report;
+	}
+
+	/**
+	 * @return	true for a sync that only makes its plan
+	 */
+	public boolean isDryRun() {
+		return type == SYNC && has_flag(SYNC_DRY_RUN);
+	}
+
+	/**
+	 * @return	the same operation without SYNC_DRY_RUN, to carry out
+	 * 			what a dry run planned
+	 */
+	public FileOperation withoutDryRun() {
+		ArrayList<String> kept = new ArrayList<String>();
+
+		for(String param : params)
+			if(!param.equals(SYNC_DRY_RUN))
+				kept.add(param);
+
+		return new FileOperation(type, kept.toArray(new String[kept.size()]));
+	}
+
+	/**
+	 * @return	the path whose mount point limits how many operations
+	 * 			may run alongside this one, null if it is not limited
+	 */
+	public String getTarget() {
+		switch(type) {
+			case COPY:
+				return params[0];
+			case UNZIP:
+				return params[1];
+			case UNZIPTO:
+				return params[1];
+			case ZIP:
+				return params[0];
+			case DELETE:
+				return params[0];
+			case SYNC:
+				return params[0];
+			case CHECKSUM:
+				return params[0];
+			case VERIFY:
+				return params[0];
+		}
+		return null;
+	}
+
+	/**
+	 * @return	a one line description of the operation for the user
+	 */
+	public String getTitle() {
+		switch(type) {
+			case SEARCH:
+				return "Searching for " + params[1];
+			case COPY:
+				if(params.length == 2)
+					return "Copying " + name_of(params[1]);
+				return "Copying " + (params.length - 1) + " items";
+			case UNZIP:
+			case UNZIPTO:
+				return "Extracting " + name_of(params[0]);
+			case ZIP:
+				return "Zipping " + name_of(params[0]);
+			case DELETE:
+				if(params.length == 1)
+					return "Deleting " + name_of(params[0]);
+				return "Deleting " + params.length + " items";
+			case SYNC:
+				return (isDryRun() ? "Comparing " : "Syncing ") + name_of(params[1]);
+			case CHECKSUM:
+				return "Checksumming " + name_of(params[0]);
+			case VERIFY:
+				return "Verifying " + name_of(new File(params[0]).getParent());
+		}
+		return "";
+	}
+
+	public String getStateName() {
+		switch(getState()) {
+			case QUEUED:	return "waiting";
+			case RUNNING:	return "running";
+			case PAUSED:	return "paused";
+			case DONE:		return "done";
+			case FAILED:	return "failed";
+			case CANCELLED:	return "cancelled";
+		}
+		return "";
+	}
+
+	/**
+	 * @return	bytes the operation will touch, -1 until they are counted
+	 */
+	public long getBytesTotal() {
+		return bytes_total;
+	}
+
+	public long getBytesDone() {
+		return bytes_done;
+	}
+
+	/**
+	 * @return	files the operation will touch, -1 until they are counted
+	 */
+	public int getFilesTotal() {
+		return files_total;
+	}
+
+	public int getFilesDone() {
+		return files_done;
+	}
+
+	/**
+	 * @return	the recent throughput in bytes per second
+	 */
+	public double getRate() {
+		return rate;
+	}
+
+	/**
+	 * @return	seconds left at the recent throughput, -1 if unknown
+	 */
+	public long getSecondsLeft() {
+		long left = bytes_total - bytes_done;
+
+		if(bytes_total < 0 || rate <= 0)
+			return -1;
+
+		return Math.max(0, (long)(left / rate));
+	}
+
+	/**
+	 * @return	two lines with what has been done and how fast, for the user
+	 */
+	public String getProgressText() {
+		StringBuilder text = new StringBuilder(96);
+		long total = bytes_total;
+		long seconds = getSecondsLeft();
+
+		if(type == SEARCH)
+			return getStateName();
+
+		if(total < 0 && getState() == RUNNING)
+			return "Counting files...";
+
+		text.append(format_size(bytes_done));
+		if(total >= 0)
+			text.append(" of ").append(format_size(total));
+		text.append(", ").append(files_done);
+		if(files_total >= 0)
+			text.append(" of ").append(files_total);
+		text.append(" files\n");
+
+		if(getState() == RUNNING) {
+			text.append(format_size((long)rate)).append("/s");
+			if(seconds >= 0)
+				text.append(", about ").append(format_time(seconds)).append(" left");
+		} else {
+			text.append(getStateName());
+		}
+
+		return text.toString();
+	}
+
+	/**
+	 * @return	how much is done, 0 to 100
+	 */
+	public int getPercent() {
+		long total = bytes_total;
+
+		if(total <= 0)
+			return isFinished() ? 100 : 0;
+
+		return (int)Math.min(100, bytes_done * 100 / total);
+	}
+
+	/**
+	 * Called before every block of work, by the operation's thread or
+	 * by each of its checksum workers. Lets foreground work on the device
+	 * go first, then waits while paused.
+	 */
+	public boolean proceed() {
+		if(io != null) {
+			try {
+				io.yieldToForeground();
+			} catch (InterruptedException e) {
+				cancelled = true;
+			}
+		}
+
+		return wait_while_paused();
+	}
+
+	private synchronized boolean wait_while_paused() {
+		if(!paused)
+			return !cancelled;
+
+		while(paused && !cancelled) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				cancelled = true;
+			}
+		}
+
+		/* the time spent paused does not count towards the throughput */
+		sample(true);
+		return !cancelled;
+	}
+
+	public void bytesDone(long count) {
+		if(io != null)
+			hold_off(io.charge(count));
+
+		bytesCounted(count);
+	}
+
+	public synchronized void bytesCounted(long count) {
+		bytes_done += count;
+
+		if(bytes_done - sample_bytes >= SAMPLE_BYTES)
+			sample(false);
+	}
+
+	/*
+	 * waits ms to keep to the device's copy speed, cancelling cuts it short
+	 */
+	private synchronized void hold_off(long ms) {
+		long until = SystemClock.elapsedRealtime() + ms;
+		long left;
+
+		while(!cancelled && (left = until - SystemClock.elapsedRealtime()) > 0) {
+			try {
+				wait(left);
+			} catch (InterruptedException e) {
+				cancelled = true;
+			}
+		}
+	}
+
+	public synchronized void fileDone() {
+		files_done++;
+	}
+
+	/*
+	 * folds the bytes since the last sample into the moving average,
+	 * at most once per SAMPLE_INTERVAL unless starting is true.
+	 */
+	private void sample(boolean starting) {
+		long now = SystemClock.elapsedRealtime();
+		long elapsed = now - sample_time;
+
+		if(!starting && elapsed < SAMPLE_INTERVAL)
+			return;
+
+		if(!starting && elapsed > 0) {
+			double current = (bytes_done - sample_bytes) * 1000.0 / elapsed;
+
+			rate = rate == 0 ? current : rate + SMOOTHING * (current - rate);
+		}
+
+		sample_time = now;
+		sample_bytes = bytes_done;
+	}
+
+	/* the methods below are called by OperationQueue only */
+
+	synchronized void setState(int state) {
+		this.state = state;
+	}
+
+	synchronized boolean pause() {
+		if(state != RUNNING && state != QUEUED)
+			return false;
+
+		paused = true;
+		if(state == RUNNING)
+			state = PAUSED;
+		return true;
+	}
+
+	synchronized boolean resume() {
+		if(!paused)
+			return false;
+
+		paused = false;
+		if(state == PAUSED)
+			state = RUNNING;
+		notifyAll();
+		return true;
+	}
+
+	synchronized boolean cancel() {
+		if(isFinished())
+			return false;
+
+		cancelled = true;
+		notifyAll();
+		if(state == QUEUED)
+			state = CANCELLED;
+		return true;
+	}
+
+	synchronized boolean isPaused() {
+		return paused;
+	}
+
+	/*
+	 * runs on one of the queue's threads
+	 */
+	void run() {
+		int len = params.length;
+
+		count_totals();
+		sample(true);
+
+		switch(type) {
+			case SEARCH:
+				found = manager.searchInDirectory(params[0], params[1], this);
+				break;
+
+			case COPY:
+				for(int i = 1; i < len && proceed(); i++)
+					if(manager.copyToDirectory(params[i], params[0], this) != 0)
+						result = -1;
+				break;
+
+			case UNZIP:
+				manager.extractZipFiles(params[0], params[1], this);
+				break;
+
+			case UNZIPTO:
+				manager.extractZipFilesFromDir(params[0], params[1], params[2], this);
+				break;
+
+			case ZIP:
+				manager.createZipFile(params[0], this);
+				break;
+
+			case DELETE:
+				for(int i = 0; i < len && proceed(); i++)
+					if(manager.deleteTarget(params[i], this) != 0)
+						result = -1;
+				break;
+
+			case SYNC:
+				sync();
+				break;
+
+			case CHECKSUM:
+				checksum();
+				break;
+
+			case VERIFY:
+				verify();
+				break;
+		}
+
+		synchronized(this) {
+			if(cancelled)
+				state = CANCELLED;
+			else
+				state = result == 0 ? DONE : FAILED;
+		}
+	}
+
+	private void sync() {
+		SyncEngine engine = new SyncEngine(params[1], params[0], manager);
+		SyncEngine.Plan plan;
+
+		engine.setDeleteExtraneous(has_flag(SYNC_DELETE));
+		try {
+			plan = engine.plan(this);
+		} catch (IOException e) {
+			plan = null;
+		}
+
+		if(plan == null) {
+			result = -1;
+			return;
+		}
+
+		files_total = plan.getFiles();
+		bytes_total = plan.getBytes();
+		report = plan.getReport();
+
+		if(isDryRun())
+			return;
+
+		if(!engine.run(plan, this))
+			result = -1;
+		report += "\nWrote " + format_size(engine.getWritten());
+	}
+
+	private void checksum() {
+		ChecksumEngine engine = new ChecksumEngine(params[1], ChecksumEngine.DEFAULT_THREADS);
+		ArrayList<String> files = ChecksumEngine.listFiles(params[0]);
+
+		files_total = files.size();
+		bytes_total = ChecksumEngine.sizeOf(params[0], files);
+
+		if(!engine.writeManifest(params[0], files, this))
+			result = -1;
+		report = engine.getReport(false);
+	}
+
+	private void verify() {
+		ChecksumEngine engine = new ChecksumEngine(ChecksumEngine.algorithmOf(name_of(params[0])),
+												   ChecksumEngine.DEFAULT_THREADS);
+		File manifest = new File(params[0]);
+		ArrayList<String> files = new ArrayList<String>();
+		ArrayList<String> sums = new ArrayList<String>();
+
+		try {
+			engine.readManifest(manifest, files, sums);
+		} catch (IOException e) {
+			result = -1;
+			report = "Could not read " + manifest.getName();
+			return;
+		}
+
+		files_total = files.size();
+		bytes_total = ChecksumEngine.sizeOf(manifest.getParent(), files);
+
+		if(!engine.verify(manifest.getParentFile(), files, sums, this))
+			result = -1;
+		report = engine.getReport(true);
+	}
+
+	private boolean has_flag(String flag) {
+		for(int i = 2; i < params.length; i++)
+			if(params[i].equals(flag))
+				return true;
+
+		return false;
+	}
+
+	/*
+	 * adds up the work ahead without reading any file contents
+	 */
+	private void count_totals() {
+		long[] totals = new long[2];	//bytes, files
+
+		switch(type) {
+			case COPY:
+				for(int i = 1; i < params.length; i++)
+					count(new File(params[i]), totals);
+				break;
+
+			case DELETE:
+				for(int i = 0; i < params.length; i++)
+					count(new File(params[i]), totals);
+				break;
+
+			case ZIP:
+				count(new File(params[0]), totals);
+				break;
+
+			case UNZIP:
+				count_zip(new File(params[1] + params[0]), totals);
+				break;
+
+			case UNZIPTO:
+				count_zip(new File(params[2] + "/" + params[0]), totals);
+				break;
+
+			default:
+				return;
+		}
+
+		files_total = (int)totals[1];
+		bytes_total = totals[0];
+	}
+
+	private void count(File file, long[] totals) {
+		if(file.isFile()) {
+			totals[0] += file.length();
+			totals[1]++;
+			return;
+		}
+
+		String[] list = file.list();
+		if(list == null)
+			return;
+
+		for(int i = 0; i < list.length && proceed(); i++)
+			count(new File(file, list[i]), totals);
+	}
+
+	private static void count_zip(File file, long[] totals) {
+		ZipFile zip = null;
+
+		try {
+			zip = new ZipFile(file);
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+
+			while(entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+
+				if(!entry.isDirectory()) {
+					totals[0] += Math.max(0, entry.getSize());
+					totals[1]++;
+				}
+			}
+		} catch (IOException e) {
+			/* leave the totals unknown, the unzip will report the error */
+
+		} finally {
+			if(zip != null) {
+				try {
+					zip.close();
+				} catch (IOException e) { }
+			}
+		}
+	}
+
+	static String format_size(long size) {
+		final long KB = 1024;
+		final long MB = KB * KB;
+		final long GB = MB * KB;
+
+		if(size >= GB)
+			return String.format("%.2f Gb", (double)size / GB);
+		if(size >= MB)
+			return String.format("%.1f Mb", (double)size / MB);
+		if(size >= KB)
+			return (size / KB) + " Kb";
+		return size + " bytes";
+	}
+
+	private static String format_time(long seconds) {
+		if(seconds < 60)
+			return seconds + " s";
+		if(seconds < 3600)
+			return (seconds / 60) + " min " + (seconds % 60) + " s";
+		return (seconds / 3600) + " h " + (seconds % 3600 / 60) + " min";
+	}
+
+	private static String name_of(String path) {
+		return new File(path).getName();
+	}
+}
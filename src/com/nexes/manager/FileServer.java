@@ -0,0 +1,1404 @@
+/*
+    Open Manager, an open source file manager for the Android system
+    Copyright (C) 2009, 2010  Joe Berria <nexesdevelopment@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.nexes.manager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A small HTTP server that lets a browser on the same network download
+ * files from under one directory, the way FileManager shows them.
+ * <br>
+ * One thread serves every connection with non-blocking sockets and a
+ * Selector. Files are sent with FileChannel.transferTo, so their bytes go
+ * from the page cache to the socket without passing through the heap, and
+ * a large file is sent a CHUNK at a time so other connections are not
+ * held up behind it. Single byte ranges are honoured, so downloads can be
+ * resumed. Directory listings are sent with chunked encoding a few entries
+ * at a time while the directory is being gone through.
+ * <br>
+ * Once made writable it is also a WebDAV class 1 server, so desktop
+ * clients can mount it and copy folders onto the device. Anything that
+ * writes to the disk, uploads above all, is done by a small pool of
+ * workers while the connection sits out of the Selector. An upload is read
+ * by a RequestBody, with transferFrom when its length is known and through
+ * the connection's buffer when it is chunked. A PUT with a Content-Range
+ * writes from that offset on without cutting the file, so an interrupted
+ * upload can be resumed from the length HEAD reports.
+ * <br>
+ * Once given a password, every request must carry it with Basic
+ * authentication, under any user name, or is answered 401. The server
+ * only listens on the address it is given, such as the Wi-Fi one, so it
+ * can not be reached over mobile data.
+ * <br>
+ * Connections are kept alive between requests and closed after
+ * IDLE_TIMEOUT without progress.
+ */
+public final class FileServer implements Runnable {
+	public static final int DEFAULT_PORT = 8080;
+	private static final int MAX_CONNECTIONS = 16;
+	private static final int MAX_HEADER = 8 * 1024;			//bytes of request line and headers
+	private static final long CHUNK = 256 * 1024;			//bytes per transferTo call
+	private static final int LISTING_CHUNK = 4 * 1024;		//chars of listing per chunk
+	private static final long IDLE_TIMEOUT = 30 * 1000;
+	private static final int WORKERS = 4;					//requests that write at once
+	private static final String ALLOW = "OPTIONS, GET, HEAD, PROPFIND, PUT, DELETE, MKCOL, MOVE";
+	private static final long[] UNSATISFIABLE = new long[0];
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+	private static final String PASSWORD_CHARS = "abcdefghjkmnpqrstuvwxyz23456789";
+	private static final int PASSWORD_LENGTH = 8;
+
+	private static final HashMap<String, String> TYPES = new HashMap<String, String>();
+	static {
+		String[] types = {
+			"html", "text/html", "htm", "text/html", "txt", "text/plain",
+			"xml", "text/xml", "css", "text/css", "js", "application/javascript",
+			"jpg", "image/jpeg", "jpeg", "image/jpeg", "png", "image/png",
+			"gif", "image/gif", "bmp", "image/bmp", "mp3", "audio/mpeg",
+			"ogg", "audio/ogg", "wav", "audio/x-wav", "m4a", "audio/mp4",
+			"mp4", "video/mp4", "3gp", "video/3gpp", "pdf", "application/pdf",
+			"zip", "application/zip", "apk", "application/vnd.android.package-archive"
+		};
+
+		for(int i = 0; i < types.length; i += 2)
+			TYPES.put(types[i], types[i + 1]);
+	}
+
+	private final File root;
+	private final String root_path;		//canonical
+	private final FileManager browser;
+	private final InetAddress address;
+	private final int port;
+	private final SimpleDateFormat date_format;		//guarded by itself
+	private final LinkedList<Connection> finished = new LinkedList<Connection>();	//guarded by itself
+	private Selector selector;
+	private ServerSocketChannel server;
+	private ExecutorService workers;
+	private volatile boolean running = false;
+	private volatile boolean writable = false;
+	private volatile String password;
+
+	/*
+	 * a request line and its headers, header names in lower case
+	 */
+	private static class Request {
+		String method;
+		String path;
+		String version;
+		final HashMap<String, String> headers = new HashMap<String, String>();
+	}
+
+	/*
+	 * one client, reading a request or writing the response to it
+	 */
+	private static class Connection {
+		final SocketChannel channel;
+		final ByteBuffer in = ByteBuffer.allocate(MAX_HEADER);
+		SelectionKey key;
+		ByteBuffer out;
+		FileChannel file;
+		long position;
+		long end;
+		File dir;				//the directory being listed
+		String[] listing;
+		int listed;
+		String href;			//of the directory, for a PROPFIND listing
+		boolean chunked;
+		boolean keep_alive;
+		long skip;				//bytes of an unused request body yet to drop
+		volatile boolean busy;	//a worker has it
+		boolean failed;
+		long last_active;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+			last_active = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * @param root		the directory whose files are served
+	 * @param address	the address to listen on, null for every one
+	 * @param port		the port to listen on, 0 for any free one
+	 * @param browser	decides which files are listed
+	 */
+	public FileServer(String root, InetAddress address, int port, FileManager browser)
+																	throws IOException {
+		this.root = new File(root);
+		this.root_path = this.root.getCanonicalPath();
+		this.browser = browser;
+		this.address = address;
+		this.port = port;
+
+		date_format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+		date_format.setTimeZone(TimeZone.getTimeZone("GMT"));
+	}
+
+	/**
+	 * Starts listening, requests are served on a thread of the server's own.
+	 * A server can only be started once.
+	 */
+	public synchronized void start() throws IOException {
+		if(selector != null)
+			throw new IllegalStateException("server already started");
+
+		try {
+			selector = Selector.open();
+			server = ServerSocketChannel.open();
+			server.socket().setReuseAddress(true);
+			server.socket().bind(new InetSocketAddress(address, port));
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+
+		} catch (IOException e) {
+			/* such as the port being taken, leave nothing open behind */
+			BackupEngine.close(server);
+			if(selector != null) {
+				try {
+					selector.close();
+				} catch (IOException ignored) { }
+			}
+			server = null;
+			selector = null;
+			throw e;
+		}
+
+		workers = Executors.newFixedThreadPool(WORKERS, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "file-server-io");
+				t.setPriority(Thread.NORM_PRIORITY - 1);
+				return t;
+			}
+		});
+		running = true;
+		Thread thread = new Thread(this, "file-server");
+		thread.setPriority(Thread.NORM_PRIORITY - 1);
+		thread.start();
+	}
+
+	/**
+	 * Closes the server and every connection, downloads in progress are cut.
+	 */
+	public synchronized void stop() {
+		running = false;
+
+		if(selector != null)
+			selector.wakeup();
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * @return	the port listened on, or -1 if not started
+	 */
+	public synchronized int getPort() {
+		return server == null ? -1 : server.socket().getLocalPort();
+	}
+
+	public String getRoot() {
+		return root.getPath();
+	}
+
+	/**
+	 * @param writable	true to let clients upload, move and delete files,
+	 * 					read only otherwise, as it starts out
+	 */
+	public void setWritable(boolean writable) {
+		this.writable = writable;
+	}
+
+	public boolean isWritable() {
+		return writable;
+	}
+
+	/**
+	 * @param password	what clients must send to be served, null to serve
+	 * 					anyone
+	 */
+	public void setPassword(String password) {
+		this.password = password;
+	}
+
+	public String getPassword() {
+		return password;
+	}
+
+	/**
+	 * @return	a random password that is easy to type, for one session
+	 */
+	public static String newPassword() {
+		SecureRandom random = new SecureRandom();
+		char[] password = new char[PASSWORD_LENGTH];
+
+		for(int i = 0; i < password.length; i++)
+			password[i] = PASSWORD_CHARS.charAt(random.nextInt(PASSWORD_CHARS.length()));
+
+		return new String(password);
+	}
+
+	public void run() {
+		try {
+			while(running) {
+				selector.select(1000);
+				take_back();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					if(!key.isValid())
+						continue;
+
+					if(key.isAcceptable()) {
+						accept();
+						continue;
+					}
+
+					Connection conn = (Connection)key.attachment();
+					try {
+						if(key.isReadable())
+							read(key, conn);
+						else if(key.isWritable())
+							write(key, conn);
+
+					} catch (IOException e) {
+						close(key);
+					}
+				}
+
+				close_idle();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+
+		} finally {
+			running = false;
+			workers.shutdownNow();
+			for(SelectionKey key : selector.keys())
+				close(key);
+
+			BackupEngine.close(server);
+			try {
+				selector.close();
+			} catch (IOException e) { }
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = server.accept();
+
+		if(channel == null)
+			return;
+
+		/* the server's own key is one of them */
+		if(selector.keys().size() > MAX_CONNECTIONS) {
+			channel.close();
+			return;
+		}
+
+		Connection conn = new Connection(channel);
+
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+	}
+
+	/*
+	 * the connections workers are done with go back to the Selector, to
+	 * send their responses
+	 */
+	private void take_back() {
+		while(true) {
+			Connection conn;
+
+			synchronized(finished) {
+				if(finished.isEmpty())
+					return;
+				conn = finished.removeFirst();
+			}
+
+			conn.busy = false;
+			conn.last_active = System.currentTimeMillis();
+
+			if(!conn.key.isValid())
+				continue;
+			if(conn.failed)
+				close(conn.key);
+			else
+				conn.key.interestOps(SelectionKey.OP_WRITE);
+		}
+	}
+
+	/*
+	 * hands conn to a worker, which sets out its response. The Selector
+	 * leaves it alone meanwhile.
+	 */
+	private void submit(final Connection conn, final Job job) {
+		conn.busy = true;
+		conn.key.interestOps(0);
+
+		workers.execute(new Runnable() {
+			public void run() {
+				try {
+					job.run(conn);
+				} catch (IOException e) {
+					conn.failed = true;
+				} catch (RuntimeException e) {
+					conn.failed = true;
+					e.printStackTrace();
+				}
+
+				synchronized(finished) {
+					finished.add(conn);
+				}
+				selector.wakeup();
+			}
+		});
+	}
+
+	private interface Job {
+		void run(Connection conn) throws IOException;
+	}
+
+	private void read(SelectionKey key, Connection conn) throws IOException {
+		if(conn.channel.read(conn.in) < 0) {
+			close(key);
+			return;
+		}
+
+		conn.last_active = System.currentTimeMillis();
+		next_request(key, conn);
+	}
+
+	/*
+	 * starts the response to the request in the input buffer, if the whole
+	 * of its header has come
+	 */
+	private void next_request(SelectionKey key, Connection conn) throws IOException {
+		if(conn.skip > 0) {
+			int dropped = (int)Math.min(conn.skip, conn.in.position());
+
+			conn.in.flip();
+			conn.in.position(dropped);
+			conn.in.compact();
+			conn.skip -= dropped;
+			if(conn.skip > 0)
+				return;
+		}
+
+		byte[] data = conn.in.array();
+		int length = conn.in.position();
+		int header_end = -1;
+
+		for(int i = 3; i < length; i++) {
+			if(data[i] == '\n' && data[i - 1] == '\r' && data[i - 2] == '\n' && data[i - 3] == '\r') {
+				header_end = i + 1;
+				break;
+			}
+		}
+
+		if(header_end < 0) {
+			if(!conn.in.hasRemaining()) {
+				conn.keep_alive = false;
+				send_error(conn, 431, "Request Header Fields Too Large", false);
+				key.interestOps(SelectionKey.OP_WRITE);
+			}
+			return;
+		}
+
+		Request request = parse_request(new String(data, 0, header_end, "ISO-8859-1"));
+
+		/* anything after the header is the next request */
+		conn.in.flip();
+		conn.in.position(header_end);
+		conn.in.compact();
+
+		if(request == null) {
+			conn.keep_alive = false;
+			send_error(conn, 400, "Bad Request", false);
+		} else {
+			respond(conn, request);
+		}
+
+		if(!conn.busy)
+			key.interestOps(SelectionKey.OP_WRITE);
+	}
+
+	private Request parse_request(String header) {
+		String[] lines = header.split("\r\n");
+		String[] first = lines[0].split(" ");
+		Request request = new Request();
+
+		if(first.length != 3 || !first[1].startsWith("/") || !first[2].startsWith("HTTP/1."))
+			return null;
+
+		request.method = first[0];
+		request.version = first[2];
+
+		int query = first[1].indexOf('?');
+		request.path = decode(query < 0 ? first[1] : first[1].substring(0, query));
+		if(request.path == null)
+			return null;
+
+		for(int i = 1; i < lines.length; i++) {
+			int colon = lines[i].indexOf(':');
+
+			if(colon > 0)
+				request.headers.put(lines[i].substring(0, colon).trim().toLowerCase(),
+									lines[i].substring(colon + 1).trim());
+		}
+
+		return request;
+	}
+
+	private void respond(Connection conn, Request request) throws IOException {
+		String method = request.method;
+		boolean head = method.equals("HEAD");
+		String connection = request.headers.get("connection");
+		boolean chunked_body = request.headers.containsKey("transfer-encoding") &&
+							   !"identity".equalsIgnoreCase(request.headers.get("transfer-encoding"));
+		long length = 0;
+
+		conn.chunked = request.version.equals("HTTP/1.1");
+		conn.keep_alive = conn.chunked ? !"close".equalsIgnoreCase(connection) :
+										 "keep-alive".equalsIgnoreCase(connection);
+
+		try {
+			if(request.headers.containsKey("content-length"))
+				length = Long.parseLong(request.headers.get("content-length"));
+		} catch (NumberFormatException e) {
+			length = -1;
+		}
+
+		if(length < 0 || (chunked_body && !"chunked".equalsIgnoreCase(request.headers.get("transfer-encoding")))) {
+			conn.keep_alive = false;
+			send_error(conn, 400, "Bad Request", head);
+			return;
+		}
+
+		/* 
+		 * only a PUT that is let through reads its body, any other request
+		 * drops a body of known length and closes the connection after one
+		 * it can not tell the end of
+		 */
+		boolean put = method.equals("PUT");
+		if(chunked_body && !put)
+			conn.keep_alive = false;
+		else if(!put)
+			conn.skip = length;
+
+		File file = new File(root, request.path);
+		String path = file.getCanonicalPath();
+		boolean writes = put || method.equals("DELETE") || method.equals("MKCOL") ||
+						 method.equals("MOVE");
+
+		if(!authorized(request.headers.get("authorization"))) {
+			refuse_body(conn, put);
+			send_error(conn, 401, "Unauthorized", head);
+
+		} else if(!inside_root(path)) {
+			refuse_body(conn, put);
+			send_error(conn, 403, "Forbidden", head);
+
+		} else if(!is_listed(path)) {
+			/* what the listings leave out is not there as far as clients know */
+			refuse_body(conn, put);
+			send_error(conn, 404, "Not Found", head);
+
+		} else if(method.equals("OPTIONS")) {
+			StringBuilder header = status_line(200, "OK");
+			header.append("DAV: 1\r\n");
+			header.append("MS-Author-Via: DAV\r\n");
+			header.append("Allow: ").append(ALLOW).append("\r\n");
+			header.append("Content-Length: 0\r\n");
+			finish_header(conn, header);
+
+		} else if(writes && !writable) {
+			refuse_body(conn, put);
+			send_error(conn, 403, "Forbidden", head);
+
+		} else if(put) {
+			put(conn, file, request, length, chunked_body);
+
+		} else if(method.equals("MKCOL")) {
+			final File dir = file;
+
+			submit(conn, new Job() {
+				public void run(Connection conn) throws IOException {
+					make_dir(conn, dir);
+				}
+			});
+
+		} else if(!file.exists()) {
+			send_error(conn, 404, "Not Found", head);
+
+		} else if(!file.canRead()) {
+			send_error(conn, 403, "Forbidden", head);
+
+		} else if(method.equals("DELETE")) {
+			final File target = file;
+
+			if(path.equals(root_path)) {
+				send_error(conn, 403, "Forbidden", head);
+			} else {
+				submit(conn, new Job() {
+					public void run(Connection conn) throws IOException {
+						browser.deleteTargetPermanently(target.getPath());
+						if(target.exists())
+							send_error(conn, 403, "Forbidden", false);
+						else
+							send_status(conn, 204, "No Content");
+					}
+				});
+			}
+
+		} else if(method.equals("MOVE")) {
+			move(conn, file, request);
+
+		} else if(method.equals("PROPFIND")) {
+			send_properties(conn, file, request.path, request.headers.get("depth"));
+
+		} else if(!head && !method.equals("GET")) {
+			send_error(conn, 501, "Not Implemented", head);
+
+		} else if(file.isDirectory()) {
+			if(request.path.endsWith("/"))
+				send_listing(conn, file, request.path, head);
+			else
+				send_redirect(conn, encode(request.path) + "/", head);
+
+		} else {
+			send_file(conn, file, request, head);
+		}
+	}
+
+	/*
+	 * the body of a refused PUT is left unread, so nothing more can be
+	 * read from the connection
+	 */
+	private static void refuse_body(Connection conn, boolean put) {
+		if(put)
+			conn.keep_alive = false;
+	}
+
+	private boolean inside_root(String canonical) {
+		return canonical.equals(root_path) || canonical.startsWith(root_path + "/");
+	}
+
+	/*
+	 * true if there is no password, or header is Basic authentication
+	 * with it
+	 */
+	private boolean authorized(String header) {
+		String expected = password;
+
+		if(expected == null)
+			return true;
+		if(header == null || !header.regionMatches(true, 0, "Basic ", 0, 6))
+			return false;
+
+		String credentials = decode_base64(header.substring(6).trim());
+		int colon = credentials == null ? -1 : credentials.indexOf(':');
+
+		return colon >= 0 && credentials.substring(colon + 1).equals(expected);
+	}
+
+	/*
+	 * true if the browser lists every name on canonical below the root, so
+	 * hidden files and the trash can not be fetched by their path either
+	 */
+	private boolean is_listed(String canonical) {
+		int start = root_path.endsWith("/") ? root_path.length() : root_path.length() + 1;
+
+		while(start < canonical.length()) {
+			int end = canonical.indexOf('/', start);
+
+			if(end < 0)
+				end = canonical.length();
+			if(!browser.isListed(canonical.substring(start, end)))
+				return false;
+			start = end + 1;
+		}
+
+		return true;
+	}
+
+	private void put(Connection conn, final File file, Request request, final long length,
+					 final boolean chunked_body) {
+		String content_range = request.headers.get("content-range");
+		final long[] range = content_range == null ? null : parse_content_range(content_range, length);
+		final boolean created = !file.exists();
+		final boolean expect = "100-continue".equalsIgnoreCase(request.headers.get("expect"));
+
+		if(file.isDirectory()) {
+			refuse_body(conn, true);
+			send_error(conn, 405, "Method Not Allowed", false);
+
+		} else if(file.getParentFile() == null || !file.getParentFile().isDirectory()) {
+			refuse_body(conn, true);
+			send_error(conn, 409, "Conflict", false);
+
+		} else if(!chunked_body && !request.headers.containsKey("content-length")) {
+			refuse_body(conn, true);
+			send_error(conn, 411, "Length Required", false);
+
+		} else if(content_range != null && range == null) {
+			refuse_body(conn, true);
+			send_error(conn, 400, "Bad Request", false);
+
+		} else if(range != null && range[0] > file.length()) {
+			/* that would leave a hole, the client should resume from the length */
+			StringBuilder header = status_line(416, "Range Not Satisfiable");
+			header.append("Content-Range: bytes */").append(file.length()).append("\r\n");
+			header.append("Content-Length: 0\r\n");
+			refuse_body(conn, true);
+			finish_header(conn, header);
+
+		} else {
+			submit(conn, new Job() {
+				public void run(Connection conn) throws IOException {
+					receive(conn, file, range == null ? -1 : range[0], range == null ? -1 : range[1],
+							length, chunked_body, created, expect);
+				}
+			});
+		}
+	}
+
+	/*
+	 * on a worker, writes the body of a PUT into file from start on, or in
+	 * place of what it held if start is -1. A total length cuts off
+	 * anything the file held past it.
+	 */
+	private void receive(Connection conn, File file, long start, long total, long length,
+						 boolean chunked_body, boolean created, boolean expect) throws IOException {
+		RequestBody body = new RequestBody(conn.channel, conn.in, IDLE_TIMEOUT);
+		RandomAccessFile out = null;
+
+		try {
+			/* unless the client went ahead and sent the body anyway */
+			if(expect && conn.in.position() == 0)
+				body.send(ascii("HTTP/1.1 100 Continue\r\n\r\n"));
+
+			out = new RandomAccessFile(file, "rw");
+			FileChannel channel = out.getChannel();
+
+			if(start < 0) {
+				channel.truncate(0);
+				start = 0;
+			}
+
+			if(chunked_body)
+				body.receiveChunked(channel, start);
+			else
+				body.receive(channel, start, length);
+
+			if(total >= 0 && channel.size() > total)
+				channel.truncate(total);
+
+			out.close();
+			out = null;
+
+		} finally {
+			body.close();
+			BackupEngine.close(out);
+		}
+
+		send_status(conn, created ? 201 : 204, created ? "Created" : "No Content");
+	}
+
+	private void make_dir(Connection conn, File dir) {
+		if(dir.exists())
+			send_error(conn, 405, "Method Not Allowed", false);
+		else if(dir.getParentFile() == null || !dir.getParentFile().isDirectory())
+			send_error(conn, 409, "Conflict", false);
+		else if(dir.mkdir())
+			send_status(conn, 201, "Created");
+		else
+			send_error(conn, 403, "Forbidden", false);
+	}
+
+	private void move(Connection conn, final File file, Request request) throws IOException {
+		String destination = request.headers.get("destination");
+		String path = destination == null ? null : destination_path(destination);
+
+		if(path == null) {
+			send_error(conn, 400, "Bad Request", false);
+			return;
+		}
+
+		final File target = new File(root, path);
+		String from = file.getCanonicalPath();
+		String to = target.getCanonicalPath();
+		final boolean same = is_same_file(from, to, target);
+		final boolean existed = target.exists() && !same;
+
+		if(!inside_root(to) || to.equals(root_path) || from.equals(root_path) || !is_listed(to) ||
+		   to.equals(from) || is_inside(to, from) || is_inside(from, to)) {
+			/* onto itself, into itself or over a folder holding it */
+			send_error(conn, 403, "Forbidden", false);
+
+		} else if(target.getParentFile() == null || !target.getParentFile().isDirectory()) {
+			send_error(conn, 409, "Conflict", false);
+
+		} else if(existed && "F".equalsIgnoreCase(request.headers.get("overwrite"))) {
+			send_error(conn, 412, "Precondition Failed", false);
+
+		} else {
+			submit(conn, new Job() {
+				public void run(Connection conn) throws IOException {
+					File aside = null;
+
+					/* what is overwritten is only deleted once the move worked */
+					if(existed) {
+						aside = new File(target.getParentFile(), ".move-" + System.currentTimeMillis() +
+										 "-" + target.getName());
+						if(!target.renameTo(aside)) {
+							send_error(conn, 403, "Forbidden", false);
+							return;
+						}
+					}
+
+					if(file.renameTo(target)) {
+						if(aside != null)
+							browser.deleteTargetPermanently(aside.getPath());
+						send_status(conn, existed ? 204 : 201, existed ? "No Content" : "Created");
+
+					} else {
+						if(aside != null)
+							aside.renameTo(target);
+						send_error(conn, 403, "Forbidden", false);
+					}
+				}
+			});
+		}
+	}
+
+	/*
+	 * true if the canonical path to names the file at from. On vfat, as
+	 * the sdcard is, names differing only in case are the same file, which
+	 * is told apart from a file of its own by the exact name not being
+	 * listed in the folder.
+	 */
+	private static boolean is_same_file(String from, String to, File target) {
+		if(to.equals(from))
+			return true;
+		if(!to.equalsIgnoreCase(from) || !target.exists())
+			return false;
+
+		String[] names = target.getParentFile().list();
+		if(names != null)
+			for(String name : names)
+				if(name.equals(target.getName()))
+					return false;
+
+		return true;
+	}
+
+	/*
+	 * true if canonical path is below dir, ignoring case as vfat does
+	 */
+	private static boolean is_inside(String path, String dir) {
+		return path.length() > dir.length() + 1 && path.charAt(dir.length()) == '/' &&
+			   path.regionMatches(true, 0, dir, 0, dir.length());
+	}
+
+	/*
+	 * a PROPFIND answers with the properties of the target and, unless
+	 * depth is 0, of every entry of a directory. The entries are sent while
+	 * they are gone through, like a listing.
+	 */
+	private void send_properties(Connection conn, File file, String path, String depth) {
+		StringBuilder header = status_line(207, "Multi-Status");
+		StringBuilder xml = new StringBuilder(1024);
+		boolean dir = file.isDirectory();
+		String href = encode(dir && !path.endsWith("/") ? path + "/" : path);
+
+		header.append("Content-Type: application/xml; charset=utf-8\r\n");
+		if(conn.chunked)
+			header.append("Transfer-Encoding: chunked\r\n");
+		else
+			conn.keep_alive = false;
+		finish_header(conn, header);
+
+		xml.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<D:multistatus xmlns:D=\"DAV:\">\n");
+		append_properties(xml, href, file, dir);
+
+		if(dir && !"0".equals(depth)) {
+			list(conn, file);
+			conn.href = href;
+			conn.out = join(conn.out, chunk(conn, xml.toString()));
+		} else {
+			xml.append("</D:multistatus>\n");
+			conn.out = join(conn.out, join(chunk(conn, xml.toString()), last_chunk(conn)));
+		}
+	}
+
+	private void append_properties(StringBuilder xml, String href, File file, boolean dir) {
+		xml.append("<D:response><D:href>").append(escape(href)).append("</D:href>")
+		   .append("<D:propstat><D:prop><D:displayname>").append(escape(file.getName()))
+		   .append("</D:displayname>");
+
+		if(dir) {
+			xml.append("<D:resourcetype><D:collection/></D:resourcetype>");
+		} else {
+			xml.append("<D:resourcetype/><D:getcontentlength>").append(file.length())
+			   .append("</D:getcontentlength><D:getcontenttype>").append(type_of(file.getName()))
+			   .append("</D:getcontenttype>");
+		}
+
+		xml.append("<D:getlastmodified>").append(format_date(file.lastModified()))
+		   .append("</D:getlastmodified></D:prop><D:status>HTTP/1.1 200 OK</D:status>")
+		   .append("</D:propstat></D:response>\n");
+	}
+
+	private void send_file(Connection conn, File file, Request request, boolean head)
+					throws IOException {
+		long length = file.length();
+		String modified = format_date(file.lastModified());
+		String if_range = request.headers.get("if-range");
+		long[] range = null;
+
+		if(if_range == null || if_range.equals(modified))
+			range = parse_range(request.headers.get("range"), length);
+
+		if(range == UNSATISFIABLE) {
+			StringBuilder header = status_line(416, "Range Not Satisfiable");
+			header.append("Content-Range: bytes */").append(length).append("\r\n");
+			header.append("Content-Length: 0\r\n");
+			finish_header(conn, header);
+			return;
+		}
+
+		long start = range == null ? 0 : range[0];
+		long end = range == null ? length : range[1];
+		StringBuilder header = range == null ? status_line(200, "OK") :
+											   status_line(206, "Partial Content");
+
+		header.append("Content-Type: ").append(type_of(file.getName())).append("\r\n");
+		header.append("Content-Length: ").append(end - start).append("\r\n");
+		header.append("Accept-Ranges: bytes\r\n");
+		header.append("Last-Modified: ").append(modified).append("\r\n");
+		if(range != null)
+			header.append("Content-Range: bytes ").append(start).append('-').append(end - 1)
+				  .append('/').append(length).append("\r\n");
+		finish_header(conn, header);
+
+		if(!head && end > start) {
+			conn.file = new FileInputStream(file).getChannel();
+			conn.position = start;
+			conn.end = end;
+		}
+	}
+
+	private void send_listing(Connection conn, File dir, String path, boolean head)
+					throws IOException {
+		StringBuilder header = status_line(200, "OK");
+
+		header.append("Content-Type: text/html; charset=utf-8\r\n");
+		if(conn.chunked)
+			header.append("Transfer-Encoding: chunked\r\n");
+		else
+			conn.keep_alive = false;
+		finish_header(conn, header);
+
+		if(head)
+			return;
+
+		list(conn, dir);
+
+		String title = escape(path);
+		conn.out = join(conn.out, chunk(conn, "<html><head><title>" + title +
+						"</title></head><body><h2>" + title + "</h2><ul>\n" +
+						(path.equals("/") ? "" : "<li><a href=\"../\">../</a></li>\n")));
+	}
+
+	private void list(Connection conn, File dir) {
+		IoScheduler io = IoScheduler.forPath(dir.getPath());
+
+		/* file operations on the same device hold off while this runs */
+		io.beginForeground();
+		try {
+			conn.listing = dir.list();
+		} finally {
+			io.endForeground();
+		}
+
+		if(conn.listing == null)
+			conn.listing = new String[0];
+
+		conn.dir = dir;
+		conn.listed = -1;
+	}
+
+	private void send_redirect(Connection conn, String location, boolean head) {
+		StringBuilder header = status_line(301, "Moved Permanently");
+
+		header.append("Location: ").append(location).append("\r\n");
+		header.append("Content-Length: 0\r\n");
+		finish_header(conn, header);
+	}
+
+	private void send_error(Connection conn, int status, String reason, boolean head) {
+		String body = "<html><body><h2>" + status + " " + reason + "</h2></body></html>\n";
+		StringBuilder header = status_line(status, reason);
+
+		header.append("Content-Type: text/html\r\n");
+		header.append("Content-Length: ").append(body.length()).append("\r\n");
+		if(status == 501 || status == 405)
+			header.append("Allow: ").append(ALLOW).append("\r\n");
+		if(status == 401)
+			header.append("WWW-Authenticate: Basic realm=\"Open Manager\"\r\n");
+		finish_header(conn, header);
+
+		if(!head)
+			conn.out = join(conn.out, ascii(body));
+	}
+
+	private void send_status(Connection conn, int status, String reason) {
+		StringBuilder header = status_line(status, reason);
+
+		header.append("Content-Length: 0\r\n");
+		finish_header(conn, header);
+	}
+
+	private StringBuilder status_line(int status, String reason) {
+		StringBuilder header = new StringBuilder(256);
+
+		header.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+		header.append("Date: ").append(format_date(System.currentTimeMillis())).append("\r\n");
+		header.append("Server: OpenManager\r\n");
+
+		return header;
+	}
+
+	private String format_date(long time) {
+		synchronized(date_format) {
+			return date_format.format(new Date(time));
+		}
+	}
+
+	private void finish_header(Connection conn, StringBuilder header) {
+		header.append(conn.keep_alive ? "Connection: keep-alive\r\n" : "Connection: close\r\n");
+		header.append("\r\n");
+		conn.out = ascii(header.toString());
+	}
+
+	/*
+	 * writes as much of the response as the socket takes now
+	 */
+	private void write(SelectionKey key, Connection conn) throws IOException {
+		if(conn.out != null && conn.out.hasRemaining()) {
+			if(conn.channel.write(conn.out) > 0)
+				conn.last_active = System.currentTimeMillis();
+			if(conn.out.hasRemaining())
+				return;
+		}
+
+		/* one block per turn, so every connection gets its share */
+		if(conn.file != null && conn.position < conn.end) {
+			long sent = conn.file.transferTo(conn.position,
+											 Math.min(CHUNK, conn.end - conn.position),
+											 conn.channel);
+
+			if(sent > 0) {
+				conn.position += sent;
+				conn.last_active = System.currentTimeMillis();
+
+			} else if(conn.position >= conn.file.size()) {
+				/* the file was cut short while it was being sent */
+				close(key);
+			}
+			return;
+		}
+
+		if(conn.listing != null) {
+			conn.out = next_listing(conn);
+			return;
+		}
+
+		/* the response is done */
+		if(!conn.keep_alive) {
+			close(key);
+			return;
+		}
+
+		reset(conn);
+		key.interestOps(SelectionKey.OP_READ);
+		next_request(key, conn);
+	}
+
+	/*
+	 * the entries of the listing that fit in the next chunk, and the end of
+	 * the page after the last one. A PROPFIND listing has the properties
+	 * of each entry instead.
+	 */
+	private ByteBuffer next_listing(Connection conn) {
+		StringBuilder html = new StringBuilder(LISTING_CHUNK + 512);
+		ByteBuffer buffer;
+
+		while(++conn.listed < conn.listing.length && html.length() < LISTING_CHUNK) {
+			String name = conn.listing[conn.listed];
+
+			if(!browser.isListed(name))
+				continue;
+
+			File file = new File(conn.dir, name);
+			boolean dir = file.isDirectory();
+
+			if(conn.href != null) {
+				append_properties(html, conn.href + encode(name) + (dir ? "/" : ""), file, dir);
+				continue;
+			}
+
+			html.append("<li><a href=\"").append(encode(name)).append(dir ? "/\">" : "\">")
+				.append(escape(name)).append(dir ? "/</a>" : "</a>");
+			if(!dir)
+				html.append(" &nbsp; ").append(size_of(file.length()));
+			html.append("</li>\n");
+		}
+
+		if(conn.listed < conn.listing.length) {
+			/* the loop went one past the last entry it added */
+			conn.listed--;
+			return chunk(conn, html.toString());
+		}
+
+		html.append(conn.href != null ? "</D:multistatus>\n" : "</ul></body></html>\n");
+		conn.listing = null;
+		conn.dir = null;
+		conn.href = null;
+
+		buffer = chunk(conn, html.toString());
+		return join(buffer, last_chunk(conn));
+	}
+
+	private static ByteBuffer last_chunk(Connection conn) {
+		return conn.chunked ? ascii("0\r\n\r\n") : ByteBuffer.allocate(0);
+	}
+
+	private ByteBuffer chunk(Connection conn, String text) {
+		byte[] bytes;
+
+		try {
+			bytes = text.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			bytes = text.getBytes();
+		}
+
+		if(!conn.chunked)
+			return ByteBuffer.wrap(bytes);
+
+		String size = Integer.toHexString(bytes.length) + "\r\n";
+		ByteBuffer buffer = ByteBuffer.allocate(size.length() + bytes.length + 2);
+
+		buffer.put(ascii(size)).put(bytes).put((byte)'\r').put((byte)'\n');
+		buffer.flip();
+
+		return buffer;
+	}
+
+	private static ByteBuffer join(ByteBuffer first, ByteBuffer second) {
+		if(first == null || !first.hasRemaining())
+			return second;
+
+		ByteBuffer joined = ByteBuffer.allocate(first.remaining() + second.remaining());
+		joined.put(first).put(second);
+		joined.flip();
+
+		return joined;
+	}
+
+	private static ByteBuffer ascii(String text) {
+		try {
+			return ByteBuffer.wrap(text.getBytes("ISO-8859-1"));
+		} catch (UnsupportedEncodingException e) {
+			return ByteBuffer.wrap(text.getBytes());
+		}
+	}
+
+	private static void reset(Connection conn) {
+		BackupEngine.close(conn.file);
+		conn.file = null;
+		conn.out = null;
+		conn.listing = null;
+		conn.dir = null;
+		conn.href = null;
+	}
+
+	private void close_idle() {
+		long now = System.currentTimeMillis();
+
+		for(SelectionKey key : selector.keys()) {
+			Connection conn = (Connection)key.attachment();
+
+			/* a worker times out its own reads */
+			if(conn != null && !conn.busy && now - conn.last_active > IDLE_TIMEOUT)
+				close(key);
+		}
+	}
+
+	private static void close(SelectionKey key) {
+		Connection conn = (Connection)key.attachment();
+
+		key.cancel();
+		if(conn != null) {
+			reset(conn);
+			BackupEngine.close(conn.channel);
+		}
+	}
+
+	/*
+	 * decodes base64 into one char per byte, null if text is not base64
+	 */
+	static String decode_base64(String text) {
+		StringBuilder out = new StringBuilder(text.length() * 3 / 4);
+		int bits = 0;
+		int count = 0;
+
+		for(int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			int value;
+
+			if(c >= 'A' && c <= 'Z')
+				value = c - 'A';
+			else if(c >= 'a' && c <= 'z')
+				value = c - 'a' + 26;
+			else if(c >= '0' && c <= '9')
+				value = c - '0' + 52;
+			else if(c == '+')
+				value = 62;
+			else if(c == '/')
+				value = 63;
+			else if(c == '=')
+				break;
+			else
+				return null;
+
+			bits = (bits << 6 | value) & 0xffffff;
+			count += 6;
+			if(count >= 8) {
+				count -= 8;
+				out.append((char)((bits >> count) & 0xff));
+			}
+		}
+
+		return out.toString();
+	}
+
+	/*
+	 * parses a Range header for a file of length bytes. Only a single
+	 * range is honoured, anything else is answered with the whole file.
+	 *
+	 * @return	{start, end} with end exclusive, null for the whole file or
+	 * 			UNSATISFIABLE if the range lies past the end of the file
+	 */
+	static long[] parse_range(String range, long length) {
+		if(range == null || !range.startsWith("bytes=") || range.indexOf(',') >= 0)
+			return null;
+
+		String spec = range.substring(6).trim();
+		int dash = spec.indexOf('-');
+
+		if(dash < 0)
+			return null;
+
+		try {
+			String first = spec.substring(0, dash).trim();
+			String last = spec.substring(dash + 1).trim();
+
+			if(first.length() == 0) {
+				long suffix = Long.parseLong(last);
+
+				if(suffix <= 0)
+					return UNSATISFIABLE;
+				return new long[] {Math.max(0, length - suffix), length};
+			}
+
+			long start = Long.parseLong(first);
+			long end = last.length() == 0 ? Long.MAX_VALUE : Long.parseLong(last) + 1;
+
+			if(end <= start)
+				return null;
+			if(start >= length)
+				return UNSATISFIABLE;
+
+			return new long[] {start, Math.min(end, length)};
+
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * parses the Content-Range of a PUT, "bytes first-last/total" where
+	 * total may be '*'. The range must be as long as the body.
+	 *
+	 * @return	{first, total} with total -1 if unknown, or null if malformed
+	 */
+	static long[] parse_content_range(String range, long length) {
+		if(!range.startsWith("bytes "))
+			return null;
+
+		int dash = range.indexOf('-');
+		int slash = range.indexOf('/');
+		if(dash < 0 || slash < dash)
+			return null;
+
+		try {
+			long first = Long.parseLong(range.substring(6, dash).trim());
+			long last = Long.parseLong(range.substring(dash + 1, slash).trim());
+			String total = range.substring(slash + 1).trim();
+			long size = total.equals("*") ? -1 : Long.parseLong(total);
+
+			if(first < 0 || last < first || last - first + 1 != length ||
+			   (size >= 0 && last >= size))
+				return null;
+
+			return new long[] {first, size};
+
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * the decoded path of a Destination header, which is usually a whole URL
+	 */
+	static String destination_path(String destination) {
+		int scheme = destination.indexOf("://");
+
+		if(scheme >= 0) {
+			int slash = destination.indexOf('/', scheme + 3);
+			destination = slash < 0 ? "/" : destination.substring(slash);
+		}
+		if(!destination.startsWith("/"))
+			return null;
+
+		int query = destination.indexOf('?');
+		return decode(query < 0 ? destination : destination.substring(0, query));
+	}
+
+	/*
+	 * undoes the %XX escapes of a request path
+	 *
+	 * @return	null if the escapes are broken
+	 */
+	static String decode(String path) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(path.length());
+		int len = path.length();
+
+		for(int i = 0; i < len; i++) {
+			char c = path.charAt(i);
+
+			if(c != '%') {
+				bytes.write(c);
+				continue;
+			}
+			if(i + 2 >= len)
+				return null;
+
+			int high = Character.digit(path.charAt(i + 1), 16);
+			int low = Character.digit(path.charAt(i + 2), 16);
+			if(high < 0 || low < 0)
+				return null;
+
+			bytes.write(high * 16 + low);
+			i += 2;
+		}
+
+		try {
+			return bytes.toString("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * escapes everything but unreserved characters and '/' for use in a URL
+	 */
+	static String encode(String name) {
+		StringBuilder encoded = new StringBuilder(name.length() + 16);
+		byte[] bytes;
+
+		try {
+			bytes = name.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			bytes = name.getBytes();
+		}
+
+		for(byte b : bytes) {
+			int c = b & 0xff;
+
+			if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+			   c == '-' || c == '_' || c == '.' || c == '~' || c == '/')
+				encoded.append((char)c);
+			else
+				encoded.append('%').append(HEX[c >> 4]).append(HEX[c & 0xf]);
+		}
+
+		return encoded.toString();
+	}
+
+	private static String escape(String text) {
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+				   .replace("\"", "&quot;");
+	}
+
+	private static String type_of(String name) {
+		int dot = name.lastIndexOf('.');
+		String type = dot < 0 ? null : TYPES.get(name.substring(dot + 1).toLowerCase());
+
+		return type == null ? "application/octet-stream" : type;
+	}
+
+	private static String size_of(long bytes) {
+		if(bytes < 1024)
+			return bytes + " bytes";
+		if(bytes < 1024 * 1024)
+			return String.format("%.2f Kb", bytes / 1024.0);
+
+		return String.format("%.2f Mb", bytes / (1024.0 * 1024.0));
+	}
+}
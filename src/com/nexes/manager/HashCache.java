@@ -0,0 +1,189 @@
+/*
+    Open Manager, an open source file manager for the Android system
+    Copyright (C) 2009, 2010  Joe Berria <nexesdevelopment@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.nexes.manager;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the checksums already worked out, so writing the manifest of
+ * a folder again only reads the files that changed. A checksum is kept
+ * with the size and modification time the file had, and is only given
+ * back while the file still has both.
+ * <br>
+ * At most MAX_ENTRIES checksums are kept, the ones least recently used
+ * are dropped first. They are saved to a file in the directory given to
+ * setDirectory, one tab separated line each. Without a directory they
+ * only last as long as the process.
+ */
+public final class HashCache {
+	private static final String FILE_NAME = "checksums";
+	private static final int MAX_ENTRIES = 20000;
+
+	private static final LinkedHashMap<String, Cached> entries =
+		new LinkedHashMap<String, Cached>(256, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+				return size() > MAX_ENTRIES;
+			}
+		};
+
+	private static File file;
+	private static boolean loaded = false;
+	private static boolean changed = false;
+
+	private static final class Cached {
+		final long size;
+		final long modified;
+		final String hex;
+
+		Cached(long size, long modified, String hex) {
+			this.size = size;
+			this.modified = modified;
+			this.hex = hex;
+		}
+	}
+
+	private HashCache() {
+	}
+
+	/**
+	 * @param dir	where the cache is kept, such as the application's
+	 * 				cache directory
+	 */
+	public static synchronized void setDirectory(File dir) {
+		file = new File(dir, FILE_NAME);
+		loaded = false;
+	}
+
+	/**
+	 * @param size		the length the file has now
+	 * @param modified	the modification time the file has now
+	 * @return			the checksum of path, or null if it is not known
+	 * 					for a file of that size and time
+	 */
+	public static synchronized String get(String algorithm, String path, long size, long modified) {
+		load();
+
+		Cached entry = entries.get(algorithm + ':' + path);
+		if(entry == null || entry.size != size || entry.modified != modified)
+			return null;
+
+		return entry.hex;
+	}
+
+	/**
+	 * @param size		the length the file had when it was read
+	 * @param modified	the modification time it had when it was read
+	 */
+	public static synchronized void put(String algorithm, String path, long size,
+										long modified, String hex) {
+		load();
+
+		entries.put(algorithm + ':' + path, new Cached(size, modified, hex));
+		changed = true;
+	}
+
+	/**
+	 * Writes the cache to its file if anything was added since it was read.
+	 */
+	public static synchronized void save() {
+		if(!changed || file == null)
+			return;
+
+		File temp = new File(file.getPath() + ".tmp");
+		BufferedWriter out = null;
+
+		try {
+			out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+
+			for(Map.Entry<String, Cached> e : entries.entrySet()) {
+				Cached entry = e.getValue();
+				String key = e.getKey();
+				int colon = key.indexOf(':');
+
+				out.write(key.substring(0, colon) + '\t' + entry.size + '\t' + entry.modified +
+						  '\t' + entry.hex + '\t' + key.substring(colon + 1) + '\n');
+			}
+
+			out.close();
+			out = null;
+
+			if(temp.renameTo(file))
+				changed = false;
+
+		} catch (IOException e) {
+			/* the checksums are worked out again next time */
+
+		} finally {
+			BackupEngine.close(out);
+			temp.delete();
+		}
+	}
+
+	/*
+	 * reads the file once, lines that do not parse are left out
+	 */
+	private static void load() {
+		if(loaded)
+			return;
+
+		loaded = true;
+		if(file == null || !file.isFile())
+			return;
+
+		BufferedReader in = null;
+		try {
+			in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			String line;
+
+			while((line = in.readLine()) != null) {
+				String[] fields = line.split("\t", 5);
+
+				if(fields.length != 5)
+					continue;
+
+				try {
+					String key = fields[0] + ':' + fields[4];
+
+					/* anything put since the process started is newer */
+					if(!entries.containsKey(key))
+						entries.put(key, new Cached(Long.parseLong(fields[1]),
+									Long.parseLong(fields[2]), fields[3]));
+				} catch (NumberFormatException e) { }
+			}
+
+		} catch (IOException e) {
+			/* start from what is known so far */
+
+		} finally {
+			BackupEngine.close(in);
+		}
+	}
+}
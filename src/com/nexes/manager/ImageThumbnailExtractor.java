@@ -0,0 +1,50 @@
+/*
+    Open Manager, an open source file manager for the Android system
+    Copyright (C) 2009, 2010  Joe Berria <nexesdevelopment@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.nexes.manager;
+
+import java.io.File;
+
+import android.graphics.Bitmap;
+
+/**
+ * Thumbnails for image files. JPEGs try their embedded EXIF thumbnail
+ * before falling back to a sampled decode of the whole image.
+ */
+public class ImageThumbnailExtractor implements ThumbnailExtractor {
+
+	public boolean accepts(String extension) {
+		return extension.equals("png") || extension.equals("jpg") ||
+			   extension.equals("jpeg") || extension.equals("gif") ||
+			   extension.equals("tiff");
+	}
+
+	public Bitmap extract(File file, int width, int height, BitmapPool pool) {
+		String path = file.getPath();
+		String name = file.getName().toLowerCase();
+		Bitmap image = null;
+
+		if(name.endsWith(".jpg") || name.endsWith(".jpeg"))
+			image = ExifThumbnailReader.decodeThumbnail(path, width, height, pool);
+
+		if(image == null)
+			image = BitmapDecoder.decodeFile(path, width, height, pool);
+
+		return image;
+	}
+}
@@ -0,0 +1,205 @@
+/*
+    Open Manager, an open source file manager for the Android system
+    Copyright (C) 2009, 2010  Joe Berria <nexesdevelopment@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.nexes.manager;
+
+import java.util.HashMap;
+
+/**
+ * Orders the I/O going to one storage device. There is one scheduler per
+ * mount point and work is split in two classes:
+ * <ul>
+ * <li>foreground, what the user is waiting to see: directory listings and
+ * the thumbnails of visible rows. Listings only announce themselves and
+ * never wait, thumbnail decodes are limited to a few at a time.</li>
+ * <li>bulk, the file operations: a limited number run at once, each holds
+ * off between blocks while foreground work is going on, and together
+ * they are kept under a byte rate by a token bucket.</li>
+ * </ul>
+ * A bulk operation never waits for foreground work longer than
+ * MAX_YIELD per block, so a long scroll through thumbnails slows a copy
+ * down without stopping it.
+ */
+public final class IoScheduler {
+	public static final int DEFAULT_BULK_LIMIT = 1;
+	public static final int DEFAULT_FOREGROUND_LIMIT = 2;
+	public static final long UNLIMITED = 0;
+
+	private static final long MAX_YIELD = 100;				//ms a block may wait for foreground work
+	private static final long MIN_BURST = 64 * 1024;		//smallest token bucket, in bytes
+
+	private static final HashMap<String, IoScheduler> schedulers = new HashMap<String, IoScheduler>();
+	private static long default_rate = UNLIMITED;
+
+	private final String mount_point;
+	private int foreground = 0;			//foreground work in progress
+	private int foreground_slots = 0;	//slots taken by thumbnail decodes
+	private final int foreground_limit = DEFAULT_FOREGROUND_LIMIT;
+	private int bulk = 0;
+	private final int bulk_limit = DEFAULT_BULK_LIMIT;
+
+	/* the token bucket, rate is in bytes per second */
+	private long rate;
+	private double tokens;
+	private long last_refill;
+
+	private IoScheduler(String mountPoint) {
+		mount_point = mountPoint;
+		rate = default_rate;
+		last_refill = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return	the scheduler of the device path is on
+	 */
+	public static IoScheduler forPath(String path) {
+		return forMount(MountTable.getMountPoint(path));
+	}
+
+	public static IoScheduler forMount(String mountPoint) {
+		synchronized(schedulers) {
+			IoScheduler io = schedulers.get(mountPoint);
+
+			if(io == null) {
+				io = new IoScheduler(mountPoint);
+				schedulers.put(mountPoint, io);
+			}
+
+			return io;
+		}
+	}
+
+	/**
+	 * Sets the bulk byte rate of every device, including the ones whose
+	 * scheduler has not been made yet.
+	 *
+	 * @param bytesPerSecond	the cap, or UNLIMITED
+	 */
+	public static void setDefaultBulkRate(long bytesPerSecond) {
+		synchronized(schedulers) {
+			default_rate = bytesPerSecond;
+
+			for(IoScheduler io : schedulers.values())
+				io.setBulkRate(bytesPerSecond);
+		}
+	}
+
+	public String getMountPoint() {
+		return mount_point;
+	}
+
+	/* ---------------- foreground ---------------- */
+
+	/**
+	 * Marks the start of foreground work that must not wait, such as
+	 * listing a directory on the UI thread. Always pair with endForeground.
+	 */
+	public synchronized void beginForeground() {
+		foreground++;
+	}
+
+	public synchronized void endForeground() {
+		foreground--;
+		notifyAll();
+	}
+
+	/**
+	 * Waits for one of the device's foreground slots and marks the start
+	 * of foreground work. Always pair with releaseForeground.
+	 */
+	public synchronized void acquireForeground() throws InterruptedException {
+		while(foreground_slots >= foreground_limit)
+			wait();
+
+		foreground_slots++;
+		foreground++;
+	}
+
+	public synchronized void releaseForeground() {
+		foreground_slots--;
+		foreground--;
+		notifyAll();
+	}
+
+	/* ---------------- bulk ---------------- */
+
+	/**
+	 * Takes one of the device's bulk slots if one is free.
+	 *
+	 * @return	true if the caller may start, it must then call finishBulk
+	 */
+	public synchronized boolean tryStartBulk() {
+		if(bulk >= bulk_limit)
+			return false;
+
+		bulk++;
+		return true;
+	}
+
+	public synchronized void finishBulk() {
+		bulk--;
+	}
+
+	/**
+	 * @param bytesPerSecond	the cap shared by all bulk work on the
+	 * 							device, or UNLIMITED
+	 */
+	public synchronized void setBulkRate(long bytesPerSecond) {
+		rate = Math.max(UNLIMITED, bytesPerSecond);
+		tokens = 0;
+		last_refill = System.currentTimeMillis();
+	}
+
+	/**
+	 * Called by bulk work before each block. Waits while foreground work
+	 * is going on, but no longer than MAX_YIELD.
+	 */
+	public synchronized void yieldToForeground() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + MAX_YIELD;
+		long left;
+
+		while(foreground > 0 && (left = deadline - System.currentTimeMillis()) > 0)
+			wait(left);
+	}
+
+	/**
+	 * Called by bulk work after each block it read or wrote. Takes count
+	 * from the token bucket and tells the caller how long to hold off, so
+	 * each caller can wait in a way its cancel can cut short.
+	 *
+	 * @param count	the bytes just read or written
+	 * @return		ms to wait before the next block, 0 for none
+	 */
+	public synchronized long charge(long count) {
+		if(rate <= UNLIMITED)
+			return 0;
+
+		long now = System.currentTimeMillis();
+		double burst = Math.max(MIN_BURST, rate / 4);
+
+		tokens = Math.min(burst, tokens + (now - last_refill) * rate / 1000.0);
+		last_refill = now;
+		tokens -= count;
+
+		if(tokens >= 0)
+			return 0;
+
+		/* in debt, wait until the bucket has paid it back */
+		return (long)(-tokens * 1000 / rate);
+	}
+}
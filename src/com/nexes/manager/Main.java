@@ -72,6 +72,10 @@ public final class Main extends ListActivity {
 	public static final String PREFS_NAME = "ManagerPrefsFile";	//user preference file name
 	public static final String PREFS_HIDDEN = "hidden";
 	public static final String PREFS_COLOR = "color";
+	public static final String PREFS_TRASH = "trash";
+	public static final String PREFS_VERIFY = "verify_copies";
+	public static final String PREFS_PREFETCH = "prefetch";
+	public static final String PREFS_BULK_RATE = "bulk_rate";	//KB per second, 0 for no limit
 	
 	private static final int MENU_MKDIR =   0x00;			//option menu id
 	private static final int MENU_SETTING = 0x01;			//option menu id
@@ -79,6 +83,7 @@ public final class Main extends ListActivity {
 	private static final int MENU_SPACE =   0x03;			//option menu id
 	private static final int MENU_QUIT = 	0x04;			//option menu id
 	private static final int MENU_SORT =	0x05;			//option menu id
+	private static final int MENU_UNDO =	0x06;			//option menu id
 	private static final int SEARCH_B = 	0x09;
 	
 	private static final int D_MENU_DELETE = 0x05;			//context menu id
@@ -91,6 +96,12 @@ public final class Main extends ListActivity {
 	private static final int F_MENU_RENAME = 0x0b;			//context menu id
 	private static final int F_MENU_ATTACH = 0x0c;			//context menu id
 	private static final int F_MENU_COPY =   0x0d;			//context menu id
+	private static final int M_MENU_RANGE =  0x11;			//context menu id
+	private static final int M_MENU_ALL =    0x12;			//context menu id
+	private static final int M_MENU_INVERT = 0x13;			//context menu id
+	private static final int M_MENU_CLEAR =  0x14;			//context menu id
+	private static final int D_MENU_CHECKSUM = 0x15;		//context menu id
+	private static final int F_MENU_VERIFY = 0x16;			//context menu id
 	private static final int SETTING_REQ = 	 0x10;			//request code for intent
 
 	private FileManager flmg;
@@ -104,6 +115,7 @@ public final class Main extends ListActivity {
 	private String copied_target;
 	private String zipped_target;
 	private String selected_list_item;				//item from context menu
+	private int selected_position;					//position of that item
 	private TextView  path_label, detail_label;
 
 	@Override
@@ -116,12 +128,22 @@ public final class Main extends ListActivity {
         settings = getSharedPreferences(PREFS_NAME, 0);
         boolean hide = settings.getBoolean(PREFS_HIDDEN, false);
         int color = settings.getInt(PREFS_COLOR, -1);
+        boolean trash = settings.getBoolean(PREFS_TRASH, true);
+        boolean verify = settings.getBoolean(PREFS_VERIFY, false);
+        int prefetch = settings.getInt(PREFS_PREFETCH, EventHandler.DEFAULT_PREFETCH);
+        int rate = settings.getInt(PREFS_BULK_RATE, 0);
+        
+        IoScheduler.setDefaultBulkRate(rate * 1024L);
         
         flmg = new FileManager();
         flmg.setShowHiddenFiles(hide);
+        flmg.setUseTrash(trash);
+        flmg.setVerifyCopies(verify);
+        HashCache.setDirectory(getCacheDir());
         
         handler = new EventHandler(Main.this, flmg);
         handler.setTextColor(color);
+        handler.setPrefetchDistance(prefetch);
         table = handler.new TableRow();
         
         /*sets the ListAdapter for our ListActivity and
@@ -194,7 +216,7 @@ public final class Main extends ListActivity {
     	 * not make an intent for it.
     	 */
     	if(multiSelect) {
-    		table.addMultiPosition(position, file.getPath());
+    		table.addMultiPosition(position);
     		
     	} else {
 	    	if (file.isDirectory()) {
@@ -334,7 +356,11 @@ public final class Main extends ListActivity {
     	
     	SharedPreferences.Editor editor = settings.edit();
     	boolean check;
+    	boolean trash;
+    	boolean verify;
     	int color;
+    	int prefetch;
+    	int rate;
     	
     	/* resultCode must equal RESULT_CANCELED because the only way
     	 * out of that activity is pressing the back button on the phone
@@ -344,17 +370,38 @@ public final class Main extends ListActivity {
     		//save the information we get from settings activity
     		check = data.getBooleanExtra("HIDDEN", false);
     		color = data.getIntExtra("COLOR", -1);
+    		trash = data.getBooleanExtra("TRASH", true);
+    		verify = data.getBooleanExtra("VERIFY", false);
+    		prefetch = data.getIntExtra("PREFETCH", EventHandler.DEFAULT_PREFETCH);
+    		rate = data.getIntExtra("RATE", 0);
     		
     		editor.putBoolean(PREFS_HIDDEN, check);
     		editor.putInt(PREFS_COLOR, color);
+    		editor.putBoolean(PREFS_TRASH, trash);
+    		editor.putBoolean(PREFS_VERIFY, verify);
+    		editor.putInt(PREFS_PREFETCH, prefetch);
+    		editor.putInt(PREFS_BULK_RATE, rate);
     		editor.commit();
     		
+    		IoScheduler.setDefaultBulkRate(rate * 1024L);
+    		
     		flmg.setShowHiddenFiles(check);
+    		flmg.setUseTrash(trash);
+    		flmg.setVerifyCopies(verify);
     		handler.setTextColor(color);
+    		handler.setPrefetchDistance(prefetch);
     		handler.updateDirectory(flmg.getNextDir(flmg.getCurrentDir(), true));
     	}
     }
     
+    @Override
+    protected void onDestroy() {
+    	super.onDestroy();
+    	
+    	/* file operations keep running, the next activity picks them up */
+    	handler.detach();
+    }
+    
     /* ================Menus, options menu and context menu start here=================*/
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
@@ -365,6 +412,7 @@ public final class Main extends ListActivity {
 //    	menu.add(0, MENU_SPACE, 0, "Free space").setIcon(R.drawable.space);
     	menu.add(0, MENU_SETTING, 0, "Settings").setIcon(R.drawable.setting);
     	menu.add(0, MENU_SORT, 0, "Sort").setIcon(R.drawable.filter);
+    	menu.add(0, MENU_UNDO, 0, "Undo delete").setIcon(R.drawable.back);
     	menu.add(0, MENU_QUIT, 0, "Quit").setIcon(R.drawable.logout);
     	
     	return true;
@@ -388,6 +436,11 @@ public final class Main extends ListActivity {
     			Intent settings_int = new Intent(this, Settings.class);
     			settings_int.putExtra("HIDDEN", settings.getBoolean("hidden", false));
     			settings_int.putExtra("COLOR", settings.getInt(PREFS_COLOR, -1));
+    			settings_int.putExtra("TRASH", settings.getBoolean(PREFS_TRASH, true));
+    			settings_int.putExtra("VERIFY", settings.getBoolean(PREFS_VERIFY, false));
+    			settings_int.putExtra("PREFETCH", settings.getInt(PREFS_PREFETCH, 
+    														  EventHandler.DEFAULT_PREFETCH));
+    			settings_int.putExtra("RATE", settings.getInt(PREFS_BULK_RATE, 0));
     			
     			startActivityForResult(settings_int, SETTING_REQ);
     			return true;
@@ -414,6 +467,14 @@ public final class Main extends ListActivity {
     			builder.create().show();
     			return true;
     			
+    		case MENU_UNDO:
+    			if(!handler.restoreLastDeleted())
+    				Toast.makeText(this, flmg.hasTrashed() ? 
+    								"Something else is now where the deleted items were" :
+    								"Nothing to restore from the trash", 
+    								Toast.LENGTH_SHORT).show();
+    			return true;
+    			
     		case MENU_QUIT:
     			finish();
     			return true;
@@ -428,8 +489,17 @@ public final class Main extends ListActivity {
     	boolean multi_data = handler.hasMultiSelectData();
     	AdapterContextMenuInfo _info = (AdapterContextMenuInfo)info;
     	selected_list_item = handler.getData(_info.position);
+    	selected_position = _info.position;
 
-    	if(flmg.isDirectory(selected_list_item)) {
+    	/* while multi-select is on a long press works on the selection */
+    	if(handler.isMultiSelected()) {
+    		menu.setHeaderTitle("Selection");
+    		menu.add(0, M_MENU_RANGE, 0, "Select up to here");
+    		menu.add(0, M_MENU_ALL, 0, "Select all");
+    		menu.add(0, M_MENU_INVERT, 0, "Invert selection");
+    		menu.add(0, M_MENU_CLEAR, 0, "Clear selection").setEnabled(multi_data);
+    		
+    	} else if(flmg.isDirectory(selected_list_item)) {
     		menu.setHeaderTitle("Folder operations");
         	menu.add(0, D_MENU_DELETE, 0, "Delete Folder");
         	menu.add(0, D_MENU_RENAME, 0, "Rename Folder");
@@ -437,6 +507,7 @@ public final class Main extends ListActivity {
         	menu.add(0, D_MENU_PASTE, 0, "Paste into folder").setEnabled(holding_file || multi_data);
         	menu.add(0, D_MENU_ZIP, 0, "Zip Folder");        	
         	menu.add(0, D_MENU_UNZIP, 0, "Extract here").setEnabled(holding_zip);
+        	menu.add(0, D_MENU_CHECKSUM, 0, "Write checksums");
     		
     	} else {
         	menu.setHeaderTitle("File Operations");
@@ -444,6 +515,8 @@ public final class Main extends ListActivity {
     		menu.add(0, F_MENU_RENAME, 0, "Rename File");
     		menu.add(0, F_MENU_COPY, 0, "Copy File");
     		menu.add(0, F_MENU_ATTACH, 0, "Email File");
+    		if(ChecksumEngine.algorithmOf(selected_list_item) != null)
+    			menu.add(0, F_MENU_VERIFY, 0, "Verify checksums");
     	}	
     }
     
@@ -451,12 +524,31 @@ public final class Main extends ListActivity {
     public boolean onContextItemSelected(MenuItem item) {
 
     	switch(item.getItemId()) {
+    		case M_MENU_RANGE:
+    			table.selectMultiRange(selected_position);
+    			return true;
+    			
+    		case M_MENU_ALL:
+    			table.selectAllPositions();
+    			return true;
+    			
+    		case M_MENU_INVERT:
+    			table.invertMultiPositions();
+    			return true;
+    			
+    		case M_MENU_CLEAR:
+    			table.clearMultiPosition();
+    			return true;
+    			
     		case D_MENU_DELETE:
     		case F_MENU_DELETE:
     			AlertDialog.Builder builder = new AlertDialog.Builder(this);
     			builder.setTitle("Warning ");
     			builder.setIcon(R.drawable.warning);
-    			builder.setMessage("Deleting " + selected_list_item +
+    			if(flmg.isUsingTrash())
+    				builder.setMessage("Move " + selected_list_item + " to the trash?");
+    			else
+    				builder.setMessage("Deleting " + selected_list_item +
     							" cannot be undone. Are you sure you want to delete?");
     			builder.setCancelable(false);
     			
@@ -507,13 +599,29 @@ public final class Main extends ListActivity {
     				handler.copyFileMultiSelect(flmg.getCurrentDir() +"/"+ selected_list_item);
     				
     			} else if(holding_file && copied_target.length() > 1) {
+    				String paste_dir = flmg.getCurrentDir() +"/"+ selected_list_item;
+    				File existing = new File(paste_dir + copied_target.substring(copied_target.lastIndexOf("/")));
+    				
+    				/* a folder pasted over an earlier copy of itself only needs what changed */
+    				if(new File(copied_target).isDirectory() && existing.isDirectory() &&
+    				   !existing.getAbsolutePath().equals(new File(copied_target).getAbsolutePath()))
+    					show_sync_dialog(copied_target, paste_dir);
+    				else
+    					handler.copyFile(copied_target, paste_dir);
     				
-    				handler.copyFile(copied_target, flmg.getCurrentDir() +"/"+ selected_list_item);
     				holding_file = false;
     				detail_label.setText("");
     			}
     			return true;
     			
+    		case D_MENU_CHECKSUM:
+    			show_checksum_dialog(flmg.getCurrentDir() + "/" + selected_list_item);
+    			return true;
+    			
+    		case F_MENU_VERIFY:
+    			handler.verifyManifest(flmg.getCurrentDir() + "/" + selected_list_item);
+    			return true;
+    			
     		case D_MENU_ZIP:
     			String dir = flmg.getCurrentDir();
     			
@@ -546,6 +654,46 @@ public final class Main extends ListActivity {
     
     /* ================Menus, options menu and context menu end here=================*/
 
+    /*
+     * asks how to paste the folder source into dest, where a folder of
+     * the same name already is
+     */
+    private void show_sync_dialog(final String source, final String dest) {
+    	AlertDialog.Builder builder = new AlertDialog.Builder(this);
+    	CharSequence[] options = {"Copy what changed", 
+    							  "Copy what changed, delete what is gone",
+    							  "Show what copying would change",
+    							  "Show what copying and deleting would change"};
+    	
+    	builder.setTitle(source.substring(source.lastIndexOf("/") + 1) + " is already there");
+    	builder.setItems(options, new DialogInterface.OnClickListener() {
+			public void onClick(DialogInterface dialog, int which) {
+				handler.syncFolder(source, dest, which % 2 == 1, which >= 2);
+			}
+		});
+    	
+    	builder.create().show();
+    }
+    
+    /*
+     * asks which algorithm to write the manifest of folder with
+     */
+    private void show_checksum_dialog(final String folder) {
+    	AlertDialog.Builder builder = new AlertDialog.Builder(this);
+    	final String[] algorithms = {ChecksumEngine.SHA256, ChecksumEngine.SHA1,
+    								 ChecksumEngine.MD5, ChecksumEngine.CRC32};
+    	CharSequence[] options = {"SHA-256", "SHA-1", "MD5", "CRC32 (fastest)"};
+    	
+    	builder.setTitle("Checksum " + folder.substring(folder.lastIndexOf("/") + 1));
+    	builder.setItems(options, new DialogInterface.OnClickListener() {
+			public void onClick(DialogInterface dialog, int which) {
+				handler.checksumFolder(folder, algorithms[which]);
+			}
+		});
+    	
+    	builder.create().show();
+    }
+    
     @Override
     protected Dialog onCreateDialog(int id) {
     	final Dialog dialog = new Dialog(Main.this);
@@ -0,0 +1,116 @@
+/*
+    Open Manager, an open source file manager for the Android system
+    Copyright (C) 2009, 2010  Joe Berria <nexesdevelopment@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.nexes.manager;
+
+/**
+ * The last few values of a metric, such as the memory of a process
+ * sampled once a second. A fixed float array is used as a ring, so once
+ * full each new value overwrites the oldest and adding never allocates.
+ * <br>
+ * Not thread safe, the owner must guard it.
+ */
+public class MetricHistory {
+	private final float[] values;
+	private int start = 0;		//index of the oldest value
+	private int size = 0;
+
+	public MetricHistory(int capacity) {
+		values = new float[capacity];
+	}
+
+	public void add(float value) {
+		if(size < values.length) {
+			values[(start + size) % values.length] = value;
+			size++;
+		} else {
+			values[start] = value;
+			start = (start + 1) % values.length;
+		}
+	}
+
+	public void clear() {
+		start = 0;
+		size = 0;
+	}
+
+	/**
+	 * Makes this a copy of other, which must have the same capacity.
+	 */
+	public void set(MetricHistory other) {
+		System.arraycopy(other.values, 0, values, 0, values.length);
+		start = other.start;
+		size = other.size;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return values.length;
+	}
+
+	/**
+	 * @param index	0 for the oldest value, size() - 1 for the latest
+	 */
+	public float get(int index) {
+		if(index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+
+		return values[(start + index) % values.length];
+	}
+
+	public float getLatest() {
+		return get(size - 1);
+	}
+
+	/**
+	 * @return	the latest value less the oldest, 0 with fewer than two
+	 */
+	public float getChange() {
+		return size < 2 ? 0 : getLatest() - get(0);
+	}
+
+	public float getMin() {
+		float min = Float.MAX_VALUE;
+
+		for(int i = 0; i < size; i++)
+			min = Math.min(min, values[(start + i) % values.length]);
+
+		return size == 0 ? 0 : min;
+	}
+
+	public float getMax() {
+		float max = -Float.MAX_VALUE;
+
+		for(int i = 0; i < size; i++)
+			max = Math.max(max, values[(start + i) % values.length]);
+
+		return size == 0 ? 0 : max;
+	}
+
+	public float getAverage() {
+		float sum = 0;
+
+		for(int i = 0; i < size; i++)
+			sum += values[(start + i) % values.length];
+
+		return size == 0 ? 0 : sum / size;
+	}
+}
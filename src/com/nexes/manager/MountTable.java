@@ -0,0 +1,128 @@
+/*
+    Open Manager, an open source file manager for the Android system
+    Copyright (C) 2009, 2010  Joe Berria <nexesdevelopment@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.nexes.manager;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import android.util.Log;
+
+/**
+ * Resolves which mounted volume a path lives on by reading /proc/mounts.
+ * A rename is only O(1) when the source and destination are on the same
+ * volume, so anything that wants to move files cheaply (the trash) or group
+ * work per storage device needs to know the mount point of a path.
+ * <br>
+ * <br>
+ * Like FileManager this class has no reference to any GUI activity.
+ */
+public final class MountTable {
+	private static final String MOUNTS_FILE = "/proc/mounts";
+	private static ArrayList<String> mount_points;
+
+	private MountTable() {
+	}
+
+	/**
+	 * Returns the mount point of the volume that holds path. Symbolic links
+	 * are resolved first, so /sdcard/... maps to /mnt/sdcard on devices that
+	 * link it there.
+	 *
+	 * @param path	an absolute file or folder path
+	 * @return		the mount point, "/" if nothing more specific matches
+	 */
+	public static synchronized String getMountPoint(String path) {
+		String canonical = get_canonical(path);
+		String best = "/";
+
+		if(mount_points == null)
+			mount_points = read_mounts();
+
+		for(String mount : mount_points) {
+			if(mount.length() > best.length() && is_under(canonical, mount))
+				best = mount;
+		}
+
+		return best;
+	}
+
+	/**
+	 * Forget the cached mount table, e.g. after the sdcard was (un)mounted.
+	 */
+	public static synchronized void refresh() {
+		mount_points = null;
+	}
+
+	/*
+	 * resolves symbolic links so the path can be compared against
+	 * the mount points the kernel reports.
+	 */
+	static String get_canonical(String path) {
+		try {
+			return new File(path).getCanonicalPath();
+
+		} catch (IOException e) {
+			return new File(path).getAbsolutePath();
+		}
+	}
+
+	private static boolean is_under(String path, String mount) {
+		if(!path.startsWith(mount))
+			return false;
+
+		return path.length() == mount.length() || path.charAt(mount.length()) == '/';
+	}
+
+	/*
+	 * each line of /proc/mounts is "device mount_point type options 0 0",
+	 * spaces inside the mount point are escaped as \040.
+	 */
+	private static ArrayList<String> read_mounts() {
+		ArrayList<String> mounts = new ArrayList<String>();
+		BufferedReader reader = null;
+		String line;
+
+		try {
+			reader = new BufferedReader(new FileReader(MOUNTS_FILE), 1024);
+
+			while((line = reader.readLine()) != null) {
+				int start = line.indexOf(' ');
+				int end = start < 0 ? -1 : line.indexOf(' ', start + 1);
+
+				if(end > start)
+					mounts.add(line.substring(start + 1, end).replace("\\040", " "));
+			}
+
+		} catch (IOException e) {
+			Log.e("MountTable", "could not read " + MOUNTS_FILE);
+
+		} finally {
+			if(reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) { }
+			}
+		}
+
+		return mounts;
+	}
+}
@@ -0,0 +1,268 @@
+/*
+    Open Manager, an open source file manager for the Android system
+    Copyright (C) 2009, 2010  Joe Berria <nexesdevelopment@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.nexes.manager;
+
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Runs file operations in the background, in the order they were submitted,
+ * as bulk work of the IoScheduler of the device they write to. That limits
+ * how many may run at once on each device: two copies onto the same sdcard
+ * only fight over the card, so by default the second waits for the first,
+ * while a copy to another device starts right away. Searches only read and
+ * are never held back.
+ * <br>
+ * The queue is a single static instance, so operations keep running and
+ * can still be found when the activity that started them is recreated.
+ * Listeners are told about every change of state on the UI thread, and
+ * about the progress of running operations at a fixed rate however fast
+ * the operations themselves go.
+ * <br>
+ * Operations that are done or cancelled are dropped from the queue as
+ * soon as they finish, their listeners are told afterwards. Failed ones
+ * stay until cleared so the user can see what went wrong. A listener
+ * may be told of a finished operation more than once, FileOperation's
+ * takeFinished says which time to report it.
+ */
+public final class OperationQueue {
+	private static final int MAX_RUNNING = 3;
+	private static final long PROGRESS_INTERVAL = 500;	//ms between progress reports
+
+	private static OperationQueue instance;
+
+	private final ArrayList<FileOperation> operations;
+	private final CopyOnWriteArrayList<OnOperationChangeListener> listeners;
+	private final ExecutorService workers;
+	private final Handler handle;
+	private int running = 0;
+	private boolean ticking = false;
+
+	/**
+	 * Told on the UI thread whenever an operation is queued, starts,
+	 * is paused or resumed, or finishes, and every PROGRESS_INTERVAL
+	 * while it runs.
+	 */
+	public interface OnOperationChangeListener {
+		void onOperationChanged(FileOperation operation);
+	}
+
+	private OperationQueue() {
+		operations = new ArrayList<FileOperation>();
+		listeners = new CopyOnWriteArrayList<OnOperationChangeListener>();
+		handle = new Handler(Looper.getMainLooper());
+		workers = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "file-operation");
+				t.setPriority(Thread.NORM_PRIORITY - 1);
+				return t;
+			}
+		});
+	}
+
+	public static synchronized OperationQueue getInstance() {
+		if(instance == null)
+			instance = new OperationQueue();
+
+		return instance;
+	}
+
+	public void addListener(OnOperationChangeListener l) {
+		listeners.add(l);
+	}
+
+	public void removeListener(OnOperationChangeListener l) {
+		listeners.remove(l);
+	}
+
+	/**
+	 * Queues operation to be run with manager, it starts as soon as its
+	 * device has a free slot.
+	 */
+	public void submit(FileOperation operation, FileManager manager) {
+		String target = operation.getTarget();
+
+		operation.manager = manager;
+		operation.io = target == null ? null : IoScheduler.forPath(target);
+
+		synchronized(this) {
+			operations.add(operation);
+			schedule();
+		}
+		notify_changed(operation);
+	}
+
+	/**
+	 * @return	every operation waiting, running or failed, oldest first
+	 */
+	public synchronized ArrayList<FileOperation> getOperations() {
+		return new ArrayList<FileOperation>(operations);
+	}
+
+	/**
+	 * @return	true while any operation is waiting or running
+	 */
+	public synchronized boolean isBusy() {
+		for(FileOperation op : operations)
+			if(!op.isFinished())
+				return true;
+
+		return false;
+	}
+
+	/**
+	 * Forgets every operation that failed, the others are forgotten as
+	 * they finish.
+	 */
+	public synchronized void clearFinished() {
+		for(int i = operations.size() - 1; i >= 0; i--)
+			if(operations.get(i).isFinished())
+				operations.remove(i);
+	}
+
+	/**
+	 * A paused operation stops at its next block of work and keeps its
+	 * device slot, a paused operation that has not started yet lets the
+	 * ones behind it go first.
+	 */
+	public void pause(FileOperation operation) {
+		if(operation.pause())
+			notify_changed(operation);
+	}
+
+	public void resume(FileOperation operation) {
+		if(operation.resume()) {
+			synchronized(this) {
+				schedule();
+			}
+			notify_changed(operation);
+		}
+	}
+
+	public void cancel(FileOperation operation) {
+		if(operation.cancel()) {
+			synchronized(this) {
+				prune();
+			}
+			notify_changed(operation);
+		}
+	}
+
+	/*
+	 * drops operations that are done or cancelled, called with the lock held
+	 */
+	private void prune() {
+		for(int i = operations.size() - 1; i >= 0; i--) {
+			int state = operations.get(i).getState();
+
+			if(state == FileOperation.DONE || state == FileOperation.CANCELLED)
+				operations.remove(i);
+		}
+	}
+
+	/*
+	 * starts every queued operation that fits, called with the lock held
+	 */
+	private void schedule() {
+		for(FileOperation op : operations) {
+			if(op.getState() != FileOperation.QUEUED || op.isPaused())
+				continue;
+
+			if(op.io != null) {
+				if(running >= MAX_RUNNING || !op.io.tryStartBulk())
+					continue;
+
+				running++;
+			}
+
+			op.setState(FileOperation.RUNNING);
+			start(op);
+		}
+	}
+
+	/*
+	 * reports the progress of every unfinished operation, and posts itself
+	 * again for as long as there are any.
+	 */
+	private final Runnable tick = new Runnable() {
+		public void run() {
+			ArrayList<FileOperation> active = new ArrayList<FileOperation>();
+			boolean again;
+
+			synchronized(OperationQueue.this) {
+				for(FileOperation op : operations)
+					if(op.getState() == FileOperation.RUNNING || op.getState() == FileOperation.PAUSED)
+						active.add(op);
+
+				again = ticking = !active.isEmpty();
+			}
+
+			for(FileOperation op : active)
+				for(OnOperationChangeListener l : listeners)
+					l.onOperationChanged(op);
+
+			if(again)
+				handle.postDelayed(this, PROGRESS_INTERVAL);
+		}
+	};
+
+	private void start(final FileOperation op) {
+		if(!ticking) {
+			ticking = true;
+			handle.postDelayed(tick, PROGRESS_INTERVAL);
+		}
+
+		workers.execute(new Runnable() {
+			public void run() {
+				notify_changed(op);
+
+				try {
+					op.run();
+				} catch (RuntimeException e) {
+					op.setState(FileOperation.FAILED);
+				}
+
+				synchronized(OperationQueue.this) {
+					if(op.io != null) {
+						running--;
+						op.io.finishBulk();
+					}
+					prune();
+					schedule();
+				}
+				notify_changed(op);
+			}
+		});
+	}
+
+	private void notify_changed(final FileOperation op) {
+		handle.post(new Runnable() {
+			public void run() {
+				for(OnOperationChangeListener l : listeners)
+					l.onOperationChanged(op);
+			}
+		});
+	}
+}
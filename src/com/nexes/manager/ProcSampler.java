@@ -0,0 +1,426 @@
+/*
+    Open Manager, an open source file manager for the Android system
+    Copyright (C) 2009, 2010  Joe Berria <nexesdevelopment@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.nexes.manager;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Samples the CPU use and resident memory of a set of processes, and the
+ * memory of the whole system, from /proc. It is meant to be left running
+ * once a second, so a sample allocates nothing: every file is kept open
+ * and read again from its start into the same buffer, and the numbers are
+ * parsed straight from the bytes.
+ * <br>
+ * CPU use is the share of all CPU time since the previous sample that
+ * the process used, so it is unknown until the second sample.
+ * <br>
+ * The last HISTORY readings of every process and of the available
+ * memory are kept in a MetricHistory, to show trends.
+ * <br>
+ * sample is meant for a background thread, the getters may be called
+ * from any thread.
+ */
+public class ProcSampler {
+	public static final long INTERVAL = 1000;		//ms between samples
+	public static final float UNKNOWN = -1;
+	public static final int HISTORY = 60;			//samples kept
+	private static final int PAGE_SIZE = 4096;
+
+	private static final byte[] MEM_TOTAL = "MemTotal:".getBytes();
+	private static final byte[] MEM_FREE = "MemFree:".getBytes();
+	private static final byte[] BUFFERS = "Buffers:".getBytes();
+	private static final byte[] CACHED = "Cached:".getBytes();
+
+	private final byte[] buffer = new byte[4096];
+	private int cursor;		//where the last number parsed ended
+
+	private RandomAccessFile stat;
+	private RandomAccessFile meminfo;
+	private long total_ticks = 0;
+	private boolean closed = false;
+	private long mem_total = 0;
+	private long mem_free = 0;		//free, buffers and cache, in bytes
+	private final MetricHistory mem_history = new MetricHistory(HISTORY);	//in KB
+
+	/* one slot per process, sorted by pid */
+	private int count = 0;
+	private int[] pids = new int[0];
+	private RandomAccessFile[] stat_files = new RandomAccessFile[0];
+	private RandomAccessFile[] statm_files = new RandomAccessFile[0];
+	private long[] ticks = new long[0];
+	private float[] cpu = new float[0];
+	private long[] rss = new long[0];
+	private MetricHistory[] cpu_history = new MetricHistory[0];
+	private MetricHistory[] rss_history = new MetricHistory[0];	//in KB
+
+	/**
+	 * Sets the processes to sample. Processes that were sampled before
+	 * keep their files and their last reading.
+	 */
+	public synchronized void setPids(int[] newPids, int newCount) {
+		int[] sorted = new int[newCount];
+		System.arraycopy(newPids, 0, sorted, 0, newCount);
+		Arrays.sort(sorted);
+
+		RandomAccessFile[] new_stat = new RandomAccessFile[newCount];
+		RandomAccessFile[] new_statm = new RandomAccessFile[newCount];
+		long[] new_ticks = new long[newCount];
+		float[] new_cpu = new float[newCount];
+		long[] new_rss = new long[newCount];
+		MetricHistory[] new_cpu_history = new MetricHistory[newCount];
+		MetricHistory[] new_rss_history = new MetricHistory[newCount];
+
+		for(int i = 0; i < newCount; i++) {
+			int old = Arrays.binarySearch(pids, 0, count, sorted[i]);
+
+			if(old >= 0) {
+				new_stat[i] = stat_files[old];
+				new_statm[i] = statm_files[old];
+				new_ticks[i] = ticks[old];
+				new_cpu[i] = cpu[old];
+				new_rss[i] = rss[old];
+				new_cpu_history[i] = cpu_history[old];
+				new_rss_history[i] = rss_history[old];
+				stat_files[old] = null;
+				statm_files[old] = null;
+			} else {
+				new_cpu[i] = UNKNOWN;
+				new_cpu_history[i] = new MetricHistory(HISTORY);
+				new_rss_history[i] = new MetricHistory(HISTORY);
+			}
+		}
+
+		for(int i = 0; i < count; i++) {
+			close(stat_files[i]);
+			close(statm_files[i]);
+		}
+
+		pids = sorted;
+		stat_files = new_stat;
+		statm_files = new_statm;
+		ticks = new_ticks;
+		cpu = new_cpu;
+		rss = new_rss;
+		cpu_history = new_cpu_history;
+		rss_history = new_rss_history;
+		count = newCount;
+	}
+
+	/**
+	 * Reads everything once. Processes that can not be read any more are
+	 * left with UNKNOWN CPU use and no memory.
+	 *
+	 * @return	false if /proc could not be read at all, or the sampler
+	 * 			is closed
+	 */
+	public synchronized boolean sample() {
+		long last_total = total_ticks;
+
+		if(closed)
+			return false;
+
+		try {
+			if(stat == null)
+				stat = new RandomAccessFile("/proc/stat", "r");
+			if(meminfo == null)
+				meminfo = new RandomAccessFile("/proc/meminfo", "r");
+
+			total_ticks = read_total_ticks();
+			read_meminfo();
+			mem_history.add(mem_free / 1024f);
+
+		} catch (IOException e) {
+			return false;
+		}
+
+		long elapsed = total_ticks - last_total;
+
+		for(int i = 0; i < count; i++) {
+			try {
+				if(stat_files[i] == null) {
+					stat_files[i] = new RandomAccessFile("/proc/" + pids[i] + "/stat", "r");
+					statm_files[i] = new RandomAccessFile("/proc/" + pids[i] + "/statm", "r");
+					ticks[i] = -1;
+				}
+
+				long used = read_process_ticks(stat_files[i]);
+				rss[i] = read_resident_pages(statm_files[i]) * PAGE_SIZE;
+
+				cpu[i] = ticks[i] < 0 || last_total == 0 || elapsed <= 0 ? UNKNOWN :
+						 Math.min(100f, 100f * (used - ticks[i]) / elapsed);
+				ticks[i] = used;
+
+				if(cpu[i] != UNKNOWN)
+					cpu_history[i].add(cpu[i]);
+				rss_history[i].add(rss[i] / 1024f);
+
+			} catch (IOException e) {
+				/* the process has gone, or is not ours to read */
+				close(stat_files[i]);
+				close(statm_files[i]);
+				stat_files[i] = null;
+				statm_files[i] = null;
+				cpu[i] = UNKNOWN;
+				rss[i] = 0;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Lets sample read again after close.
+	 */
+	public synchronized void open() {
+		closed = false;
+	}
+
+	/**
+	 * Closes every file. A sample that comes after, on any thread, reads
+	 * nothing until open is called.
+	 */
+	public synchronized void close() {
+		closed = true;
+		for(int i = 0; i < count; i++) {
+			close(stat_files[i]);
+			close(statm_files[i]);
+			stat_files[i] = null;
+			statm_files[i] = null;
+		}
+
+		close(stat);
+		close(meminfo);
+		stat = null;
+		meminfo = null;
+		total_ticks = 0;
+	}
+
+	/**
+	 * @return	percent of all CPU time pid used in the last interval,
+	 * 			or UNKNOWN
+	 */
+	public synchronized float getCpu(int pid) {
+		int i = Arrays.binarySearch(pids, 0, count, pid);
+
+		return i < 0 ? UNKNOWN : cpu[i];
+	}
+
+	/**
+	 * @return	bytes of memory pid has resident, 0 if unknown
+	 */
+	public synchronized long getRss(int pid) {
+		int i = Arrays.binarySearch(pids, 0, count, pid);
+
+		return i < 0 ? 0 : rss[i];
+	}
+
+	/**
+	 * @return	how many KB the resident memory of pid grew over the
+	 * 			history, negative if it shrank
+	 */
+	public synchronized float getRssChange(int pid) {
+		int i = Arrays.binarySearch(pids, 0, count, pid);
+
+		return i < 0 ? 0 : rss_history[i].getChange();
+	}
+
+	/**
+	 * Copies the history of pid, CPU use in percent and resident memory
+	 * in KB. Both histories are cleared if pid is not sampled.
+	 */
+	public synchronized void copyHistory(int pid, MetricHistory cpuInto, MetricHistory rssInto) {
+		int i = Arrays.binarySearch(pids, 0, count, pid);
+
+		if(i < 0) {
+			cpuInto.clear();
+			rssInto.clear();
+		} else {
+			cpuInto.set(cpu_history[i]);
+			rssInto.set(rss_history[i]);
+		}
+	}
+
+	/**
+	 * @return	how many KB the available memory grew over the history
+	 */
+	public synchronized float getMemChange() {
+		return mem_history.getChange();
+	}
+
+	/**
+	 * Copies the history of the available memory, in KB.
+	 */
+	public synchronized void copyMemHistory(MetricHistory into) {
+		into.set(mem_history);
+	}
+
+	public synchronized long getMemTotal() {
+		return mem_total;
+	}
+
+	/**
+	 * @return	bytes of memory that are free or only hold caches
+	 */
+	public synchronized long getMemAvailable() {
+		return mem_free;
+	}
+
+	/*
+	 * the first line of /proc/stat is "cpu" followed by the ticks spent
+	 * in each state, all of them together are the elapsed time
+	 */
+	private long read_total_ticks() throws IOException {
+		int end = read(stat);
+		int pos = 3;
+		long total = 0;
+
+		while(pos < end && buffer[pos] != '\n') {
+			long value = parse_long(pos, end);
+
+			if(cursor == pos)
+				break;
+			total += value;
+			pos = cursor;
+		}
+
+		return total;
+	}
+
+	private void read_meminfo() throws IOException {
+		int end = read(meminfo);
+		long free = 0;
+		int pos = 0;
+
+		while(pos < end) {
+			if(starts_with(pos, end, MEM_TOTAL))
+				mem_total = parse_long(pos + MEM_TOTAL.length, end) * 1024;
+			else if(starts_with(pos, end, MEM_FREE))
+				free += parse_long(pos + MEM_FREE.length, end) * 1024;
+			else if(starts_with(pos, end, BUFFERS))
+				free += parse_long(pos + BUFFERS.length, end) * 1024;
+			else if(starts_with(pos, end, CACHED))
+				free += parse_long(pos + CACHED.length, end) * 1024;
+
+			while(pos < end && buffer[pos] != '\n')
+				pos++;
+			pos++;
+		}
+
+		mem_free = free;
+	}
+
+	/*
+	 * /proc/<pid>/stat is "pid (name) state ..." where utime and stime are
+	 * the 14th and 15th fields. The name may hold spaces and parentheses,
+	 * so fields are counted from the last ')'.
+	 */
+	private long read_process_ticks(RandomAccessFile file) throws IOException {
+		int end = read(file);
+		int pos = end - 1;
+
+		while(pos > 0 && buffer[pos] != ')')
+			pos--;
+		if(pos <= 0)
+			throw new IOException("unexpected stat format");
+
+		/* skip state and the 10 fields up to utime */
+		pos++;
+		for(int field = 3; field < 14; field++)
+			pos = skip_field(pos, end);
+
+		long utime = parse_long(pos, end);
+		long stime = parse_long(cursor, end);
+
+		return utime + stime;
+	}
+
+	/*
+	 * /proc/<pid>/statm is "size resident shared ..." in pages
+	 */
+	private long read_resident_pages(RandomAccessFile file) throws IOException {
+		int end = read(file);
+
+		parse_long(0, end);
+		return parse_long(cursor, end);
+	}
+
+	private int read(RandomAccessFile file) throws IOException {
+		int total = 0;
+		int read;
+
+		file.seek(0);
+		while(total < buffer.length && (read = file.read(buffer, total, buffer.length - total)) > 0)
+			total += read;
+
+		if(total == 0)
+			throw new IOException("nothing to read");
+
+		return total;
+	}
+
+	/*
+	 * parses the unsigned number at or after pos, leaving cursor just
+	 * after it. Without a number cursor is left at pos and 0 returned.
+	 */
+	private long parse_long(int pos, int end) {
+		long value = 0;
+
+		while(pos < end && (buffer[pos] == ' ' || buffer[pos] == '\t'))
+			pos++;
+
+		while(pos < end && buffer[pos] >= '0' && buffer[pos] <= '9') {
+			value = value * 10 + (buffer[pos] - '0');
+			pos++;
+		}
+
+		cursor = pos;
+		return value;
+	}
+
+	private int skip_field(int pos, int end) {
+		while(pos < end && buffer[pos] == ' ')
+			pos++;
+		while(pos < end && buffer[pos] != ' ')
+			pos++;
+
+		return pos;
+	}
+
+	private boolean starts_with(int pos, int end, byte[] prefix) {
+		if(end - pos < prefix.length)
+			return false;
+
+		for(int i = 0; i < prefix.length; i++)
+			if(buffer[pos + i] != prefix[i])
+				return false;
+
+		return true;
+	}
+
+	private static void close(RandomAccessFile file) {
+		if(file == null)
+			return;
+
+		try {
+			file.close();
+		} catch (IOException e) { }
+	}
+}
@@ -21,6 +21,10 @@ package com.nexes.manager;
 import android.app.ListActivity;
 import android.app.AlertDialog;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
 import android.view.View;
 import android.view.LayoutInflater;
 import android.view.ViewGroup;
@@ -30,8 +34,9 @@ import android.app.ActivityManager.MemoryInfo;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.DialogInterface;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
 import android.widget.ArrayAdapter;
 import android.widget.TextView;
 import android.widget.ImageView;
@@ -42,18 +47,76 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
+ * Lists the running processes that are not in the foreground. While the
+ * activity is shown a ProcSampler reads their CPU use and memory once a
+ * second on a background thread, and the process list is reloaded every
+ * few samples.
+ * <br>
+ * Neither redraws the whole list. A reloaded process list is only given
+ * to the adapter if a process came or went, and a sample only sets the
+ * text of the visible rows whose numbers, as shown, have changed.
  * 
  * @author Joe Berria
  *
  */
 public class ProcessManager extends ListActivity {
 	private final int CONVERT = 1024;
+	private static final int LIST_REFRESH = 5;		//samples between process list reloads
 	
 	private PackageManager pk;
-	private List<RunningAppProcessInfo> total_process, display_process;
+	private AppInfoCache app_info;
+	private List<RunningAppProcessInfo> display_process;
 	private ActivityManager activity_man;
 	private MyListAdapter delegate;
 	private TextView availMem_label, numProc_label;
+	private ProcSampler sampler;
+	private HandlerThread sampler_thread;
+	private Handler sampler_handle;
+	private volatile boolean sampling = false;
+	private int samples = 0;						//sampler thread only
+	private final Handler handle = new Handler();
+	private final StringBuilder line = new StringBuilder();
+	private final MetricHistory detail_cpu = new MetricHistory(ProcSampler.HISTORY);
+	private final MetricHistory detail_rss = new MetricHistory(ProcSampler.HISTORY);
+	private int shown_mem = -1;		//available memory on the label, in 1/100 Mb
+	private int shown_mem_change = 0;
+	private int shown_count = -1;
+	
+	/*
+	 * runs on the sampler thread once every ProcSampler.INTERVAL
+	 */
+	private final Runnable sample = new Runnable() {
+		public void run() {
+			/* a thread left over from before the last pause stops here */
+			if(!sampling || Looper.myLooper() != sampler_thread.getLooper())
+				return;
+			
+			if(samples++ % LIST_REFRESH == 0) {
+				final List<RunningAppProcessInfo> running = activity_man.getRunningAppProcesses();
+				
+				handle.post(new Runnable() {
+					public void run() {
+						if(sampling)
+							set_processes(running);
+					}
+				});
+			}
+			
+			sampler.sample();
+			handle.post(show_sample);
+			sampler_handle.postDelayed(this, ProcSampler.INTERVAL);
+		}
+	};
+	
+	private final Runnable show_sample = new Runnable() {
+		public void run() {
+			if(!sampling)
+				return;
+			
+			update_labels();
+			refresh_rows();
+		}
+	};
 	
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
@@ -61,21 +124,48 @@ public class ProcessManager extends ListActivity {
 		
 		setContentView(R.layout.manage_layout);		
 		pk = getPackageManager();
+		app_info = AppInfoCache.getInstance(this);
 		
 		availMem_label = (TextView)findViewById(R.id.available_mem_label);
 		numProc_label = (TextView)findViewById(R.id.num_processes_label);
 		
 		activity_man = (ActivityManager)getSystemService(Context.ACTIVITY_SERVICE);
+		sampler = new ProcSampler();
 		
 		display_process = new ArrayList<RunningAppProcessInfo>();
-		total_process = activity_man.getRunningAppProcesses();
-	
-		update_list(false);
+		update_list();
 		
 		delegate = new MyListAdapter();
 		setListAdapter(delegate);
 	}
 	
+	@Override
+	protected void onResume() {
+		super.onResume();
+		
+		sampling = true;
+		sampler.open();
+		sampler_thread = new HandlerThread("proc-sampler", Process.THREAD_PRIORITY_BACKGROUND);
+		sampler_thread.start();
+		sampler_handle = new Handler(sampler_thread.getLooper());
+		sampler_handle.post(sample);
+	}
+	
+	@Override
+	protected void onPause() {
+		super.onPause();
+		
+		/*
+		 * a sample already past its sampling check either ends before
+		 * close, or finds the sampler closed and opens nothing
+		 */
+		sampling = false;
+		sampler_handle.removeCallbacks(sample);
+		handle.removeCallbacks(show_sample);
+		sampler_thread.quit();
+		sampler.close();
+	}
+	
 	@Override
 	protected void onListItemClick(ListView parent, View view, int position, long id) {
 		AlertDialog dialog;
@@ -85,12 +175,11 @@ public class ProcessManager extends ListActivity {
 		
 		builder.setTitle("Process options");
 		
-		try {
-			builder.setIcon(pk.getApplicationIcon(display_process.get(position).processName));
-			
-		} catch (NameNotFoundException e) {
+		Bitmap icon = app_info.getIcon(display_process.get(position).processName);
+		if(icon != null)
+			builder.setIcon(new BitmapDrawable(icon));
+		else
 			builder.setIcon(R.drawable.processinfo);
-		}
 		
 		builder.setItems(options, new DialogInterface.OnClickListener() {
 			@Override
@@ -100,12 +189,11 @@ public class ProcessManager extends ListActivity {
 					case 0:
 //						Process.killProcess(display_process.get(index).pid);
 						activity_man.restartPackage(display_process.get(index).processName);
-						update_list(true);
+						update_list();
 						break;
 						
 					case 1:
-						Toast.makeText(ProcessManager.this, display_process.get(index).processName,
-								   Toast.LENGTH_SHORT).show();
+						show_details(display_process.get(index));
 						break;
 						
 					case 2:
@@ -125,47 +213,172 @@ public class ProcessManager extends ListActivity {
 		dialog.show();
 	}
 	
+	/*
+	 * what the sampler remembers of a process, over the last minute
+	 */
+	private void show_details(RunningAppProcessInfo info) {
+		AlertDialog.Builder builder = new AlertDialog.Builder(this);
+		
+		sampler.copyHistory(info.pid, detail_cpu, detail_rss);
+		
+		if(detail_rss.size() == 0) {
+			builder.setMessage(String.format("pid: %d\nNo samples yet", info.pid));
+		} else {
+			builder.setMessage(String.format("pid: %d\n\n" +
+					"CPU now %.0f%%, average %.1f%%, peak %.0f%%\n\n" +
+					"Memory now %.1f Mb, lowest %.1f Mb, highest %.1f Mb\n\n" +
+					"over the last %d seconds",
+					info.pid,
+					detail_cpu.size() == 0 ? 0 : detail_cpu.getLatest(),
+					detail_cpu.getAverage(), detail_cpu.getMax(),
+					detail_rss.getLatest() / CONVERT, detail_rss.getMin() / CONVERT,
+					detail_rss.getMax() / CONVERT,
+					detail_rss.size() * ProcSampler.INTERVAL / 1000));
+		}
+		
+		builder.setTitle(info.processName);
+		builder.setPositiveButton("OK", null);
+		builder.create().show();
+	}
+	
 	/**
 	 * 
 	 */
 	private void update_labels() {
-		MemoryInfo mem_info;
 		double mem_size;
+		double mem_total = sampler.getMemTotal() / (double)(CONVERT * CONVERT);
 		
-		mem_info = new ActivityManager.MemoryInfo();
-		activity_man.getMemoryInfo(mem_info);
-		mem_size = (mem_info.availMem / (CONVERT * CONVERT));		
+		if(mem_total > 0) {
+			mem_size = sampler.getMemAvailable() / (double)(CONVERT * CONVERT);
+			int mem = (int)(mem_size * 100);
+			int change = (int)(sampler.getMemChange() * 10 / CONVERT);
+			
+			if(mem != shown_mem || change != shown_mem_change) {
+				shown_mem = mem;
+				shown_mem_change = change;
+				availMem_label.setText(String.format("Available memory:\t %.2f of %.2f Mb%s",
+									   mem_size, mem_total, change == 0 ? "" :
+									   String.format(" (%+.1f)", change / 10.0)));
+			}
+		} else {
+			MemoryInfo mem_info = new ActivityManager.MemoryInfo();
+			
+			activity_man.getMemoryInfo(mem_info);
+			mem_size = (mem_info.availMem / (CONVERT * CONVERT));		
+			availMem_label.setText(String.format("Available memory:\t %.2f Mb", mem_size));
+		}
 		
-		availMem_label.setText(String.format("Available memory:\t %.2f Mb", mem_size));
-		numProc_label.setText("Number of processes:\t " + display_process.size());
+		if(display_process.size() != shown_count) {
+			shown_count = display_process.size();
+			numProc_label.setText("Number of processes:\t " + shown_count);
+		}
 	}
 	
 	/**
 	 * 
 	 */
-	private void update_list(boolean notifyChange) {
-		int len;
+	private void update_list() {
+		set_processes(activity_man.getRunningAppProcesses());
+	}
+	
+	/*
+	 * lists the processes of running that are in the background. The
+	 * adapter is only told if that changed which processes are listed.
+	 */
+	private void set_processes(List<RunningAppProcessInfo> running) {
+		ArrayList<RunningAppProcessInfo> shown = new ArrayList<RunningAppProcessInfo>();
+		boolean same;
+		
+		if(running != null) {
+			for(RunningAppProcessInfo info : running)
+				if(info.importance != RunningAppProcessInfo.IMPORTANCE_FOREGROUND &&
+				   info.importance != RunningAppProcessInfo.IMPORTANCE_SERVICE)
+					shown.add(info);
+		}
 		
-		if (!total_process.isEmpty())
-			total_process.clear();
-		if(!display_process.isEmpty())
-			display_process.clear();
+		same = shown.size() == display_process.size();
+		for(int i = 0; same && i < shown.size(); i++)
+			same = shown.get(i).pid == display_process.get(i).pid;
 		
-		total_process = activity_man.getRunningAppProcesses();
-		len = total_process.size();
+		if(same)
+			return;
 		
-		for (int i = 0; i < len; i++){
-			if(total_process.get(i).importance != RunningAppProcessInfo.IMPORTANCE_FOREGROUND &&
-			    total_process.get(i).importance != RunningAppProcessInfo.IMPORTANCE_SERVICE)
-				display_process.add(total_process.get(i));
-		}
+		display_process.clear();
+		display_process.addAll(shown);
 		
-		if(notifyChange)
+		int[] pids = new int[display_process.size()];
+		for(int i = 0; i < pids.length; i++)
+			pids[i] = display_process.get(i).pid;
+		sampler.setPids(pids, pids.length);
+		
+		if(delegate != null)
 			delegate.notifyDataSetChanged();
 		
 		update_labels();
 	}
 	
+	/*
+	 * sets the numbers of the rows on screen, only rows whose numbers
+	 * have changed are touched
+	 */
+	private void refresh_rows() {
+		ListView list = getListView();
+		int first = list.getFirstVisiblePosition();
+		int children = list.getChildCount();
+		
+		for(int i = 0; i < children; i++) {
+			Object tag = list.getChildAt(i).getTag();
+			int position = first + i;
+			
+			if(tag instanceof ProcessHolder && position < display_process.size())
+				bind_values((ProcessHolder)tag, display_process.get(position));
+		}
+	}
+	
+	private void bind_values(ProcessHolder holder, RunningAppProcessInfo info) {
+		float cpu_now = sampler.getCpu(info.pid);
+		int cpu = cpu_now == ProcSampler.UNKNOWN ? -1 : Math.round(cpu_now);
+		int rss = (int)(sampler.getRss(info.pid) * 10 / (CONVERT * CONVERT));
+		int change = (int)(sampler.getRssChange(info.pid) * 10 / CONVERT);
+		
+		if(holder.pid == info.pid && holder.cpu == cpu && holder.rss == rss && 
+		   holder.change == change)
+			return;
+		
+		holder.pid = info.pid;
+		holder.cpu = cpu;
+		holder.rss = rss;
+		holder.change = change;
+		
+		line.setLength(0);
+		line.append(info.processName).append(", pid: ").append(info.pid);
+		if(cpu >= 0) {
+			line.append(", cpu: ").append(cpu).append("%, ");
+			append_tenths(rss).append(" Mb");
+			
+			if(change != 0) {
+				line.append(change > 0 ? " (+" : " (-");
+				append_tenths(Math.abs(change)).append(')');
+			}
+		}
+		
+		holder.bottom_view.setText(line);
+	}
+	
+	private StringBuilder append_tenths(int tenths) {
+		return line.append(tenths / 10).append('.').append(tenths % 10);
+	}
+	
+	private static class ProcessHolder {
+		TextView top_view;
+		TextView bottom_view;
+		ImageView icon;
+		int pid = -1;		//the numbers the row shows
+		int cpu;
+		int rss;			//in 1/10 Mb
+		int change;
+	}
+	
 	/* (non-JavaDoc)
 	 * private inner class to bind the listview and its data source
 	 * @author Joe Berria
@@ -192,31 +405,33 @@ public class ProcessManager extends ListActivity {
 		
 		@Override
 		public View getView(int position, View convertView, ViewGroup parent) {
-			View view = convertView;
-			String pkg_name = display_process.get(position).processName;
+			ProcessHolder holder;
+			RunningAppProcessInfo info = display_process.get(position);
+			String pkg_name = info.processName;
 				
-			if(view == null) {
+			if(convertView == null) {
 				LayoutInflater inflater = getLayoutInflater();
-				view = inflater.inflate(R.layout.tablerow, parent, false);
-			}
+				convertView = inflater.inflate(R.layout.tablerow, parent, false);
 				
-			TextView bottom_label = (TextView)view.findViewById(R.id.bottom_view);
-			TextView top_label = (TextView)view.findViewById(R.id.top_view);
-			ImageView icon = (ImageView)view.findViewById(R.id.row_image);
-			icon.setAdjustViewBounds(true);
-			icon.setMaxHeight(40);
-			
-			top_label.setText(parse_name(pkg_name));
-			bottom_label.setText(String.format("%s, pid: %d",
-							display_process.get(position).processName, display_process.get(position).pid));
+				holder = new ProcessHolder();
+				holder.top_view = (TextView)convertView.findViewById(R.id.top_view);
+				holder.bottom_view = (TextView)convertView.findViewById(R.id.bottom_view);
+				holder.icon = (ImageView)convertView.findViewById(R.id.row_image);
+				holder.icon.setAdjustViewBounds(true);
+				holder.icon.setMaxHeight(40);
+				convertView.setTag(holder);
+				
+			} else {
+				holder = (ProcessHolder)convertView.getTag();
+			}
 			
-			try {
-				icon.setImageDrawable(pk.getApplicationIcon(pkg_name));
-			} catch (NameNotFoundException e) {
-				icon.setImageResource(R.drawable.processinfo);
+			if(holder.pid != info.pid) {
+				app_info.setLabel(holder.top_view, pkg_name, parse_name(pkg_name));
+				app_info.setIcon(holder.icon, pkg_name, R.drawable.processinfo);
 			}
+			bind_values(holder, info);
 			
-			return view;			
+			return convertView;			
 		}
 	}
 }
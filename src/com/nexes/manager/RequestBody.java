@@ -0,0 +1,227 @@
+/*
+    Open Manager, an open source file manager for the Android system
+    Copyright (C) 2009, 2010  Joe Berria <nexesdevelopment@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.nexes.manager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Reads the body of an HTTP request from a non-blocking socket straight
+ * into a file. A body of known length is moved with FileChannel.transferFrom,
+ * a chunked one is taken apart in the connection's own input buffer.
+ * <br>
+ * It blocks the calling thread until the body is read, waiting on a
+ * Selector of its own whenever the socket has nothing more yet, so the
+ * socket can stay registered with the server's Selector meanwhile.
+ */
+final class RequestBody {
+	private static final long CHUNK = 1024 * 1024;		//bytes per transferFrom call
+	private static final int MAX_LINE = 1024;
+
+	private final SocketChannel channel;
+	private final ByteBuffer in;
+	private final long timeout;
+	private Selector waiter;
+
+	/**
+	 * @param in		holds whatever of the body came with the header, from
+	 * 					its start to its position. Bytes read past the body
+	 * 					are left there the same way.
+	 * @param timeout	ms to wait for more of the body
+	 */
+	RequestBody(SocketChannel channel, ByteBuffer in, long timeout) {
+		this.channel = channel;
+		this.in = in;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Writes the whole of buffer to the socket.
+	 */
+	void send(ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining())
+			if(channel.write(buffer) == 0)
+				await(SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Writes length bytes of body to file from position on.
+	 *
+	 * @return	the position after the last byte written
+	 */
+	long receive(FileChannel file, long position, long length) throws IOException {
+		long left = length;
+
+		in.flip();
+		left -= write(file, position, (int)Math.min(left, in.remaining()));
+		position += length - left;
+		in.compact();
+
+		boolean waited = false;
+		while(left > 0) {
+			long moved = file.transferFrom(channel, position, Math.min(CHUNK, left));
+
+			if(moved > 0) {
+				position += moved;
+				left -= moved;
+				waited = false;
+
+			} else if(waited) {
+				/* readable yet nothing came, the client has hung up */
+				throw new IOException("body cut short");
+
+			} else {
+				await(SelectionKey.OP_READ);
+				waited = true;
+			}
+		}
+
+		return position;
+	}
+
+	/**
+	 * Writes a chunked body to file from position on, trailers are
+	 * read and dropped.
+	 *
+	 * @return	the position after the last byte written
+	 */
+	long receiveChunked(FileChannel file, long position) throws IOException {
+		in.flip();
+
+		try {
+			while(true) {
+				String line = read_line();
+				int ext = line.indexOf(';');
+				long size;
+
+				try {
+					size = Long.parseLong((ext < 0 ? line : line.substring(0, ext)).trim(), 16);
+				} catch (NumberFormatException e) {
+					throw new IOException("bad chunk size " + line);
+				}
+
+				if(size == 0)
+					break;
+
+				while(size > 0) {
+					if(!in.hasRemaining())
+						fill();
+
+					int written = write(file, position, (int)Math.min(size, in.remaining()));
+					position += written;
+					size -= written;
+				}
+
+				if(read_line().length() != 0)
+					throw new IOException("chunk longer than its size");
+			}
+
+			while(read_line().length() != 0)
+				;
+
+		} finally {
+			in.compact();
+		}
+
+		return position;
+	}
+
+	void close() {
+		if(waiter == null)
+			return;
+
+		try {
+			waiter.close();
+		} catch (IOException e) { }
+		waiter = null;
+	}
+
+	/*
+	 * writes count bytes from the read position of in, which is moved past them
+	 */
+	private int write(FileChannel file, long position, int count) throws IOException {
+		ByteBuffer part = in.duplicate();
+
+		part.limit(part.position() + count);
+		while(part.hasRemaining())
+			position += file.write(part, position);
+		in.position(in.position() + count);
+
+		return count;
+	}
+
+	private String read_line() throws IOException {
+		StringBuilder line = new StringBuilder(16);
+
+		while(true) {
+			if(!in.hasRemaining())
+				fill();
+
+			char c = (char)(in.get() & 0xff);
+			if(c == '\n')
+				break;
+			if(c != '\r')
+				line.append(c);
+			if(line.length() > MAX_LINE)
+				throw new IOException("line too long");
+		}
+
+		return line.toString();
+	}
+
+	/*
+	 * reads more into in, which is left ready to read
+	 */
+	private void fill() throws IOException {
+		in.compact();
+
+		try {
+			int read;
+
+			while((read = channel.read(in)) == 0)
+				await(SelectionKey.OP_READ);
+
+			if(read < 0)
+				throw new IOException("body cut short");
+
+		} finally {
+			in.flip();
+		}
+	}
+
+	private void await(int op) throws IOException {
+		if(waiter == null)
+			waiter = Selector.open();
+
+		SelectionKey key = channel.register(waiter, op);
+		try {
+			if(waiter.select(timeout) == 0)
+				throw new IOException("timed out");
+			waiter.selectedKeys().clear();
+
+		} finally {
+			key.cancel();
+			waiter.selectNow();
+		}
+	}
+}
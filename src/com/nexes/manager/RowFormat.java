@@ -0,0 +1,110 @@
+/*
+    Open Manager, an open source file manager for the Android system
+    Copyright (C) 2009, 2010  Joe Berria <nexesdevelopment@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.nexes.manager;
+
+import java.io.File;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * Builds the second line of a file list row, such as
+ * "1.50 Mb  | -rw". It keeps one StringBuilder for every row, so the
+ * only allocations are the ones File needs and the finished String.
+ * <br>
+ * It knows nothing of Android, so it can be measured on its own.
+ * Not thread safe, it is meant for the UI thread.
+ */
+final class RowFormat {
+	private static final long KB = 1024;
+	private static final long MB = KB * KB;
+	private static final long GB = MB * KB;
+
+	private final StringBuilder line = new StringBuilder(64);
+	private final char decimal;
+
+	RowFormat() {
+		this(Locale.getDefault());
+	}
+
+	/**
+	 * @param locale	gives the decimal separator of sizes
+	 */
+	RowFormat(Locale locale) {
+		decimal = new DecimalFormatSymbols(locale).getDecimalSeparator();
+	}
+
+	/**
+	 * @return	whether file is hidden, how many items a folder holds or
+	 * 			how big a file is, and the permissions
+	 */
+	String detail(File file) {
+		line.setLength(0);
+
+		if(file.isHidden())
+			line.append("(hidden) | ");
+
+		if(file.isDirectory()) {
+			String[] list = file.list();
+
+			line.append(list != null ? list.length : 0).append(" items | ");
+
+		} else if(file.isFile()) {
+			appendSize(line, file.length());
+			line.append(" | ");
+		}
+
+		line.append('-');
+		if(file.isDirectory())
+			line.append('d');
+		if(file.canRead())
+			line.append('r');
+		if(file.canWrite())
+			line.append('w');
+
+		return line.toString();
+	}
+
+	/**
+	 * Appends size with two decimal places, as String.format("%.2f Kb ")
+	 * would give but without parsing a format for every row.
+	 */
+	void appendSize(StringBuilder out, long size) {
+		long unit = 1;
+		String name = " bytes ";
+
+		if (size > GB) {
+			unit = GB;
+			name = " Gb ";
+		} else if (size > MB) {
+			unit = MB;
+			name = " Mb ";
+		} else if (size > KB) {
+			unit = KB;
+			name = " Kb ";
+		}
+
+		long hundredths = (size * 100 + unit / 2) / unit;
+		long fraction = hundredths % 100;
+
+		out.append(hundredths / 100).append(decimal);
+		if(fraction < 10)
+			out.append('0');
+		out.append(fraction).append(name);
+	}
+}
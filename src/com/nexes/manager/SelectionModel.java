@@ -0,0 +1,168 @@
+/*
+    Open Manager, an open source file manager for the Android system
+    Copyright (C) 2009, 2010  Joe Berria <nexesdevelopment@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.nexes.manager;
+
+import java.io.File;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * The files picked while multi-select is on. Each selection is kept twice:
+ * as a bit for its index in the current listing, so a row can tell whether
+ * it is selected in constant time, and as its full path, so selections are
+ * found in constant time and survive the listing being reloaded. Paths are
+ * returned in the order they were selected.
+ * <br>
+ * Toggling is constant time, select all, invert and range select are
+ * linear in the number of entries they touch.
+ */
+public class SelectionModel {
+	private final BitSet positions;
+	private final LinkedHashSet<String> paths;
+	private List<String> listing;
+	private String dir;
+	private int anchor = -1;
+
+	public SelectionModel() {
+		positions = new BitSet();
+		paths = new LinkedHashSet<String>();
+	}
+
+	/**
+	 * Points the model at a new listing. Entries of it that were selected
+	 * before, e.g. when the same folder is reloaded, stay selected.
+	 *
+	 * @param dir		the directory names are in
+	 * @param names		the entries in the order they are listed
+	 */
+	public void setListing(String dir, List<String> names) {
+		this.dir = dir;
+		listing = names;
+		positions.clear();
+		anchor = -1;
+
+		if(paths.isEmpty())
+			return;
+
+		int size = names.size();
+		for(int i = 0; i < size; i++)
+			if(paths.contains(path_of(i)))
+				positions.set(i);
+	}
+
+	public boolean isSelected(int index) {
+		return positions.get(index);
+	}
+
+	/**
+	 * Selects the entry at index if it was not selected, otherwise
+	 * unselects it. The entry becomes the anchor of the next range select.
+	 *
+	 * @return true if the entry is now selected
+	 */
+	public boolean toggle(int index) {
+		anchor = index;
+
+		if(positions.get(index)) {
+			positions.clear(index);
+			paths.remove(path_of(index));
+			return false;
+		}
+
+		positions.set(index);
+		paths.add(path_of(index));
+		return true;
+	}
+
+	/**
+	 * Selects every entry between the last toggled entry and index, both
+	 * included. With nothing toggled yet only index is selected.
+	 */
+	public void selectRange(int index) {
+		int from = anchor < 0 ? index : Math.min(anchor, index);
+		int to = anchor < 0 ? index : Math.max(anchor, index);
+
+		for(int i = from; i <= to; i++)
+			select(i);
+
+		anchor = index;
+	}
+
+	public void selectAll() {
+		int size = listing.size();
+
+		for(int i = 0; i < size; i++)
+			select(i);
+	}
+
+	/**
+	 * Unselects every selected entry of the listing and selects the rest.
+	 * Selections made in other folders are kept.
+	 */
+	public void invert() {
+		int size = listing.size();
+
+		for(int i = 0; i < size; i++) {
+			if(positions.get(i)) {
+				positions.clear(i);
+				paths.remove(path_of(i));
+			} else {
+				positions.set(i);
+				paths.add(path_of(i));
+			}
+		}
+	}
+
+	public void clear() {
+		positions.clear();
+		paths.clear();
+		anchor = -1;
+	}
+
+	public boolean isEmpty() {
+		return paths.isEmpty();
+	}
+
+	public int size() {
+		return paths.size();
+	}
+
+	public boolean contains(String path) {
+		return paths.contains(path);
+	}
+
+	/**
+	 * @return the selected paths, in the order they were selected
+	 */
+	public String[] getPaths() {
+		return paths.toArray(new String[paths.size()]);
+	}
+
+	private void select(int index) {
+		if(!positions.get(index)) {
+			positions.set(index);
+			paths.add(path_of(index));
+		}
+	}
+
+	private String path_of(int index) {
+		return new File(dir, listing.get(index)).getPath();
+	}
+}
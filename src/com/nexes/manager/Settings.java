@@ -34,12 +34,24 @@ import android.widget.CompoundButton;
 
 public class Settings extends Activity {
 	private CheckBox hidden_bx;
+	private CheckBox trash_bx;
+	private CheckBox verify_bx;
 	private ImageButton color_bt;
+	private ImageButton prefetch_bt;
+	private ImageButton rate_bt;
 	
 	private boolean hidden_state;
+	private boolean trash_state;
+	private boolean verify_state;
 	private boolean state_changed = false;
 	private boolean color_changed = false;
+	private boolean trash_changed = false;
+	private boolean verify_changed = false;
+	private boolean prefetch_changed = false;
+	private boolean rate_changed = false;
 	private int color_state;
+	private int prefetch_state;
+	private int rate_state;
 	private Intent is = new Intent();
 	
 	@Override
@@ -50,15 +62,26 @@ public class Settings extends Activity {
 		Intent i = getIntent();
 		hidden_state = i.getExtras().getBoolean("HIDDEN");
 		color_state = i.getExtras().getInt("COLOR");
+		trash_state = i.getExtras().getBoolean("TRASH");
+		verify_state = i.getExtras().getBoolean("VERIFY");
+		prefetch_state = i.getExtras().getInt("PREFETCH");
+		rate_state = i.getExtras().getInt("RATE");
 		
 		hidden_bx = (CheckBox)findViewById(R.id.setting_hidden_box);
+		trash_bx = (CheckBox)findViewById(R.id.setting_trash_box);
+		verify_bx = (CheckBox)findViewById(R.id.setting_verify_box);
 		color_bt = (ImageButton)findViewById(R.id.setting_color_button);
+		prefetch_bt = (ImageButton)findViewById(R.id.setting_prefetch_button);
+		rate_bt = (ImageButton)findViewById(R.id.setting_rate_button);
 
 		if(hidden_state)
 			hidden_bx.setChecked(true);
 		else
 			hidden_bx.setChecked(false);
 		
+		trash_bx.setChecked(trash_state);
+		verify_bx.setChecked(verify_state);
+		
 		color_bt.setOnClickListener(new OnClickListener() {
 			public void onClick(View view) {
 				AlertDialog.Builder builder;
@@ -110,6 +133,60 @@ public class Settings extends Activity {
 			}
 		});
 		
+		prefetch_bt.setOnClickListener(new OnClickListener() {
+			public void onClick(View view) {
+				AlertDialog.Builder builder;
+				AlertDialog dialog;
+				final int[] distances = {0, 25, 50, 100, 200};
+				CharSequence[] options = {"Off", "25 files", "50 files", "100 files", "200 files"};
+				
+				builder = new AlertDialog.Builder(Settings.this);
+				builder.setTitle("Prefetch thumbnails");
+				builder.setIcon(R.drawable.image);
+				builder.setItems(options, new DialogInterface.OnClickListener() {
+					public void onClick(DialogInterface dialog, int index) {
+						prefetch_state = distances[index];
+						Toast.makeText(Settings.this, index == 0 ? "Prefetch turned off" :
+									   "Prefetching " + distances[index] + " thumbnails",
+									   Toast.LENGTH_SHORT).show();
+						
+						is.putExtra("PREFETCH", prefetch_state);
+						prefetch_changed = true;
+					}
+				});
+				
+				dialog = builder.create();
+				dialog.show();
+			}
+		});
+		
+		rate_bt.setOnClickListener(new OnClickListener() {
+			public void onClick(View view) {
+				AlertDialog.Builder builder;
+				AlertDialog dialog;
+				final int[] rates = {0, 1024, 2048, 5120, 10240};
+				CharSequence[] options = {"Unlimited", "1 MB/s", "2 MB/s", "5 MB/s", "10 MB/s"};
+				
+				builder = new AlertDialog.Builder(Settings.this);
+				builder.setTitle("Background copy speed");
+				builder.setIcon(R.drawable.zip);
+				builder.setItems(options, new DialogInterface.OnClickListener() {
+					public void onClick(DialogInterface dialog, int index) {
+						rate_state = rates[index];
+						Toast.makeText(Settings.this, index == 0 ? "Copy speed not limited" :
+									   "Copy speed limited to " + (rates[index] / 1024) + " MB/s",
+									   Toast.LENGTH_SHORT).show();
+						
+						is.putExtra("RATE", rate_state);
+						rate_changed = true;
+					}
+				});
+				
+				dialog = builder.create();
+				dialog.show();
+			}
+		});
+		
 		hidden_bx.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
 			public void onCheckedChanged(CompoundButton arg0, boolean arg1) {
 				if(hidden_bx.isChecked())
@@ -121,6 +198,24 @@ public class Settings extends Activity {
 				state_changed = true;
 			}
 		});
+		
+		trash_bx.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+			public void onCheckedChanged(CompoundButton arg0, boolean arg1) {
+				trash_state = trash_bx.isChecked();
+				
+				is.putExtra("TRASH", trash_state);
+				trash_changed = true;
+			}
+		});
+		
+		verify_bx.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+			public void onCheckedChanged(CompoundButton arg0, boolean arg1) {
+				verify_state = verify_bx.isChecked();
+				
+				is.putExtra("VERIFY", verify_state);
+				verify_changed = true;
+			}
+		});
 	}
 	
 	@Override
@@ -132,6 +227,18 @@ public class Settings extends Activity {
 		
 		if(!color_changed)
 			is.putExtra("COLOR", color_state);
+		
+		if(!trash_changed)
+			is.putExtra("TRASH", trash_state);
+		
+		if(!verify_changed)
+			is.putExtra("VERIFY", verify_state);
+		
+		if(!prefetch_changed)
+			is.putExtra("PREFETCH", prefetch_state);
+		
+		if(!rate_changed)
+			is.putExtra("RATE", rate_state);
 			
 		setResult(RESULT_CANCELED, is);
 	}
@@ -0,0 +1,483 @@
+/*
+    Open Manager, an open source file manager for the Android system
+    Copyright (C) 2009, 2010  Joe Berria <nexesdevelopment@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.nexes.manager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Makes one folder a copy of another, such as a backup copy made earlier,
+ * by writing only what differs. Files are compared by size and time of
+ * last change, so an unchanged file is not even opened, and a copied file
+ * is given the time of its source so it compares equal the next time.
+ * <br>
+ * A changed file of at least DELTA_MIN bytes that is already in the target
+ * is updated in place. Both files are read a block at a time and only the
+ * blocks that differ are written. If such an update is stopped half way
+ * the file keeps its old time, so the next sync goes over it again.
+ * <br>
+ * The work is first laid out in a Plan, without reading any file
+ * contents. A Plan can be shown to the user as a dry run, and then
+ * carried out. Like FileManager, this class knows nothing of the GUI.
+ */
+public class SyncEngine {
+	public static final long DELTA_MIN = 256 * 1024;
+	private static final long TIME_SLACK = 2000;		//ms, FAT keeps times to 2 seconds
+	private static final String PART = ".sync-part";
+
+	public static final int MKDIR =		0x00;
+	public static final int COPY =		0x01;		//a new file
+	public static final int UPDATE =	0x02;		//a changed file, written whole
+	public static final int DELTA =		0x03;		//a changed file, only its changed blocks
+	public static final int DELETE =	0x04;		//a file or folder not in the source
+	public static final int CONFLICT =	0x05;		//a file on one side, a folder on the other
+
+	private final File source;
+	private final File target;
+	private final FileManager manager;
+	private boolean delete_extraneous = false;
+	private boolean use_deltas = true;
+	private long written = 0;
+
+	/**
+	 * One thing to do, on a path relative to the source and the target.
+	 */
+	public static class Action {
+		public final int kind;
+		public final String path;
+		public final long bytes;	//the most the action writes, or frees for DELETE
+
+		Action(int kind, String path, long bytes) {
+			this.kind = kind;
+			this.path = path;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Everything a sync is going to do, in the order it does it.
+	 */
+	public static class Plan {
+		private final ArrayList<Action> actions = new ArrayList<Action>();
+		private final int[] counts = new int[CONFLICT + 1];
+		private final long[] bytes = new long[CONFLICT + 1];
+		private int unchanged = 0;
+
+		void add(Action action) {
+			actions.add(action);
+			counts[action.kind]++;
+			bytes[action.kind] += action.bytes;
+		}
+
+		public ArrayList<Action> getActions() {
+			return actions;
+		}
+
+		public int getCount(int kind) {
+			return counts[kind];
+		}
+
+		public int getUnchanged() {
+			return unchanged;
+		}
+
+		/**
+		 * @return	files the sync copies or updates
+		 */
+		public int getFiles() {
+			return counts[COPY] + counts[UPDATE] + counts[DELTA];
+		}
+
+		/**
+		 * @return	the most bytes the sync writes, deltas counted whole
+		 */
+		public long getBytes() {
+			return bytes[COPY] + bytes[UPDATE] + bytes[DELTA];
+		}
+
+		public boolean isEmpty() {
+			return actions.isEmpty();
+		}
+
+		/**
+		 * @return	a few lines on what the sync will do and what it costs,
+		 * 			for the user
+		 */
+		public String getReport() {
+			StringBuilder report = new StringBuilder(256);
+
+			if(counts[COPY] > 0)
+				report.append("Copy ").append(counts[COPY]).append(" new file(s), ")
+					  .append(FileOperation.format_size(bytes[COPY])).append('\n');
+			if(counts[UPDATE] > 0)
+				report.append("Rewrite ").append(counts[UPDATE]).append(" changed file(s), ")
+					  .append(FileOperation.format_size(bytes[UPDATE])).append('\n');
+			if(counts[DELTA] > 0)
+				report.append("Update ").append(counts[DELTA])
+					  .append(" large changed file(s) block by block, up to ")
+					  .append(FileOperation.format_size(bytes[DELTA])).append('\n');
+			if(counts[MKDIR] > 0)
+				report.append("Create ").append(counts[MKDIR]).append(" folder(s)\n");
+			if(counts[DELETE] > 0)
+				report.append("Delete ").append(counts[DELETE]).append(" item(s) not in the source, ")
+					  .append(FileOperation.format_size(bytes[DELETE])).append('\n');
+			if(counts[CONFLICT] > 0)
+				report.append("Skip ").append(counts[CONFLICT])
+					  .append(" item(s) that are a file on one side and a folder on the other\n");
+
+			if(actions.isEmpty())
+				report.append("Nothing to do, ");
+			report.append(unchanged).append(" file(s) are unchanged\n");
+
+			if(getBytes() > 0)
+				report.append("\nWrites at most ").append(FileOperation.format_size(getBytes()));
+
+			return report.toString();
+		}
+	}
+
+	/**
+	 * @param source	the folder to copy from
+	 * @param target	the folder to make like it, made if it does not exist
+	 * @param manager	deletes what the source does not have, into the
+	 * 					trash if it is in use
+	 */
+	public SyncEngine(String source, String target, FileManager manager) {
+		this.source = new File(source);
+		this.target = new File(target);
+		this.manager = manager;
+	}
+
+	/**
+	 * @param delete	true to delete files and folders of the target that
+	 * 					are not in the source, and to replace a file by a
+	 * 					folder of the same name or the other way around
+	 */
+	public void setDeleteExtraneous(boolean delete) {
+		delete_extraneous = delete;
+	}
+
+	/**
+	 * @param deltas	false to always write a changed file whole
+	 */
+	public void setUseDeltas(boolean deltas) {
+		use_deltas = deltas;
+	}
+
+	/**
+	 * @return	bytes written by run so far
+	 */
+	public long getWritten() {
+		return written;
+	}
+
+	/**
+	 * Compares the two folders without reading any file contents.
+	 *
+	 * @param checkpoint	asked before every folder, may be null
+	 * @return				the plan, or null if it was stopped or one
+	 * 						folder lies within the other
+	 */
+	public Plan plan(FileManager.Checkpoint checkpoint) throws IOException {
+		String from = source.getCanonicalPath();
+		String to = target.getCanonicalPath();
+		Plan plan = new Plan();
+
+		/* a source inside the target would be planned as extraneous and deleted */
+		if(!source.isDirectory() || to.equals(from) || to.startsWith(from + "/") ||
+		   from.startsWith(to + "/"))
+			return null;
+
+		if(!target.exists())
+			plan.add(new Action(MKDIR, "", 0));
+
+		if(!compare("", plan, checkpoint))
+			return null;
+
+		return plan;
+	}
+
+	/**
+	 * Carries out plan. Every action is tried even if some fail.
+	 *
+	 * @param checkpoint	asked before every block, may be null
+	 * @return				false if it was stopped or anything failed
+	 */
+	public boolean run(Plan plan, FileManager.Checkpoint checkpoint) {
+		boolean ok = true;
+
+		for(Action action : plan.getActions()) {
+			if(checkpoint != null && !checkpoint.proceed())
+				return false;
+
+			File from = new File(source, action.path);
+			File to = new File(target, action.path);
+
+			try {
+				switch(action.kind) {
+					case MKDIR:
+						ok &= to.isDirectory() || to.mkdirs();
+						break;
+
+					case COPY:
+					case UPDATE:
+						ok &= copy(from, to, checkpoint);
+						break;
+
+					case DELTA:
+						ok &= update(from, to, checkpoint);
+						break;
+
+					case DELETE:
+						ok &= manager.deleteTarget(to.getPath(), checkpoint) == 0;
+						break;
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				ok = false;
+			}
+
+			if(action.kind != MKDIR && action.kind != DELETE && action.kind != CONFLICT &&
+			   checkpoint != null)
+				checkpoint.fileDone();
+		}
+
+		return ok;
+	}
+
+	/*
+	 * adds what it takes to make the folder path of the target like the
+	 * one of the source, folders before what goes in them
+	 */
+	private boolean compare(String path, Plan plan, FileManager.Checkpoint checkpoint) {
+		if(checkpoint != null && !checkpoint.proceed())
+			return false;
+
+		File from_dir = new File(source, path);
+		File to_dir = new File(target, path);
+		String[] names = from_dir.list();
+		String[] existing = to_dir.list();
+		HashSet<String> in_source = new HashSet<String>();
+		ArrayList<String> dirs = new ArrayList<String>();
+
+		if(names == null)
+			return true;
+
+		Arrays.sort(names);
+		for(String name : names)
+			if(!name.equals(TrashManager.TRASH_DIR) && !name.endsWith(PART))
+				in_source.add(name);
+
+		/* first, to make room */
+		if(delete_extraneous && existing != null) {
+			Arrays.sort(existing);
+			for(String name : existing)
+				if(!in_source.contains(name) && !name.equals(TrashManager.TRASH_DIR))
+					plan.add(new Action(DELETE, path + "/" + name, size_of(new File(to_dir, name))));
+		}
+
+		for(String name : names) {
+			if(!in_source.contains(name))
+				continue;
+
+			String child = path + "/" + name;
+			File from = new File(from_dir, name);
+			File to = new File(to_dir, name);
+
+			if(from.isDirectory()) {
+				if(to.isFile() && !replace(child, to, plan))
+					continue;
+				if(!to.isDirectory())
+					plan.add(new Action(MKDIR, child, 0));
+				dirs.add(child);
+
+			} else if(to.isDirectory()) {
+				if(replace(child, to, plan))
+					plan.add(new Action(COPY, child, from.length()));
+
+			} else if(!to.exists()) {
+				plan.add(new Action(COPY, child, from.length()));
+
+			} else if(from.length() != to.length() ||
+					  Math.abs(from.lastModified() - to.lastModified()) > TIME_SLACK) {
+				boolean delta = use_deltas && from.length() >= DELTA_MIN;
+
+				plan.add(new Action(delta ? DELTA : UPDATE, child, from.length()));
+
+			} else {
+				plan.unchanged++;
+			}
+		}
+
+		/* after the files, so each folder's files are written together */
+		for(String dir : dirs)
+			if(!compare(dir, plan, checkpoint))
+				return false;
+
+		return true;
+	}
+
+	/*
+	 * a file where the source has a folder or the other way around is
+	 * only deleted if extraneous files are
+	 */
+	private boolean replace(String path, File existing, Plan plan) {
+		if(!delete_extraneous) {
+			plan.add(new Action(CONFLICT, path, 0));
+			return false;
+		}
+
+		plan.add(new Action(DELETE, path, size_of(existing)));
+		return true;
+	}
+
+	/*
+	 * writes from into a part file next to to, which then takes its place
+	 */
+	private boolean copy(File from, File to, FileManager.Checkpoint checkpoint) throws IOException {
+		File part = new File(to.getParentFile(), to.getName() + PART);
+		InputStream in = null;
+		FileOutputStream out = null;
+		boolean copied = false;
+
+		try {
+			in = new FileInputStream(from);
+			out = new FileOutputStream(part);
+			copied = BufferPool.copy(in, out, BufferPool.COPY, part.getPath(), from.length(),
+									 checkpoint);
+		} finally {
+			BackupEngine.close(in);
+			if(!BackupEngine.close(out))
+				copied = false;
+		}
+
+		if(copied && !part.renameTo(to))
+			copied = to.delete() && part.renameTo(to);
+
+		if(!copied) {
+			part.delete();
+			return false;
+		}
+
+		written += from.length();
+		to.setLastModified(from.lastModified());
+		return true;
+	}
+
+	/*
+	 * reads both files a block at a time and writes the blocks of from
+	 * that differ into to, which is then cut to the same length
+	 */
+	private boolean update(File from, File to, FileManager.Checkpoint checkpoint) throws IOException {
+		long length = from.length();
+		byte[] wanted = BufferPool.obtain(BufferPool.COPY, to.getPath(), length);
+		byte[] held = BufferPool.obtain(BufferPool.COPY, to.getPath(), length);
+		InputStream in = null;
+		RandomAccessFile out = null;
+		long position = 0;
+		int read;
+
+		try {
+			in = new FileInputStream(from);
+			out = new RandomAccessFile(to, "rw");
+
+			while((read = read_fully(in, wanted, wanted.length)) > 0) {
+				if(checkpoint != null && !checkpoint.proceed())
+					return false;
+
+				out.seek(position);
+				int have = read_fully(out, held, read);
+
+				if(have < read || !same(wanted, held, read)) {
+					out.seek(position);
+					out.write(wanted, 0, read);
+					written += read;
+				}
+
+				position += read;
+				if(checkpoint != null)
+					checkpoint.bytesDone(read);
+			}
+
+			out.setLength(position);
+
+		} finally {
+			BufferPool.release(wanted);
+			BufferPool.release(held);
+			BackupEngine.close(in);
+			if(!BackupEngine.close(out))
+				position = -1;
+		}
+
+		if(position < 0)
+			return false;
+
+		to.setLastModified(from.lastModified());
+		return true;
+	}
+
+	private static int read_fully(InputStream in, byte[] buffer, int length) throws IOException {
+		int total = 0;
+		int read;
+
+		while(total < length && (read = in.read(buffer, total, length - total)) > 0)
+			total += read;
+
+		return total;
+	}
+
+	private static int read_fully(RandomAccessFile in, byte[] buffer, int length) throws IOException {
+		int total = 0;
+		int read;
+
+		while(total < length && (read = in.read(buffer, total, length - total)) > 0)
+			total += read;
+
+		return total;
+	}
+
+	private static boolean same(byte[] a, byte[] b, int length) {
+		for(int i = 0; i < length; i++)
+			if(a[i] != b[i])
+				return false;
+
+		return true;
+	}
+
+	private static long size_of(File file) {
+		if(file.isFile())
+			return file.length();
+
+		String[] list = file.list();
+		long size = 0;
+
+		if(list != null)
+			for(String name : list)
+				size += size_of(new File(file, name));
+
+		return size;
+	}
+}
@@ -0,0 +1,121 @@
+/*
+    Open Manager, an open source file manager for the Android system
+    Copyright (C) 2009, 2010  Joe Berria <nexesdevelopment@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.nexes.manager;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+
+/**
+ * A least recently used cache of decoded thumbnails that is bounded by
+ * the number of bytes the bitmaps hold rather than by the number of entries.
+ * Entries are keyed by path, size and modification time so a file that
+ * changes on disk is decoded again instead of showing a stale icon.
+ */
+public class ThumbnailCache {
+	private final LinkedHashMap<String, Bitmap> map;
+	private final int max_bytes;
+	private OnEvictListener listener;
+	private int size = 0;
+
+	/**
+	 * Told about every bitmap that falls out of the cache, so it can be
+	 * reused once nothing is showing it any more.
+	 */
+	public interface OnEvictListener {
+		void onEvicted(Bitmap bitmap);
+	}
+
+	/**
+	 * @param maxBytes	how many bytes of pixel data the cache may hold
+	 */
+	public ThumbnailCache(int maxBytes) {
+		max_bytes = maxBytes;
+
+		/* access ordered, the eldest entry is the least recently used */
+		map = new LinkedHashMap<String, Bitmap>(64, 0.75f, true);
+	}
+
+	/**
+	 * Builds the key a thumbnail of file is stored under.
+	 *
+	 * @param file	the file the thumbnail was made from
+	 * @return		a key that changes whenever the file does
+	 */
+	public static String getKey(File file) {
+		return file.getPath() + ':' + file.length() + ':' + file.lastModified();
+	}
+
+	public synchronized void setOnEvictListener(OnEvictListener l) {
+		listener = l;
+	}
+
+	public synchronized Bitmap get(String key) {
+		return map.get(key);
+	}
+
+	public synchronized void put(String key, Bitmap bitmap) {
+		if(bitmap == null)
+			return;
+
+		Bitmap old = map.put(key, bitmap);
+		if(old != null) {
+			size -= size_of(old);
+
+			if(old != bitmap && listener != null)
+				listener.onEvicted(old);
+		}
+
+		size += size_of(bitmap);
+		trim(max_bytes);
+	}
+
+	public synchronized void clear() {
+		map.clear();
+		size = 0;
+	}
+
+	/**
+	 * @return the number of bytes of pixel data currently held
+	 */
+	public synchronized int getSize() {
+		return size;
+	}
+
+	private void trim(int max) {
+		Iterator<Map.Entry<String, Bitmap>> it = map.entrySet().iterator();
+
+		while(size > max && it.hasNext()) {
+			Map.Entry<String, Bitmap> eldest = it.next();
+
+			size -= size_of(eldest.getValue());
+			it.remove();
+
+			if(listener != null)
+				listener.onEvicted(eldest.getValue());
+		}
+	}
+
+	private static int size_of(Bitmap bitmap) {
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+}
@@ -19,67 +19,412 @@
 package com.nexes.manager;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
 import android.widget.ImageView;
 import android.os.Handler;
-import android.util.Log;
+import android.os.Looper;
 
-import java.lang.ref.SoftReference;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Creates the thumbnails shown in the file list. The thumbnail itself is
+ * made by the first ThumbnailExtractor that accepts the file's extension,
+ * so images, videos, packages and music all go through the same queue,
+ * caches and cancellation. Decoding is done on a small fixed pool of
+ * threads that takes the newest request first, which is the row the user
+ * is looking at. Each ImageView is tagged with the key of the thumbnail
+ * it is waiting for, so when a row is recycled its old request is
+ * cancelled and a late result can not overwrite the row.
+ * Decoded thumbnails are kept in memory and on the sdcard, so a folder
+ * only has to be decoded once. Entering a folder that is mostly pictures
+ * also queues the first files of the list behind the visible rows, so
+ * thumbnails are ready before the user scrolls to them. Every thumbnail
+ * is drawn into a fixed size bitmap from a BitmapPool, and bitmaps that
+ * are neither cached nor shown are handed back to the pool to be drawn
+ * into again. Files that turned out to have no thumbnail are remembered
+ * so they are not read again every time their row is shown.
+ * <br>
+ * All public methods are expected to be called from the UI thread.
+ */
 public class ThumbnailCreator {
+	private static final int CACHE_SIZE = 2 * 1024 * 1024;
+	private static final int DECODE_THREADS = 2;
+	private static final int POOL_SIZE = 64;
+	private static final int MAX_MISSES = 256;
+
+	/* shared so thumbnails survive the adapter being recreated */
+	private static final ThumbnailCache cache = new ThumbnailCache(CACHE_SIZE);
+	private static final ThumbnailDiskCache disk_cache = new ThumbnailDiskCache();
+	private static final BitmapPool pool = new BitmapPool(POOL_SIZE);
+	private static final Handler handle = new Handler(Looper.getMainLooper());
+
+	/*
+	 * bitmaps currently set on an ImageView, and those that were evicted
+	 * from the cache while still showing. Only touched on the UI thread.
+	 */
+	private static final WeakHashMap<ImageView, Bitmap> shown = new WeakHashMap<ImageView, Bitmap>();
+	private static final HashSet<Bitmap> evicted = new HashSet<Bitmap>();
+
+	/* keys of files an extractor found nothing in */
+	private static final LinkedHashMap<String, Boolean> misses = 
+		new LinkedHashMap<String, Boolean>(32, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+				return size() > MAX_MISSES;
+			}
+		};
+
+	private static final CopyOnWriteArrayList<ThumbnailExtractor> extractors = 
+		new CopyOnWriteArrayList<ThumbnailExtractor>();
+
+	static {
+		extractors.add(new ImageThumbnailExtractor());
+		extractors.add(new VideoThumbnailExtractor());
+		extractors.add(new ApkIconExtractor());
+		extractors.add(new AlbumArtExtractor());
+
+		cache.setOnEvictListener(new ThumbnailCache.OnEvictListener() {
+			public void onEvicted(final Bitmap bitmap) {
+				handle.post(new Runnable() {
+					public void run() {
+						if(shown.containsValue(bitmap))
+							evicted.add(bitmap);
+						else
+							pool.put(bitmap);
+					}
+				});
+			}
+		});
+	}
+	private static final AtomicLong sequence = new AtomicLong();
+	private static final ThreadPoolExecutor decoder = new ThreadPoolExecutor(
+			DECODE_THREADS, DECODE_THREADS, 0, TimeUnit.MILLISECONDS,
+			new PriorityBlockingQueue<Runnable>(),
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "thumbnail-decoder");
+					t.setPriority(Thread.NORM_PRIORITY - 1);
+					return t;
+				}
+			});
+
 	private int mWidth;
 	private int mHeight;
+	private final HashMap<ImageView, DecodeTask> pending;
+	private final ArrayList<DecodeTask> prefetching;
 
 	public ThumbnailCreator(int width, int height) {
 		mWidth = width;
 		mHeight = height;
+		pending = new HashMap<ImageView, DecodeTask>();
+		prefetching = new ArrayList<DecodeTask>();
+	}
+
+	/**
+	 * Registers an extractor for more kinds of files. Extractors added
+	 * later are only asked about extensions no earlier one accepts.
+	 */
+	public static void addExtractor(ThumbnailExtractor extractor) {
+		extractors.add(extractor);
+	}
+
+	/**
+	 * @param extension	the file extension, without the dot
+	 * @return			true if files with extension can have a thumbnail
+	 */
+	public static boolean canCreateThumbnail(String extension) {
+		return find_extractor(extension.toLowerCase()) != null;
+	}
+
+	/**
+	 * Sets the thumbnail of imageSrc to icon. If the thumbnail is in
+	 * the cache it is set right away, otherwise it is queued for decoding
+	 * and set once it is ready, provided icon still shows imageSrc by then.
+	 * Whatever icon shows now is left in place as the placeholder.
+	 */
+	public void setBitmapToImageView(String imageSrc, ImageView icon) {
+		setBitmapToImageView(imageSrc, ThumbnailCache.getKey(new File(imageSrc)), icon, 0);
 	}
 
-	public void setBitmapToImageView(final String imageSrc, 
-									 final Handler handle, 
-									 final ImageView icon) {
-
-		final File file = new File(imageSrc);
-		
-		Thread thread = new Thread() {
-			public void run() {
-				synchronized (this) {
-					BitmapFactory.Options options = new BitmapFactory.Options();
-					options.inSampleSize = 32;
-	//				final SoftReference<Bitmap> image2;
-					final SoftReference<Bitmap> image1;// = 
-	//						new SoftReference<Bitmap>(Bitmap.createScaledBitmap(
-	//														 BitmapFactory.decodeFile(imageSrc),
-	//														 mWidth,
-	//														 mHeight,
-	//														 false));
-					image1 = (file.length() > 100000) ?
-							 new SoftReference<Bitmap>(BitmapFactory.decodeFile(imageSrc, options)) : 
-							 new SoftReference<Bitmap>(Bitmap.createScaledBitmap(
-									 						  BitmapFactory.decodeFile(imageSrc),
-									 						  mWidth,
-									 						  mHeight,
-									 						  false));
-					
-					Log.e("name", imageSrc);
-					Log.e("width", "" + image1.get().getWidth());
-					Log.e("height", "" + image1.get().getHeight());
-					
-			//		image2 = (image1.get().getHeight() > mHeight) ?
-			//				  new SoftReference<Bitmap>(Bitmap.createScaledBitmap(image1.get(), mWidth, mHeight, true))://BitmapFactory.decodeFile(imageSrc, options)) :
-			//				  new SoftReference<Bitmap>(BitmapFactory.decodeFile(imageSrc));
-					
-							  
-				   handle.post(new Runnable() {
-						public void run() {
-							icon.setImageBitmap(image1.get());
+	/**
+	 * Same as above for a caller that already has the key of imageSrc.
+	 * Unless the thumbnail can be set right away, icon shows the
+	 * placeholder resource until it is ready. Binding a row that already
+	 * shows its thumbnail does nothing, so rebinding the rows on screen
+	 * allocates nothing.
+	 *
+	 * @param key			the key ThumbnailCache.getKey gives for imageSrc
+	 * @param placeholder	a drawable resource, or 0 to leave icon as it is
+	 */
+	public void setBitmapToImageView(String imageSrc, String key, ImageView icon, int placeholder) {
+		Bitmap cached = cache.get(key);
+		DecodeTask task = pending.get(icon);
+
+		if(task != null && task.key.equals(key))
+			return;
+		if(cached != null && task == null && shown.get(icon) == cached)
+			return;
+
+		cancel(icon);
+
+		if(cached != null) {
+			bind(icon, cached);
+			return;
+		}
+
+		if(placeholder != 0)
+			icon.setImageResource(placeholder);
+
+		File file = new File(imageSrc);
+		String name = file.getName();
+		ThumbnailExtractor extractor = find_extractor(name.substring(name.lastIndexOf('.') + 1).toLowerCase());
+		if(extractor == null || is_miss(key))
+			return;
+
+		task = new DecodeTask(file, key, icon, extractor);
+		icon.setTag(key);
+		pending.put(icon, task);
+		decoder.execute(task);
+	}
+
+	/**
+	 * Queues the thumbnails of the files in names, in list order, behind
+	 * every request for a visible row. Nothing is queued unless most of the
+	 * entries can have a thumbnail, and only the first distance of those
+	 * that can are read. cancelAll drops whatever has not run yet.
+	 *
+	 * @param dir		the directory names are in
+	 * @param names		the entries of dir in the order they are listed
+	 * @param distance	how many files to prefetch at most
+	 */
+	public void prefetch(String dir, List<String> names, int distance) {
+		int size = names.size();
+		int count = 0;
+		ThumbnailExtractor[] found = new ThumbnailExtractor[size];
+
+		for(int i = 0; i < size; i++) {
+			String name = names.get(i);
+
+			found[i] = find_extractor(name.substring(name.lastIndexOf('.') + 1).toLowerCase());
+			if(found[i] != null)
+				count++;
+		}
+
+		if(count * 2 <= size)
+			return;
+
+		for(int i = 0; i < size && prefetching.size() < distance; i++) {
+			if(found[i] == null)
+				continue;
+
+			DecodeTask task = new DecodeTask(new File(dir, names.get(i)), null, null, found[i]);
+			prefetching.add(task);
+			decoder.execute(task);
+		}
+	}
+
+	/**
+	 * Cancels the request icon is waiting for, if any. Call this when a
+	 * recycled row is bound to something that has no thumbnail.
+	 */
+	public void cancel(ImageView icon) {
+		DecodeTask task = pending.remove(icon);
+
+		unbind(icon);
+		icon.setTag(null);
+		if(task != null) {
+			task.cancelled = true;
+			decoder.remove(task);
+		}
+	}
+
+	/**
+	 * Drops every queued request, e.g. when the user leaves the directory.
+	 */
+	public void cancelAll() {
+		for(ImageView icon : pending.keySet()) {
+			DecodeTask task = pending.get(icon);
+
+			icon.setTag(null);
+			task.cancelled = true;
+			decoder.remove(task);
+		}
+		pending.clear();
+
+		for(DecodeTask task : prefetching) {
+			task.cancelled = true;
+			decoder.remove(task);
+		}
+		prefetching.clear();
+	}
+
+	private static void bind(ImageView icon, Bitmap bitmap) {
+		Bitmap old = shown.put(icon, bitmap);
+
+		icon.setImageBitmap(bitmap);
+		if(old != null && old != bitmap)
+			release(old);
+	}
+
+	/*
+	 * the icon no longer shows its thumbnail, so the bitmap can go back
+	 * to the pool if the cache has already let go of it.
+	 */
+	private static void unbind(ImageView icon) {
+		Bitmap old = shown.remove(icon);
+
+		if(old == null)
+			return;
+
+		Drawable drawable = icon.getDrawable();
+		if(drawable instanceof BitmapDrawable && ((BitmapDrawable)drawable).getBitmap() == old)
+			icon.setImageDrawable(null);
+
+		release(old);
+	}
+
+	private static void release(Bitmap bitmap) {
+		if(evicted.contains(bitmap) && !shown.containsValue(bitmap)) {
+			evicted.remove(bitmap);
+			pool.put(bitmap);
+		}
+	}
+
+	private static boolean is_miss(String key) {
+		synchronized(misses) {
+			return misses.containsKey(key);
+		}
+	}
+
+	private static ThumbnailExtractor find_extractor(String extension) {
+		for(ThumbnailExtractor extractor : extractors)
+			if(extractor.accepts(extension))
+				return extractor;
+
+		return null;
+	}
+
+	/*
+	 * runs on a decoder thread, the disk cache is checked before the
+	 * extractor is asked to read the file itself.
+	 */
+	private Bitmap decode(File file, String key, ThumbnailExtractor extractor) {
+		Bitmap image = pool.fit(disk_cache.get(key), mWidth, mHeight);
+
+		if(image == null) {
+			try {
+				image = extractor.extract(file, mWidth, mHeight, pool);
+			} catch (RuntimeException e) {
+				/* a malformed file must not take the decoder thread down */
+				image = null;
+			}
+
+			if(image != null)
+				disk_cache.put(key, image);
+		}
+
+		return image;
+	}
+
+	/*
+	 * Ordered so the most recent request for a row is taken off the queue
+	 * first, and prefetches only after those, in the order they were queued.
+	 * A prefetch has no icon and works out its key on the decoder thread,
+	 * so entering a folder does not stat every file on the UI thread.
+	 */
+	private class DecodeTask implements Runnable, Comparable<DecodeTask> {
+		private final File file;
+		private String key;
+		private final ImageView icon;
+		private final ThumbnailExtractor extractor;
+		private final long seq;
+		private volatile boolean cancelled = false;
+
+		private DecodeTask(File file, String key, ImageView icon, ThumbnailExtractor extractor) {
+			this.file = file;
+			this.key = key;
+			this.icon = icon;
+			this.extractor = extractor;
+			seq = sequence.incrementAndGet();
+		}
+
+		public int compareTo(DecodeTask other) {
+			boolean prefetch = icon == null;
+
+			if(prefetch != (other.icon == null))
+				return prefetch ? 1 : -1;
+			if(prefetch)
+				return seq < other.seq ? -1 : (seq > other.seq ? 1 : 0);
+
+			return seq > other.seq ? -1 : (seq < other.seq ? 1 : 0);
+		}
+
+		public void run() {
+			if(cancelled)
+				return;
+
+			if(icon == null) {
+				key = ThumbnailCache.getKey(file);
+				if(cache.get(key) != null || is_miss(key))
+					return;
+			}
+
+			final Bitmap image = icon == null ? decode(file, key, extractor) : decode_visible();
+			if(image != null)
+				cache.put(key, image);
+
+			handle.post(new Runnable() {
+				public void run() {
+					if(icon == null) {
+						prefetching.remove(DecodeTask.this);
+					} else if(pending.get(icon) == DecodeTask.this) {
+						pending.remove(icon);
+					}
+
+					if(image == null && !cancelled) {
+						synchronized(misses) {
+							misses.put(key, Boolean.TRUE);
 						}
-					});
+					}
+
+					if(image != null && icon != null && !cancelled && key.equals(icon.getTag()))
+						bind(icon, image);
 				}
+			});
+		}
+
+		/*
+		 * a visible row is foreground work on its device, file operations
+		 * there hold off while it decodes
+		 */
+		private Bitmap decode_visible() {
+			IoScheduler io = IoScheduler.forPath(file.getPath());
+
+			try {
+				io.acquireForeground();
+			} catch (InterruptedException e) {
+				cancelled = true;
+				return null;
 			}
-		};
-		
-		thread.start();
+
+			try {
+				return decode(file, key, extractor);
+			} finally {
+				io.releaseForeground();
+			}
+		}
 	}
-}
\ No newline at end of file
+}
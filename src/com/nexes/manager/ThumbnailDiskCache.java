@@ -0,0 +1,229 @@
+/*
+    Open Manager, an open source file manager for the Android system
+    Copyright (C) 2009, 2010  Joe Berria <nexesdevelopment@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.nexes.manager;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * Keeps thumbnails on the sdcard so they do not have to be decoded again
+ * after the application restarts. Each thumbnail is a small PNG named after
+ * the MD5 of its ThumbnailCache key, spread over 16 sub folders so no single
+ * folder gets too large. The index of what is stored is kept in memory in
+ * least recently used order, rebuilt from the modification times of the files
+ * the first time it is needed, and trimmed to a byte budget.
+ * <br>
+ * All methods do disk I/O and must not be called from the UI thread.
+ */
+public class ThumbnailDiskCache {
+	private static final String CACHE_DIR = "/sdcard/open manager/.thumbnails";
+	private static final String HEX = "0123456789abcdef";
+	private static final int DEFAULT_BUDGET = 4 * 1024 * 1024;
+
+	private final File root;
+	private final int max_bytes;
+	private LinkedHashMap<String, Long> index;
+	private long size = 0;
+
+	public ThumbnailDiskCache() {
+		this(CACHE_DIR, DEFAULT_BUDGET);
+	}
+
+	/**
+	 * @param dir		the folder to keep thumbnails in
+	 * @param maxBytes	how many bytes the stored thumbnails may use
+	 */
+	public ThumbnailDiskCache(String dir, int maxBytes) {
+		root = new File(dir);
+		max_bytes = maxBytes;
+	}
+
+	/**
+	 * @param key	the ThumbnailCache key of the file
+	 * @return		the stored thumbnail, null if there is none
+	 */
+	public Bitmap get(String key) {
+		String name = hash(key);
+		File file = get_file(name);
+
+		synchronized (this) {
+			load_index();
+			if(index.get(name) == null)
+				return null;
+		}
+
+		Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+		if(bitmap == null) {
+			remove(name);
+			return null;
+		}
+
+		file.setLastModified(System.currentTimeMillis());
+		return bitmap;
+	}
+
+	/**
+	 * Stores a thumbnail. It is written to a temporary file first so a
+	 * reader never sees a half written PNG.
+	 */
+	public void put(String key, Bitmap bitmap) {
+		String name = hash(key);
+		File file = get_file(name);
+		File temp = new File(file.getPath() + ".tmp");
+		BufferedOutputStream out = null;
+		boolean written = false;
+
+		synchronized (this) {
+			load_index();
+			if(!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs())
+				return;
+		}
+
+		try {
+			out = new BufferedOutputStream(new FileOutputStream(temp), 4096);
+			written = bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+
+		} catch (IOException e) {
+			written = false;
+
+		} finally {
+			if(out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					written = false;
+				}
+			}
+		}
+
+		if(!written || !temp.renameTo(file)) {
+			temp.delete();
+			return;
+		}
+
+		synchronized (this) {
+			Long old = index.put(name, file.length());
+
+			if(old != null)
+				size -= old;
+			size += file.length();
+			trim();
+		}
+	}
+
+	private synchronized void remove(String name) {
+		Long old = index.remove(name);
+
+		if(old != null)
+			size -= old;
+		get_file(name).delete();
+	}
+
+	private void trim() {
+		Iterator<Map.Entry<String, Long>> it = index.entrySet().iterator();
+
+		while(size > max_bytes && it.hasNext()) {
+			Map.Entry<String, Long> eldest = it.next();
+
+			size -= eldest.getValue();
+			get_file(eldest.getKey()).delete();
+			it.remove();
+		}
+	}
+
+	/*
+	 * builds the in memory index once, oldest file first so the access
+	 * order of the map matches the order the files were last used in.
+	 */
+	private void load_index() {
+		if(index != null)
+			return;
+
+		ArrayList<File> files = new ArrayList<File>();
+		index = new LinkedHashMap<String, Long>(256, 0.75f, true);
+
+		if(!root.isDirectory() && root.mkdirs()) {
+			try {
+				new File(root, ".nomedia").createNewFile();
+			} catch (IOException e) { }
+		}
+
+		for(int i = 0; i < HEX.length(); i++) {
+			File[] shard = new File(root, HEX.substring(i, i + 1)).listFiles();
+
+			if(shard == null)
+				continue;
+
+			for(File f : shard) {
+				if(f.getName().endsWith(".tmp"))
+					f.delete();
+				else
+					files.add(f);
+			}
+		}
+
+		Collections.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long diff = a.lastModified() - b.lastModified();
+
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+
+		for(File f : files) {
+			index.put(f.getName(), f.length());
+			size += f.length();
+		}
+
+		trim();
+	}
+
+	private File get_file(String name) {
+		return new File(new File(root, name.substring(0, 1)), name);
+	}
+
+	private static String hash(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes());
+			StringBuilder name = new StringBuilder(digest.length * 2);
+
+			for(byte b : digest) {
+				name.append(HEX.charAt((b >> 4) & 0x0f));
+				name.append(HEX.charAt(b & 0x0f));
+			}
+			return name.toString();
+
+		} catch (NoSuchAlgorithmException e) {
+			return Integer.toHexString(key.hashCode());
+		}
+	}
+}
@@ -0,0 +1,49 @@
+/*
+    Open Manager, an open source file manager for the Android system
+    Copyright (C) 2009, 2010  Joe Berria <nexesdevelopment@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.nexes.manager;
+
+import java.io.File;
+
+import android.graphics.Bitmap;
+
+/**
+ * Makes a thumbnail out of one kind of file. ThumbnailCreator asks each
+ * registered extractor in turn whether it handles a file's extension and
+ * runs the first one that does on its decoder threads, so every extractor
+ * shares the same caches, thread pool and cancellation.
+ */
+public interface ThumbnailExtractor {
+
+	/**
+	 * @param extension	the lower case file extension, without the dot
+	 * @return			true if this extractor can make a thumbnail for it
+	 */
+	boolean accepts(String extension);
+
+	/**
+	 * Called on a decoder thread.
+	 *
+	 * @param file		the file to make a thumbnail of
+	 * @param width		width of the thumbnail
+	 * @param height	height of the thumbnail
+	 * @param pool		the pool the thumbnail should be drawn into
+	 * @return			the thumbnail, or null if the file has nothing to show
+	 */
+	Bitmap extract(File file, int width, int height, BitmapPool pool);
+}
@@ -0,0 +1,287 @@
+/*
+    Open Manager, an open source file manager for the Android system
+    Copyright (C) 2009, 2010  Joe Berria <nexesdevelopment@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.nexes.manager;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Stack;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Moves deleted files and folders into a hidden trash folder that lives
+ * at the root of the same volume, so a delete is a single rename no matter
+ * how large the folder is. A low priority background thread purges the
+ * trash once an entry is older than the purge delay; until then the entry
+ * can be restored to where it came from.
+ * <br>
+ * <br>
+ * Every trashed entry is stored as <code>id</code> next to a small
+ * <code>id.trashinfo</code> file holding its original path.
+ * This class has no reference to any GUI activity.
+ */
+public class TrashManager {
+	public static final String TRASH_DIR = ".openmanager_trash";
+	private static final String INFO_EXT = ".trashinfo";
+	private static final long DEFAULT_PURGE_DELAY = 5 * 60 * 1000;
+
+	private static final ScheduledExecutorService purger =
+		Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "trash-purge");
+				t.setPriority(Thread.MIN_PRIORITY);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+	private final FileManager file_mg;
+	private final HashSet<String> trash_dirs;
+	private final Stack<String> trashed;
+	private long purge_delay = DEFAULT_PURGE_DELAY;
+	private int counter = 0;
+
+	/**
+	 * @param manager	used to permanently remove entries when they are purged
+	 * @param home		a path on the main volume, its trash is swept for
+	 * 					entries left over from an earlier run
+	 */
+	public TrashManager(FileManager manager, String home) {
+		file_mg = manager;
+		trash_dirs = new HashSet<String>();
+		trashed = new Stack<String>();
+
+		trash_dirs.add(get_trash_dir(home));
+		schedulePurge(0);
+	}
+
+	/**
+	 * How long a trashed entry can still be restored before the
+	 * background purge removes it for good.
+	 *
+	 * @param millis	the delay in milliseconds
+	 */
+	public void setPurgeDelay(long millis) {
+		purge_delay = millis;
+	}
+
+	/**
+	 * Renames path into the trash of its volume. This does not touch the
+	 * content of a folder so it returns right away.
+	 *
+	 * @param path	the file or folder to delete
+	 * @return		the path of the entry in the trash, null if it could not
+	 * 				be moved and should be deleted the usual way
+	 */
+	public synchronized String moveToTrash(String path) {
+		File target = new File(path);
+		String dir = get_trash_dir(path);
+		File trash = new File(dir);
+
+		if(!target.exists() || MountTable.get_canonical(path).startsWith(dir))
+			return null;
+
+		if(!trash.isDirectory() && !trash.mkdir())
+			return null;
+
+		String id = System.currentTimeMillis() + "_" + (counter++);
+		File dest = new File(trash, id);
+
+		if(!write_info(new File(trash, id + INFO_EXT), target.getAbsolutePath()))
+			return null;
+
+		if(!target.renameTo(dest)) {
+			new File(trash, id + INFO_EXT).delete();
+			return null;
+		}
+
+		trash_dirs.add(dir);
+		trashed.push(dest.getPath());
+		schedulePurge(purge_delay);
+
+		return dest.getPath();
+	}
+
+	/**
+	 * Moves an entry out of the trash back to its original location.
+	 *
+	 * @param trashPath	the path returned from moveToTrash
+	 * @return			the restored path, or null if it was already purged
+	 * 					or something now exists at the original location.
+	 * 					In the second case the entry can be restored again
+	 * 					once that location is free.
+	 */
+	public synchronized String restore(String trashPath) {
+		File entry = new File(trashPath);
+		File info = new File(trashPath + INFO_EXT);
+		String original = read_info(info);
+
+		if(original == null || !entry.exists()) {
+			trashed.remove(trashPath);
+			return null;
+		}
+
+		File dest = new File(original);
+		if(dest.exists() || !entry.renameTo(dest))
+			return null;
+
+		trashed.remove(trashPath);
+		info.delete();
+		return original;
+	}
+
+	/**
+	 * Restores the most recently trashed entry that is still in the trash
+	 * and whose original location is free. The ones passed over stay in
+	 * the trash until they are purged.
+	 *
+	 * @return the restored path, null if there was nothing to restore
+	 */
+	public synchronized String restoreLast() {
+		for(int i = trashed.size() - 1; i >= 0; i--) {
+			String restored = restore(trashed.get(i));
+
+			if(restored != null)
+				return restored;
+		}
+		return null;
+	}
+
+	/**
+	 * @return	true if any entry can still be restored, after restoreLast
+	 * 			returned null this means something is in each one's way
+	 */
+	public synchronized boolean hasEntries() {
+		return !trashed.isEmpty();
+	}
+
+	/**
+	 * Queues a sweep of every known trash folder on the purge thread.
+	 *
+	 * @param delay	milliseconds to wait before the sweep runs
+	 */
+	public void schedulePurge(long delay) {
+		purger.schedule(new Runnable() {
+			public void run() {
+				purge();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * runs on the purge thread. An entry is removed from the pending stack
+	 * before it is deleted so it can no longer be restored half way through.
+	 */
+	private void purge() {
+		String[] dirs;
+		long cutoff = System.currentTimeMillis() - purge_delay;
+
+		synchronized (this) {
+			dirs = trash_dirs.toArray(new String[trash_dirs.size()]);
+		}
+
+		for(String dir : dirs) {
+			File[] list = new File(dir).listFiles();
+
+			if(list == null)
+				continue;
+
+			for(File entry : list) {
+				String name = entry.getName();
+
+				if(name.endsWith(INFO_EXT))
+					continue;
+
+				File info = new File(entry.getPath() + INFO_EXT);
+				if(info.exists() && info.lastModified() > cutoff)
+					continue;
+
+				synchronized (this) {
+					trashed.remove(entry.getPath());
+				}
+
+				file_mg.deleteTargetPermanently(entry.getPath());
+				info.delete();
+			}
+
+			/* info files whose entry was restored or already removed */
+			for(File entry : list) {
+				String name = entry.getName();
+
+				if(name.endsWith(INFO_EXT) &&
+				   !new File(dir, name.substring(0, name.length() - INFO_EXT.length())).exists())
+					entry.delete();
+			}
+		}
+	}
+
+	private static String get_trash_dir(String path) {
+		String mount = MountTable.getMountPoint(path);
+
+		return (mount.equals("/") ? "" : mount) + "/" + TRASH_DIR;
+	}
+
+	private static boolean write_info(File info, String original) {
+		FileWriter writer = null;
+
+		try {
+			writer = new FileWriter(info);
+			writer.write(original);
+			return true;
+
+		} catch (IOException e) {
+			Log.e("TrashManager", "could not write " + info.getPath());
+			return false;
+
+		} finally {
+			if(writer != null) {
+				try {
+					writer.close();
+				} catch (IOException e) { }
+			}
+		}
+	}
+
+	private static String read_info(File info) {
+		BufferedReader reader = null;
+
+		try {
+			reader = new BufferedReader(new FileReader(info), 256);
+			return reader.readLine();
+
+		} catch (IOException e) {
+			return null;
+
+		} finally {
+			if(reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) { }
+			}
+		}
+	}
+}
@@ -0,0 +1,53 @@
+/*
+    Open Manager, an open source file manager for the Android system
+    Copyright (C) 2009, 2010  Joe Berria <nexesdevelopment@gmail.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package com.nexes.manager;
+
+import java.io.File;
+
+import android.graphics.Bitmap;
+import android.media.ThumbnailUtils;
+import android.os.Build;
+import android.provider.MediaStore;
+
+/**
+ * Thumbnails for video files, made from a frame the platform's media
+ * framework picks out of the video. The micro (96x96) kind is asked for
+ * since it is the cheapest and is still bigger than a list icon.
+ * <br>
+ * ThumbnailUtils only came with Android 2.2, older devices keep the
+ * plain video icon.
+ */
+public class VideoThumbnailExtractor implements ThumbnailExtractor {
+	private static final int FROYO = 8;
+
+	/* SDK_INT is not there before Android 1.6 */
+	private static final boolean SUPPORTED = Integer.parseInt(Build.VERSION.SDK) >= FROYO;
+
+	public boolean accepts(String extension) {
+		return SUPPORTED && (extension.equals("mp4") || extension.equals("m4v") ||
+			   extension.equals("3gp"));
+	}
+
+	public Bitmap extract(File file, int width, int height, BitmapPool pool) {
+		Bitmap frame = ThumbnailUtils.createVideoThumbnail(file.getPath(),
+									MediaStore.Video.Thumbnails.MICRO_KIND);
+
+		return pool.fit(frame, width, height);
+	}
+}
@@ -18,9 +18,19 @@
 
 package com.nexes.manager;
 
+import java.io.IOException;
+import java.net.InetAddress;
+
 import android.app.Activity;
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.net.wifi.WifiInfo;
@@ -28,6 +38,7 @@ import android.net.wifi.WifiManager;
 import android.widget.TextView;
 import android.widget.ImageView;
 import android.widget.Button;
+import android.widget.Toast;
 
 public class WirelessManager extends Activity {
 	//index values to access the elements in the TextView array.
@@ -37,6 +48,13 @@ public class WirelessManager extends Activity {
 	private final int MACADD 	= 3;
 	private final int SSID 		= 4;
 	private final int LINKSPD 	= 5;	
+	private static final int MENU_SERVER = 0x00;
+	private static final int MENU_UPLOADS = 0x01;
+	private static final int SERVER_NOTIFICATION = 0x01;
+	
+	/* kept across activities, it serves until it is stopped and a
+	 * notification says so meanwhile */
+	private static FileServer server;
 	
 	private TextView[] data_labels;
 	private TextView name_label;
@@ -97,6 +115,10 @@ public class WirelessManager extends Activity {
 		
 		name_label.setText(info.getSSID());
 		enable_label.setText(enabled ?"Your wifi is enabled" :"Your wifi is not enabled");
+		if(server != null && server.isRunning())
+			enable_label.append("\nServing " + server.getRoot() + " at " + server_url() +
+								(server.isWritable() ? ", uploads allowed" : "") +
+								"\nPassword " + server.getPassword() + ", with any user name");
 		state_button.setText(enabled ?"Disable wifi" : "Enable wifi");
 		
 		switch(state) {
@@ -131,12 +153,134 @@ public class WirelessManager extends Activity {
 		}
 	}
 	
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu) {
+		menu.add(0, MENU_SERVER, 0, "File server").setIcon(R.drawable.wireless);
+		menu.add(0, MENU_UPLOADS, 0, "Uploads").setIcon(R.drawable.newfolder);
+		
+		return true;
+	}
+	
+	@Override
+	public boolean onPrepareOptionsMenu(Menu menu) {
+		boolean serving = server != null && server.isRunning();
+		
+		menu.findItem(MENU_SERVER).setTitle(serving ? "Stop file server" : "Start file server");
+		menu.findItem(MENU_UPLOADS).setVisible(serving)
+			.setTitle(serving && server.isWritable() ? "Refuse uploads" : "Allow uploads");
+		
+		return super.onPrepareOptionsMenu(menu);
+	}
+	
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item) {
+		if(item.getItemId() == MENU_UPLOADS) {
+			if(server != null)
+				server.setWritable(!server.isWritable());
+			
+			get_wifi();
+			return true;
+		}
+		
+		if(item.getItemId() != MENU_SERVER)
+			return false;
+		
+		if(server != null && server.isRunning()) {
+			server.stop();
+			server = null;
+			show_notification(false);
+			
+		} else {
+			SharedPreferences settings = getSharedPreferences(Main.PREFS_NAME, 0);
+			FileManager browser = new FileManager();
+			InetAddress address = wifi_address();
+			
+			browser.setShowHiddenFiles(settings.getBoolean(Main.PREFS_HIDDEN, false));
+			
+			/* only on the Wi-Fi network, never over mobile data */
+			if(address == null) {
+				Toast.makeText(this, "Connect to a Wi-Fi network to start the file server",
+							   Toast.LENGTH_LONG).show();
+				return true;
+			}
+			
+			try {
+				server = new FileServer("/sdcard", address, FileServer.DEFAULT_PORT, browser);
+				server.setPassword(FileServer.newPassword());
+				server.start();
+				show_notification(true);
+				
+			} catch (IOException e) {
+				server = null;
+				Toast.makeText(this, "Could not start the file server: " + e.getMessage(),
+							   Toast.LENGTH_LONG).show();
+			}
+		}
+		
+		get_wifi();
+		return true;
+	}
+	
+	/*
+	 * the address of this device on the Wi-Fi network, null without one
+	 */
+	private InetAddress wifi_address() {
+		int ip = wifi.getConnectionInfo().getIpAddress();
+		byte[] bytes = {(byte)ip, (byte)(ip >> 8), (byte)(ip >> 16), (byte)(ip >> 24)};
+		
+		if(!wifi.isWifiEnabled() || ip == 0)
+			return null;
+		
+		try {
+			return InetAddress.getByAddress(bytes);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	
+	private String server_url() {
+		InetAddress address = wifi_address();
+		
+		return "http://" + (address == null ? "?" : address.getHostAddress()) + ":" +
+			   server.getPort() + "/";
+	}
+	
+	/*
+	 * the server outlives this activity, so while it runs a notification
+	 * says so and leads back here to stop it
+	 */
+	private void show_notification(boolean serving) {
+		NotificationManager manager = (NotificationManager)getSystemService(Context.NOTIFICATION_SERVICE);
+		
+		if(!serving) {
+			manager.cancel(SERVER_NOTIFICATION);
+			return;
+		}
+		
+		Notification note = new Notification(R.drawable.wireless, "File server started",
+											 System.currentTimeMillis());
+		PendingIntent open = PendingIntent.getActivity(this, 0,
+								new Intent(this, WirelessManager.class), 0);
+		
+		note.flags |= Notification.FLAG_ONGOING_EVENT | Notification.FLAG_NO_CLEAR;
+		note.setLatestEventInfo(this, "Open Manager file server",
+								"Serving " + server.getRoot() + " at " + server_url(), open);
+		manager.notify(SERVER_NOTIFICATION, note);
+	}
+	
 	private class ButtonHandler implements OnClickListener {
 
 		public void onClick(View v) {
 			
 			if(v.getId() == R.id.back_button) {
 				if(wifi.isWifiEnabled()){
+					/* the server's address goes with the network */
+					if(server != null) {
+						server.stop();
+						server = null;
+						show_notification(false);
+					}
+					
 					wifi.setWifiEnabled(false);
 					state_button.setText("Enable wifi");
 				}else {